@@ -17,7 +17,8 @@
 
 package cplot;
 
-import java.awt.Color;
+import java.util.EnumSet;
+import java.util.Set;
 
 /**
  * A simple coloring scheme which uses black, red and yellow colors.
@@ -26,20 +27,30 @@ import java.awt.Color;
 public class BRYColoring extends Coloring {
 
     private static final String name = "Red-yellow-black";
+    private static final Set<Input> inputs = EnumSet.of(Input.ARG);
 
     @Override
     public String getName() { return new String(name); }
 
     @Override
-    public Color getColor(Complex z) {
-        double h = Complex.arg2(z) / 6.0;
-        double b = 1.0;
-        if (h < Math.PI / 8.0)
-            b = h / (Math.PI / 8.0);
-        h /= (Math.PI / 3.0);
-        h *= h;
-        h *= (Math.PI / 3.0);
-        return hsvToRgb(h, 1.0, b);
+    public Set<Input> getInputs() { return inputs; }
+
+    @Override
+    protected void colorBlock(ColoringInput in, int [] rgb, int offset, int n) {
+        for (int i = 0; i < n; i++) {
+            if (Double.isNaN(in.arg[i])) {
+                rgb[offset + i] = UNDEFINED;
+                continue;
+            }
+            double h = in.arg[i] / 6.0;
+            double b = 1.0;
+            if (h < Math.PI / 8.0)
+                b = h / (Math.PI / 8.0);
+            h /= (Math.PI / 3.0);
+            h *= h;
+            h *= (Math.PI / 3.0);
+            rgb[offset + i] = hsv(h, 1.0, b);
+        }
     }
 
 }
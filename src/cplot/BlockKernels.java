@@ -0,0 +1,207 @@
+/*
+    Copyright (C) 2016  Petri Aaltonen
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+
+package cplot;
+
+/**
+ * Complex arithmetic on blocks of numbers stored as separate arrays of real parts and
+ * imaginary parts. Every method reads the operands from index 0 to n - 1 and writes the result
+ * to the destination arrays which may be the same arrays as the operands. The loops are kept
+ * simple so that the JIT compiler can vectorize them, and the results are identical bit by bit
+ * to the ones computed by Complex and ComplexMath.
+ * @author Petri Aaltonen
+ */
+public class BlockKernels {
+
+    private static final BlockKernels instance = load();
+
+    /**
+     * Return the kernels used by the evaluators. If the system property cplot.simd is true
+     * and the class VectorBlockKernels, which is built by the ant targets compile-vector and
+     * jar-vector, can be loaded together with the module jdk.incubator.vector, the kernels
+     * written with the Vector API are returned. Otherwise the scalar kernels are returned, with
+     * a warning if cplot.simd is true.
+     * @return
+     */
+    public static BlockKernels getInstance() {
+        return instance;
+    }
+
+    private static BlockKernels load() {
+        if (Boolean.getBoolean("cplot.simd")) {
+            try {
+                return (BlockKernels) Class.forName("cplot.VectorBlockKernels")
+                        .getDeclaredConstructor().newInstance();
+            } catch (ReflectiveOperationException | LinkageError e) {
+                // The class has not been built, see the ant target jar-vector, or the incubator
+                // module is not present.
+                System.out.println("cplot.simd: the vector kernels are not available, using the "
+                        + "scalar kernels (" + e + ")");
+            }
+        }
+        return new BlockKernels();
+    }
+
+    /**
+     * Return true if these are the scalar kernels.
+     * @return
+     */
+    public boolean isScalar() {
+        return getClass() == BlockKernels.class;
+    }
+
+    public void neg(double [] ar, double [] ai, double [] dr, double [] di, int n) {
+        for (int i = 0; i < n; i++) {
+            dr[i] = -ar[i];
+            di[i] = -ai[i];
+        }
+    }
+
+    public void add(double [] ar, double [] ai, double [] br, double [] bi,
+                    double [] dr, double [] di, int n) {
+        for (int i = 0; i < n; i++) {
+            dr[i] = ar[i] + br[i];
+            di[i] = ai[i] + bi[i];
+        }
+    }
+
+    public void sub(double [] ar, double [] ai, double [] br, double [] bi,
+                    double [] dr, double [] di, int n) {
+        for (int i = 0; i < n; i++) {
+            dr[i] = ar[i] - br[i];
+            di[i] = ai[i] - bi[i];
+        }
+    }
+
+    public void mul(double [] ar, double [] ai, double [] br, double [] bi,
+                    double [] dr, double [] di, int n) {
+        for (int i = 0; i < n; i++) {
+            double ax = ar[i], ay = ai[i], bx = br[i], by = bi[i];
+            dr[i] = ax * bx - ay * by;
+            di[i] = ax * by + ay * bx;
+        }
+    }
+
+    public void div(double [] ar, double [] ai, double [] br, double [] bi,
+                    double [] dr, double [] di, int n) {
+        for (int i = 0; i < n; i++) {
+            double ax = ar[i], ay = ai[i], bx = br[i], by = bi[i];
+            double t = bx * bx + by * by;
+            dr[i] = (ax * bx + ay * by) / t;
+            di[i] = (ay * bx - ax * by) / t;
+        }
+    }
+
+    public void pow(double [] ar, double [] ai, double [] br, double [] bi,
+                    double [] dr, double [] di, int n) {
+        double [] tmp = new double[2];
+        for (int i = 0; i < n; i++) {
+            ComplexMath.pow(ar[i], ai[i], br[i], bi[i], tmp, 0);
+            dr[i] = tmp[0];
+            di[i] = tmp[1];
+        }
+    }
+
+    public void abs(double [] ar, double [] ai, double [] dr, double [] di, int n) {
+        for (int i = 0; i < n; i++) {
+            double ax = ar[i], ay = ai[i];
+            dr[i] = Math.sqrt(ax * ax + ay * ay);
+            di[i] = 0.0;
+        }
+    }
+
+    public void arg(double [] ar, double [] ai, double [] dr, double [] di, int n) {
+        for (int i = 0; i < n; i++) {
+            dr[i] = Math.atan2(ai[i], ar[i]);
+            di[i] = 0.0;
+        }
+    }
+
+    public void re(double [] ar, double [] ai, double [] dr, double [] di, int n) {
+        for (int i = 0; i < n; i++) {
+            dr[i] = ar[i];
+            di[i] = 0.0;
+        }
+    }
+
+    public void im(double [] ar, double [] ai, double [] dr, double [] di, int n) {
+        for (int i = 0; i < n; i++) {
+            dr[i] = ai[i];
+            di[i] = 0.0;
+        }
+    }
+
+    public void conj(double [] ar, double [] ai, double [] dr, double [] di, int n) {
+        for (int i = 0; i < n; i++) {
+            dr[i] = ar[i];
+            di[i] = -ai[i];
+        }
+    }
+
+    public void exp(double [] ar, double [] ai, double [] dr, double [] di, int n) {
+        for (int i = 0; i < n; i++) {
+            double r = Math.exp(ar[i]);
+            double t = ai[i];
+            dr[i] = r * Math.cos(t);
+            di[i] = r * Math.sin(t);
+        }
+    }
+
+    public void log(double [] ar, double [] ai, double [] dr, double [] di, int n) {
+        double [] tmp = new double[2];
+        for (int i = 0; i < n; i++) {
+            ComplexMath.log(ar[i], ai[i], tmp, 0);
+            dr[i] = tmp[0];
+            di[i] = tmp[1];
+        }
+    }
+
+    public void sqrt(double [] ar, double [] ai, double [] dr, double [] di, int n) {
+        double [] tmp = new double[2];
+        for (int i = 0; i < n; i++) {
+            ComplexMath.sqrt(ar[i], ai[i], tmp, 0);
+            dr[i] = tmp[0];
+            di[i] = tmp[1];
+        }
+    }
+
+    public void sin(double [] ar, double [] ai, double [] dr, double [] di, int n) {
+        for (int i = 0; i < n; i++) {
+            double ax = ar[i], ay = ai[i];
+            dr[i] = Math.sin(ax) * Math.cosh(ay);
+            di[i] = Math.cos(ax) * Math.sinh(ay);
+        }
+    }
+
+    public void cos(double [] ar, double [] ai, double [] dr, double [] di, int n) {
+        for (int i = 0; i < n; i++) {
+            double ax = ar[i], ay = ai[i];
+            dr[i] = Math.cos(ax) * Math.cosh(ay);
+            di[i] = -Math.sin(ax) * Math.sinh(ay);
+        }
+    }
+
+    public void tan(double [] ar, double [] ai, double [] dr, double [] di, int n) {
+        double [] tmp = new double[2];
+        for (int i = 0; i < n; i++) {
+            ComplexMath.tan(ar[i], ai[i], tmp, 0);
+            dr[i] = tmp[0];
+            di[i] = tmp[1];
+        }
+    }
+
+}
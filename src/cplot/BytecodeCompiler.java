@@ -0,0 +1,383 @@
+/*
+    Copyright (C) 2016  Petri Aaltonen
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+
+package cplot;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+
+/**
+ * Translate a Program into a JVM class with a single straight-line method which keeps every
+ * register in local variables of type double. Built-in functions are emitted as direct static
+ * calls to ComplexMath so the JIT compiler is free to inline the whole expression.
+ *
+ * The class is defined as a hidden class using MethodHandles.Lookup.defineHiddenClass which
+ * is looked up reflectively because it does not exist before Java 15. If the class can not be
+ * generated or defined, compile returns null and the caller keeps using the Program.
+ * @author Petri Aaltonen
+ */
+public final class BytecodeCompiler {
+
+    private static final String CLASS_NAME = "cplot/GeneratedExpression";
+    private static final String MATH_CLASS = "cplot/ComplexMath";
+
+    // Local variables of the generated eval(DD[D)V method.
+    private static final int LOCAL_X = 1;
+    private static final int LOCAL_Y = 3;
+    private static final int LOCAL_OUT = 5;
+    private static final int LOCAL_REGISTERS = 6;
+
+    private static final int MAX_STACK = 12;
+    private static final int MAX_CODE_LENGTH = 65535;
+
+    private BytecodeCompiler() {}
+
+    /**
+     * Generate and load a class evaluating the program.
+     * @param program a compiled program
+     * @return an instance of the generated class or null if the program calls a function which
+     * is not built in, is too long for a single method or the class can not be defined
+     */
+    public static CompiledExpression compile(Program program) {
+        if (program.getCallCount() > 0)
+            return null;
+        try {
+            byte [] bytes = generate(program);
+            if (bytes == null)
+                return null;
+            return (CompiledExpression) defineHiddenClass(bytes).getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError | IOException | ClassCastException e) {
+            return null;
+        }
+    }
+
+    private static Class<?> defineHiddenClass(byte [] bytes) throws ReflectiveOperationException {
+        Class<?> optionClass = Class.forName("java.lang.invoke.MethodHandles$Lookup$ClassOption");
+        Object options = Array.newInstance(optionClass, 0);
+        Method define = MethodHandles.Lookup.class.getMethod(
+                "defineHiddenClass", byte[].class, boolean.class, options.getClass());
+        MethodHandles.Lookup lookup = (MethodHandles.Lookup) define.invoke(
+                MethodHandles.lookup(), bytes, true, options);
+        return lookup.lookupClass();
+    }
+
+    /**
+     * Return the class file of the generated class or null if the method would be too long.
+     */
+    static byte [] generate(Program program) throws IOException {
+        ConstantPool pool = new ConstantPool();
+        int thisClass = pool.classRef(CLASS_NAME);
+        int superClass = pool.classRef("java/lang/Object");
+        int iface = pool.classRef("cplot/CompiledExpression");
+        int codeName = pool.utf8("Code");
+        int initName = pool.utf8("<init>");
+        int initType = pool.utf8("()V");
+        int evalName = pool.utf8("eval");
+        int evalType = pool.utf8("(DD[D)V");
+        int objectInit = pool.methodRef("java/lang/Object", "<init>", "()V");
+
+        byte [] initCode = {
+                0x2a,                                                // aload_0
+                (byte)0xb7, (byte)(objectInit >> 8), (byte)objectInit, // invokespecial
+                (byte)0xb1                                           // return
+        };
+
+        double [] image = program.getImage();
+        int [] code = program.getCode();
+        int temp = LOCAL_REGISTERS + 2 * image.length;
+
+        Code c = new Code();
+        c.load(LOCAL_X);
+        c.store(local(0));
+        c.load(LOCAL_Y);
+        c.store(local(1));
+        boolean [] computed = new boolean[image.length];
+        for (int pc = 0; pc < code.length; pc += 4)
+            computed[code[pc + 1]] = true;
+        for (int k = 2; k < image.length; k += 2)
+            if (!computed[k]) {
+                c.constant(pool.doubleConst(image[k]));
+                c.store(local(k));
+                c.constant(pool.doubleConst(image[k + 1]));
+                c.store(local(k + 1));
+            }
+
+        for (int pc = 0; pc < code.length; pc += 4) {
+            int op = code[pc];
+            int dst = code[pc + 1];
+            int a = code[pc + 2];
+            int b = code[pc + 3];
+
+            // Both parts of the result are left on the stack and stored only afterwards since
+            // the destination register may be one of the operands.
+            switch (op) {
+                case Program.NEG:
+                    c.load(local(a)); c.op(0x77);
+                    c.load(local(a + 1)); c.op(0x77);
+                    break;
+                case Program.ADD:
+                case Program.SUB: {
+                    int arith = op == Program.ADD ? 0x63 : 0x67;
+                    c.load(local(a)); c.load(local(b)); c.op(arith);
+                    c.load(local(a + 1)); c.load(local(b + 1)); c.op(arith);
+                    break;
+                }
+                case Program.MUL:
+                    c.load(local(a)); c.load(local(b)); c.op(0x6b);
+                    c.load(local(a + 1)); c.load(local(b + 1)); c.op(0x6b);
+                    c.op(0x67);
+                    c.load(local(a)); c.load(local(b + 1)); c.op(0x6b);
+                    c.load(local(a + 1)); c.load(local(b)); c.op(0x6b);
+                    c.op(0x63);
+                    break;
+                case Program.DIV:
+                    c.load(local(b)); c.load(local(b)); c.op(0x6b);
+                    c.load(local(b + 1)); c.load(local(b + 1)); c.op(0x6b);
+                    c.op(0x63);
+                    c.store(temp);
+                    c.load(local(a)); c.load(local(b)); c.op(0x6b);
+                    c.load(local(a + 1)); c.load(local(b + 1)); c.op(0x6b);
+                    c.op(0x63);
+                    c.load(temp); c.op(0x6f);
+                    c.load(local(a + 1)); c.load(local(b)); c.op(0x6b);
+                    c.load(local(a)); c.load(local(b + 1)); c.op(0x6b);
+                    c.op(0x67);
+                    c.load(temp); c.op(0x6f);
+                    break;
+                case Program.POW:
+                    c.load(local(a)); c.load(local(a + 1));
+                    c.load(local(b)); c.load(local(b + 1));
+                    c.callMath(pool.methodRef(MATH_CLASS, "pow", "(DDDD[DI)V"));
+                    break;
+                default:
+                    c.load(local(a)); c.load(local(a + 1));
+                    c.callMath(pool.methodRef(MATH_CLASS, functionName(op), "(DD[DI)V"));
+                    break;
+            }
+            c.store(local(dst + 1));
+            c.store(local(dst));
+        }
+
+        int result = program.getResultSlot();
+        c.aloadOut(); c.op(0x03); c.load(local(result)); c.op(0x52);
+        c.aloadOut(); c.op(0x04); c.load(local(result + 1)); c.op(0x52);
+        c.op(0xb1);
+
+        if (c.size() > MAX_CODE_LENGTH || temp + 2 > 0xffff)
+            return null;
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0xcafebabe);
+        out.writeShort(0);
+        out.writeShort(52);
+        pool.write(out);
+        out.writeShort(0x0001 | 0x0010 | 0x0020); // public final super
+        out.writeShort(thisClass);
+        out.writeShort(superClass);
+        out.writeShort(1);
+        out.writeShort(iface);
+        out.writeShort(0);
+        out.writeShort(2);
+        writeMethod(out, initName, initType, codeName, 1, 1, initCode);
+        writeMethod(out, evalName, evalType, codeName, MAX_STACK, temp + 2, c.toByteArray());
+        out.writeShort(0);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    // Return the local variable holding a register slot. A double takes two local variables.
+    private static int local(int slot) {
+        return LOCAL_REGISTERS + 2 * slot;
+    }
+
+    private static String functionName(int op) {
+        switch (op) {
+            case Program.ABS: return "abs";
+            case Program.ARG: return "arg";
+            case Program.RE: return "re";
+            case Program.IM: return "im";
+            case Program.CONJ: return "conj";
+            case Program.EXP: return "exp";
+            case Program.LOG: return "log";
+            case Program.SQRT: return "sqrt";
+            case Program.SIN: return "sin";
+            case Program.COS: return "cos";
+            case Program.TAN: return "tan";
+            default:
+                assert false : "unexpected opcode in BytecodeCompiler.functionName";
+                throw new Error("unexpected opcode");
+        }
+    }
+
+    private static void writeMethod(DataOutputStream out, int name, int type, int codeName,
+                                    int maxStack, int maxLocals, byte [] code) throws IOException {
+        out.writeShort(0x0001);
+        out.writeShort(name);
+        out.writeShort(type);
+        out.writeShort(1);
+        out.writeShort(codeName);
+        out.writeInt(12 + code.length);
+        out.writeShort(maxStack);
+        out.writeShort(maxLocals);
+        out.writeInt(code.length);
+        out.write(code);
+        out.writeShort(0);
+        out.writeShort(0);
+    }
+
+    /**
+     * The constant pool of the generated class. Equal entries are shared.
+     */
+    private static class ConstantPool {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(bytes);
+        private final HashMap<String, Integer> entries = new HashMap<>();
+        private int count = 1;
+
+        private int entry(String key, int size) {
+            Integer index = entries.get(key);
+            if (index != null)
+                return index;
+            entries.put(key, count);
+            count += size;
+            return count - size;
+        }
+
+        int utf8(String s) throws IOException {
+            int before = count;
+            int index = entry("U" + s, 1);
+            if (index == before) {
+                out.writeByte(1);
+                out.writeUTF(s);
+            }
+            return index;
+        }
+
+        int classRef(String name) throws IOException {
+            int nameIndex = utf8(name);
+            int before = count;
+            int index = entry("C" + name, 1);
+            if (index == before) {
+                out.writeByte(7);
+                out.writeShort(nameIndex);
+            }
+            return index;
+        }
+
+        int doubleConst(double value) throws IOException {
+            long bits = Double.doubleToRawLongBits(value);
+            int before = count;
+            int index = entry("D" + bits, 2);
+            if (index == before) {
+                out.writeByte(6);
+                out.writeLong(bits);
+            }
+            return index;
+        }
+
+        int methodRef(String owner, String name, String type) throws IOException {
+            int ownerIndex = classRef(owner);
+            int nameIndex = utf8(name);
+            int typeIndex = utf8(type);
+            int before = count;
+            int nameAndType = entry("N" + name + ";" + type, 1);
+            if (nameAndType == before) {
+                out.writeByte(12);
+                out.writeShort(nameIndex);
+                out.writeShort(typeIndex);
+            }
+            before = count;
+            int index = entry("M" + owner + "." + name + type, 1);
+            if (index == before) {
+                out.writeByte(10);
+                out.writeShort(ownerIndex);
+                out.writeShort(nameAndType);
+            }
+            return index;
+        }
+
+        void write(DataOutputStream dst) throws IOException {
+            out.flush();
+            dst.writeShort(count);
+            bytes.writeTo(dst);
+        }
+    }
+
+    /**
+     * The instructions of the generated eval method.
+     */
+    private static class Code extends ByteArrayOutputStream {
+
+        void op(int opcode) {
+            write(opcode);
+        }
+
+        private void local(int opcode, int shortForm, int index) {
+            if (index <= 3) {
+                write(shortForm + index);
+            }
+            else if (index <= 0xff) {
+                write(opcode);
+                write(index);
+            }
+            else {
+                write(0xc4); // wide
+                write(opcode);
+                write(index >> 8);
+                write(index);
+            }
+        }
+
+        void load(int index) {
+            local(0x18, 0x26, index); // dload
+        }
+
+        void store(int index) {
+            local(0x39, 0x47, index); // dstore
+        }
+
+        void aloadOut() {
+            write(0x19); // aload
+            write(LOCAL_OUT);
+        }
+
+        void constant(int index) {
+            write(0x14); // ldc2_w
+            write(index >> 8);
+            write(index);
+        }
+
+        // Call a ComplexMath method with the arguments already on the stack and load the
+        // result from out[0] and out[1] back on the stack.
+        void callMath(int methodRef) {
+            aloadOut();
+            write(0x03); // iconst_0
+            write(0xb8); // invokestatic
+            write(methodRef >> 8);
+            write(methodRef);
+            aloadOut(); write(0x03); write(0x31); // out[0]
+            aloadOut(); write(0x04); write(0x31); // out[1]
+        }
+    }
+
+}
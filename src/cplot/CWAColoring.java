@@ -17,7 +17,8 @@
 
 package cplot;
 
-import java.awt.Color;
+import java.util.EnumSet;
+import java.util.Set;
 
 /**
  * Coloring scheme which uses a full color wheel and shows where the complex function maps the
@@ -27,15 +28,25 @@ import java.awt.Color;
 public class CWAColoring extends Coloring {
 
     private static final String name = "Color wheel with axes";
+    private static final Set<Input> inputs = EnumSet.of(Input.ARG);
 
     @Override
     public String getName() { return new String(name); }
 
     @Override
-    public Color getColor(Complex z) {
-        double h = Complex.arg2(z);
-        double b = Math.pow(Math.abs(Math.cos(h) * Math.sin(h)), 0.25);
-        return hsvToRgb(h, 1.0, b);
+    public Set<Input> getInputs() { return inputs; }
+
+    @Override
+    protected void colorBlock(ColoringInput in, int [] rgb, int offset, int n) {
+        for (int i = 0; i < n; i++) {
+            double h = in.arg[i];
+            if (Double.isNaN(h)) {
+                rgb[offset + i] = UNDEFINED;
+                continue;
+            }
+            double b = Math.pow(Math.abs(Math.cos(h) * Math.sin(h)), 0.25);
+            rgb[offset + i] = hsv(h, 1.0, b);
+        }
     }
 
 }
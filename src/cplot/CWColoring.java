@@ -17,7 +17,8 @@
 
 package cplot;
 
-import java.awt.Color;
+import java.util.EnumSet;
+import java.util.Set;
 
 /**
  * A coloring scheme which uses a full color wheel.
@@ -26,13 +27,24 @@ import java.awt.Color;
 public class CWColoring extends Coloring {
 
     private static final String name = "Color wheel";
-    
+    private static final Set<Input> inputs = EnumSet.of(Input.ARG);
+
     @Override
     public String getName() { return new String(name); }
 
     @Override
-    public Color getColor(Complex z) {
-	return hsvToRgb(Complex.arg2(z), 1.0, 1.0);
+    public Set<Input> getInputs() { return inputs; }
+
+    @Override
+    protected void colorBlock(ColoringInput in, int [] rgb, int offset, int n) {
+        for (int i = 0; i < n; i++) {
+            double h = in.arg[i];
+            if (Double.isNaN(h)) {
+                rgb[offset + i] = UNDEFINED;
+                continue;
+            }
+            rgb[offset + i] = hsv(h, 1.0, 1.0);
+        }
     }
 
 }
@@ -17,7 +17,8 @@
 
 package cplot;
 
-import java.awt.Color;
+import java.util.EnumSet;
+import java.util.Set;
 
 /**
  * A coloring scheme which uses a full color wheel and shows gradients to represent the
@@ -27,15 +28,26 @@ import java.awt.Color;
 public class CWSColoring extends Coloring {
 
     private static final String name = "Color wheel with steps";
+    private static final Set<Input> inputs = EnumSet.of(Input.ARG, Input.LOG_MODULUS);
 
     @Override
     public String getName() { return new String(name); }
 
     @Override
-    public Color getColor(Complex z) {
-        double h = Complex.arg2(z);
-        double b = Math.log(Complex.abs(z)) - Math.floor(Math.log(Complex.abs(z)));
-        return hsvToRgb(h, 1.0, b);
+    public Set<Input> getInputs() { return inputs; }
+
+    @Override
+    protected void colorBlock(ColoringInput in, int [] rgb, int offset, int n) {
+        for (int i = 0; i < n; i++) {
+            double h = in.arg[i];
+            if (Double.isNaN(h)) {
+                rgb[offset + i] = UNDEFINED;
+                continue;
+            }
+            double m = in.logModulus[i];
+            double b = m - Math.floor(m);
+            rgb[offset + i] = hsv(h, 1.0, b);
+        }
     }
 
 }
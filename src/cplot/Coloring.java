@@ -18,25 +18,129 @@
 package cplot;
 
 import java.awt.Color;
+import java.util.Set;
 
 /**
- * An abstract class to implement different coloring schemes.
+ * An abstract class to implement different coloring schemes. A coloring maps a block of complex
+ * values, given as separate arrays of real and imaginary parts, to packed RGB values without
+ * allocating anything. Values with a NaN part are painted white.
+ *
+ * A coloring declares the quantities it reads, such as the argument or the logarithm of the
+ * modulus, and receives exactly those computed once for a whole block in a ColoringInput.
  * @author Petri Aaltonen
  */
 public abstract class Coloring {
 
     /**
+     * The quantities a coloring may read from a ColoringInput.
+     */
+    public enum Input {ARG, MODULUS, LOG_MODULUS, RE_IM}
+
+    /**
+     * The packed RGB value of white used for undefined values.
+     */
+    public static final int UNDEFINED = 0xffffff;
+
+    // The table used instead of hsvToRgb or null if the colors are computed exactly.
+    private HsvLookupTable lookupTable = null;
+
+    /**
+     * @param h Hue in range [0, 2*pi)
+     * @param s Saturation in range [0, 1]
+     * @param v Value in range [0, 1]
+     * @return packed RGB value
+     */
+    protected static int hsvToRgb(double h, double s, double v) {
+        return Color.HSBtoRGB((float) (h / (2.0 * Math.PI)), (float) s, (float) v) & 0xffffff;
+    }
+
+    /**
+     * Argument of x + iy in the range from 0 to 2*PI, computed as Complex.arg2.
+     */
+    protected static double arg2(double x, double y) {
+        double t = Math.atan2(y, x);
+        return t >= 0.0 ? t : 2.0 * Math.PI + t;
+    }
+
+    /**
+     * Return the packed RGB value of an HSV color, either exactly or from the lookup table.
      * @param h Hue in range [0, 2*pi)
      * @param s Saturation in range [0, 1]
      * @param v Value in range [0, 1]
-     * @return RGB-colour value
+     * @return packed RGB value
      */
-    protected static Color hsvToRgb(double h, double s, double v) {
-        return Color.getHSBColor((float) (h / (2.0 * Math.PI)),
-            (float) s, (float) v);
+    protected final int hsv(double h, double s, double v) {
+        HsvLookupTable t = lookupTable;
+        return (t != null) ? t.lookup(h, s, v) : hsvToRgb(h, s, v);
     }
-    
+
+    /**
+     * Return the lookup table or null if the colors are computed exactly.
+     * @return
+     */
+    public HsvLookupTable getLookupTable() { return lookupTable; }
+
+    /**
+     * Choose whether the colors are looked up from a table instead of being computed exactly.
+     * Must not be called while the coloring is in use by a render.
+     * @param lookupTable a table or null to compute the colors exactly
+     */
+    public void setLookupTable(HsvLookupTable lookupTable) { this.lookupTable = lookupTable; }
+
     public abstract String getName();
-    public abstract Color getColor(Complex z);
-    
+
+    /**
+     * Return the quantities the coloring reads from a ColoringInput. A value is undefined if
+     * its argument is NaN, so colorings which paint undefined values white read ARG.
+     * @return
+     */
+    public abstract Set<Input> getInputs();
+
+    /**
+     * Write the packed RGB values of a block into rgb[offset + i] for i from 0 to n - 1.
+     * @param in the quantities declared by getInputs, indexed from 0
+     * @param rgb the packed RGB values
+     * @param offset index of the first value in rgb
+     * @param n the number of values
+     */
+    protected abstract void colorBlock(ColoringInput in, int [] rgb, int offset, int n);
+
+    /**
+     * Write the packed RGB values of the complex values re[k] + i*im[k] into rgb[k] for k from
+     * offset to offset + len - 1.
+     * @param re the real parts
+     * @param im the imaginary parts
+     * @param rgb the packed RGB values
+     * @param offset index of the first value in all three arrays
+     * @param len the number of values
+     * @param in scratch space owned by the calling thread
+     */
+    public final void colorize(double [] re, double [] im, int [] rgb, int offset, int len,
+                               ColoringInput in) {
+        Set<Input> inputs = getInputs();
+        for (int start = offset; start < offset + len; start += ColoringInput.BLOCK_SIZE) {
+            int n = Math.min(ColoringInput.BLOCK_SIZE, offset + len - start);
+            in.load(re, im, start, n, inputs);
+            colorBlock(in, rgb, start, n);
+        }
+    }
+
+    /**
+     * Like the method above but allocates the scratch space.
+     */
+    public void colorize(double [] re, double [] im, int [] rgb, int offset, int len) {
+        colorize(re, im, rgb, offset, len, new ColoringInput());
+    }
+
+    /**
+     * Return the color of a single value. Only for convenience, rendering uses colorize.
+     * @param z a complex number
+     * @return
+     */
+    public Color getColor(Complex z) {
+        int [] rgb = new int[1];
+        colorize(new double[] {z.x}, new double[] {z.y}, rgb, 0, 1);
+        return new Color(rgb[0]);
+    }
+
 }
@@ -0,0 +1,73 @@
+/*
+    Copyright (C) 2016  Petri Aaltonen
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+
+package cplot;
+
+import java.util.Set;
+
+/**
+ * The quantities a Coloring reads, computed in bulk for a block of complex values. Only the
+ * quantities the coloring declares with Coloring.getInputs are computed, the other arrays keep
+ * whatever they held before. All arrays are indexed from 0 to the length of the block - 1.
+ *
+ * An instance is scratch space for one thread.
+ * @author Petri Aaltonen
+ */
+public final class ColoringInput {
+
+    public static final int BLOCK_SIZE = 256;
+
+    // The real and imaginary parts, for Coloring.Input.RE_IM.
+    final double [] re = new double[BLOCK_SIZE];
+    final double [] im = new double[BLOCK_SIZE];
+    // The argument in the range from 0 to 2*PI, NaN for an undefined value.
+    final double [] arg = new double[BLOCK_SIZE];
+    // The modulus.
+    final double [] modulus = new double[BLOCK_SIZE];
+    // The natural logarithm of the modulus.
+    final double [] logModulus = new double[BLOCK_SIZE];
+
+    /**
+     * Compute the requested quantities of the values re[offset + i] + i*im[offset + i].
+     * @param re the real parts
+     * @param im the imaginary parts
+     * @param offset index of the first value
+     * @param n the number of values, at most BLOCK_SIZE
+     * @param inputs the quantities to compute
+     */
+    void load(double [] re, double [] im, int offset, int n, Set<Coloring.Input> inputs) {
+        assert n <= BLOCK_SIZE : "n > BLOCK_SIZE in ColoringInput.load";
+        if (inputs.contains(Coloring.Input.RE_IM)) {
+            System.arraycopy(re, offset, this.re, 0, n);
+            System.arraycopy(im, offset, this.im, 0, n);
+        }
+        if (inputs.contains(Coloring.Input.ARG))
+            for (int i = 0; i < n; i++)
+                arg[i] = Coloring.arg2(re[offset + i], im[offset + i]);
+        boolean log = inputs.contains(Coloring.Input.LOG_MODULUS);
+        if (log || inputs.contains(Coloring.Input.MODULUS))
+            for (int i = 0; i < n; i++) {
+                double x = re[offset + i];
+                double y = im[offset + i];
+                modulus[i] = Math.sqrt(x * x + y * y);
+            }
+        if (log)
+            for (int i = 0; i < n; i++)
+                logModulus[i] = Math.log(modulus[i]);
+    }
+
+}
@@ -0,0 +1,36 @@
+/*
+    Copyright (C) 2016  Petri Aaltonen
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+
+package cplot;
+
+/**
+ * An expression compiled into a class of its own by BytecodeCompiler. Implementations have
+ * no state so a single instance may be used by any number of threads.
+ * @author Petri Aaltonen
+ */
+public interface CompiledExpression {
+
+    /**
+     * Evaluate the expression at z = x + iy.
+     * @param x the real part of z
+     * @param y the imaginary part of z
+     * @param out an array of length two owned by the calling thread, the real part of the
+     *            result is written to out[0] and the imaginary part to out[1]
+     */
+    void eval(double x, double y, double [] out);
+
+}
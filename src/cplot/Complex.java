@@ -24,7 +24,7 @@ package cplot;
 public class Complex {
 
     // TODO: Find an optimal value for TOL.
-    private static final double TOL = 1.0e-10;
+    static final double TOL = 1.0e-10;
 
     public double x = 0.0;
     public double y = 0.0;
@@ -0,0 +1,157 @@
+/*
+    Copyright (C) 2016  Petri Aaltonen
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+
+package cplot;
+
+/**
+ * Allocation-free versions of the functions in Complex. A complex number is passed as its real
+ * part x and imaginary part y and the result is written into out[k] (the real part) and
+ * out[k + 1] (the imaginary part). The computations are carried out in exactly the same order
+ * as in Complex so the results are identical bit by bit.
+ * @author Petri Aaltonen
+ */
+public final class ComplexMath {
+
+    private ComplexMath() {}
+
+    /**
+     * The absolute value |z| as a real number.
+     */
+    public static void abs(double x, double y, double[] out, int k) {
+        out[k] = Math.sqrt(x * x + y * y);
+        out[k + 1] = 0.0;
+    }
+
+    /**
+     * The argument of z in the range from -PI to PI as a real number.
+     */
+    public static void arg(double x, double y, double[] out, int k) {
+        out[k] = Math.atan2(y, x);
+        out[k + 1] = 0.0;
+    }
+
+    /**
+     * The real part of z.
+     */
+    public static void re(double x, double y, double[] out, int k) {
+        out[k] = x;
+        out[k + 1] = 0.0;
+    }
+
+    /**
+     * The imaginary part of z as a real number.
+     */
+    public static void im(double x, double y, double[] out, int k) {
+        out[k] = y;
+        out[k + 1] = 0.0;
+    }
+
+    /**
+     * The complex conjugate of z.
+     */
+    public static void conj(double x, double y, double[] out, int k) {
+        out[k] = x;
+        out[k + 1] = -y;
+    }
+
+    /**
+     * The complex exponential exp(z).
+     */
+    public static void exp(double x, double y, double[] out, int k) {
+        double r = Math.exp(x);
+        out[k] = r * Math.cos(y);
+        out[k + 1] = r * Math.sin(y);
+    }
+
+    /**
+     * The complex logarithm log(z), (NaN, NaN) if z is zero.
+     */
+    public static void log(double x, double y, double[] out, int k) {
+        if (x != 0.0 || y != 0.0) {
+            out[k] = Math.log(Math.sqrt(x * x + y * y));
+            out[k + 1] = Math.atan2(y, x);
+        }
+        else {
+            out[k] = Double.NaN;
+            out[k + 1] = Double.NaN;
+        }
+    }
+
+    /**
+     * The complex power z^w computed as exp(w*log(z)).
+     */
+    public static void pow(double x, double y, double u, double v, double[] out, int k) {
+        double lx, ly;
+        if (x != 0.0 || y != 0.0) {
+            lx = Math.log(Math.sqrt(x * x + y * y));
+            ly = Math.atan2(y, x);
+        }
+        else {
+            lx = Double.NaN;
+            ly = Double.NaN;
+        }
+        exp(u * lx - v * ly, u * ly + v * lx, out, k);
+    }
+
+    /**
+     * The complex square root.
+     */
+    public static void sqrt(double x, double y, double[] out, int k) {
+        if (x > -Complex.TOL && x < Complex.TOL && y > -Complex.TOL && y < Complex.TOL) {
+            out[k] = 0.0;
+            out[k + 1] = 0.0;
+        }
+        else
+            pow(x, y, 0.5, 0.0, out, k);
+    }
+
+    /**
+     * The complex sine.
+     */
+    public static void sin(double x, double y, double[] out, int k) {
+        out[k] = Math.sin(x) * Math.cosh(y);
+        out[k + 1] = Math.cos(x) * Math.sinh(y);
+    }
+
+    /**
+     * The complex cosine.
+     */
+    public static void cos(double x, double y, double[] out, int k) {
+        out[k] = Math.cos(x) * Math.cosh(y);
+        out[k + 1] = -Math.sin(x) * Math.sinh(y);
+    }
+
+    /**
+     * The complex tangent, (NaN, NaN) at the poles on the real axis.
+     */
+    public static void tan(double x, double y, double[] out, int k) {
+        if (Math.abs(Math.abs(x) - 0.5 * Math.PI) < Complex.TOL && Math.abs(y) < Complex.TOL) {
+            out[k] = Double.NaN;
+            out[k + 1] = Double.NaN;
+        }
+        else {
+            double sx = Math.sin(x) * Math.cosh(y);
+            double sy = Math.cos(x) * Math.sinh(y);
+            double cx = Math.cos(x) * Math.cosh(y);
+            double cy = -Math.sin(x) * Math.sinh(y);
+            double t = cx * cx + cy * cy;
+            out[k] = (sx * cx + sy * cy) / t;
+            out[k + 1] = (sy * cx - sx * cy) / t;
+        }
+    }
+
+}
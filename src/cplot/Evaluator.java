@@ -24,14 +24,67 @@ package cplot;
  */
 public class Evaluator {
 
+	/**
+	 * The ways an evaluator can evaluate the expression. TREE interprets the eval-tree, PROGRAM
+	 * runs the compiled register program and BYTECODE runs a class generated for the expression
+	 * by BytecodeCompiler. If no class can be generated for an expression the evaluator falls
+	 * back to the program.
+	 */
+	public enum Backend {TREE, PROGRAM, BYTECODE}
+
 	public static abstract class EvalNode {
 		protected VarTable varTable = null;
 
-		public abstract Complex eval() throws EvaluateException;
+		public abstract Complex eval(Expression.Context ctx);
 
-		void passTables(VarTable ref, FunctionTable fref) {
+		/**
+		 * Emit the instructions computing the subtree and return the register holding the result.
+		 */
+		abstract int compile(Program.Assembler asm);
+
+		/**
+		 * Bind the subtree to the tables and resolve every name in it once.
+		 * @throws EvaluateException if the subtree refers to an unknown variable or function
+		 */
+		void passTables(VarTable ref, FunctionTable fref) throws EvaluateException {
 			varTable = ref;
 		}
+
+		/**
+		 * Return true if the value of the subtree does not depend on z.
+		 */
+		abstract boolean isConstant();
+
+		/**
+		 * Return a subtree which computes the same function with fewer or cheaper operations.
+		 * The subtree must be bound with passTables before and the result after the call.
+		 */
+		abstract EvalNode optimize();
+
+		//
+		// Replace a constant subtree by its value.
+		//
+		EvalNode fold() {
+			return new EvalNodeVal(eval(null));
+		}
+
+		//
+		// Return true if the node is a value node holding x + iy.
+		//
+		static boolean isValue(EvalNode node, double x, double y) {
+			return node instanceof EvalNodeVal
+					&& ((EvalNodeVal)node).value.x == x && ((EvalNodeVal)node).value.y == y;
+		}
+
+		//
+		// Return true if the node is a value node whose both parts are zeros of the given sign,
+		// telling +0.0 and -0.0 apart.
+		//
+		static boolean isSignedZero(EvalNode node, double zero) {
+			return node instanceof EvalNodeVal
+					&& Double.compare(((EvalNodeVal)node).value.x, zero) == 0
+					&& Double.compare(((EvalNodeVal)node).value.y, zero) == 0;
+		}
 	}
 
 	public static class EvalNodeVal extends EvalNode {
@@ -42,28 +95,78 @@ public class Evaluator {
 		}
 
 		@Override
-		public Complex eval() throws EvaluateException {
+		public Complex eval(Expression.Context ctx) {
 			return value;
 		}
+
+		@Override
+		int compile(Program.Assembler asm) {
+			return asm.constant(value);
+		}
+
+		@Override
+		boolean isConstant() {
+			return true;
+		}
+
+		@Override
+		EvalNode optimize() {
+			return this;
+		}
+
+		@Override
+		public String toString() {
+			if (value.y == 0.0)
+				return Double.toString(value.x);
+			return "(" + value.x + (value.y < 0.0 ? " - " : " + ") + Math.abs(value.y) + "i)";
+		}
 	}
 
 	public static class EvalNodeVar extends EvalNode {
+		private static final int Z = -1;
 		private String name = null;
+		private int slot = Z;
 
 		public EvalNodeVar(String name) {
 			this.name = new String(name);
 		}
 
 		@Override
-		public Complex eval() throws EvaluateException {
-			return varTable.get(name);
+		public Complex eval(Expression.Context ctx) {
+			return (slot == Z) ? ctx.z : varTable.get(slot);
+		}
+
+		@Override
+		int compile(Program.Assembler asm) {
+			return (slot == Z) ? asm.z() : asm.constant(varTable.get(slot));
+		}
+
+		@Override
+		void passTables(VarTable ref, FunctionTable fref) throws EvaluateException {
+			super.passTables(ref, fref);
+			slot = name.equals("z") ? Z : ref.indexOf(name);
+		}
+
+		@Override
+		boolean isConstant() {
+			return slot != Z;
+		}
+
+		@Override
+		EvalNode optimize() {
+			return isConstant() ? fold() : this;
+		}
+
+		@Override
+		public String toString() {
+			return name;
 		}
 	}
 
 	public static class EvalNodeFcn extends EvalNode {
 		private String name = null;
 		private EvalNode arg = null;
-		private FunctionTable fcnTable = null;
+		private Function fcn = null;
 
 		public EvalNodeFcn(String name, EvalNode arg) {
 			this.name = new String(name);
@@ -71,16 +174,37 @@ public class Evaluator {
 		}
 
 		@Override
-		public Complex eval() throws EvaluateException {
-			return fcnTable.get(name).eval(arg.eval());
+		public Complex eval(Expression.Context ctx) {
+			return fcn.eval(arg.eval(ctx));
 		}
 
 		@Override
-		void passTables(VarTable ref, FunctionTable fref) {
+		int compile(Program.Assembler asm) {
+			return asm.function(fcn, arg.compile(asm));
+		}
+
+		@Override
+		void passTables(VarTable ref, FunctionTable fref) throws EvaluateException {
 			super.passTables(ref, fref);
-			fcnTable = fref;
+			fcn = fref.get(name);
 			arg.passTables(ref, fref);
 		}
+
+		@Override
+		boolean isConstant() {
+			return arg.isConstant();
+		}
+
+		@Override
+		EvalNode optimize() {
+			arg = arg.optimize();
+			return isConstant() ? fold() : this;
+		}
+
+		@Override
+		public String toString() {
+			return name + "(" + arg + ")";
+		}
 	}
 
 	public static class EvalNodeNeg extends EvalNode {
@@ -91,15 +215,40 @@ public class Evaluator {
 		}
 
 		@Override
-		public Complex eval() throws EvaluateException {
-			return Complex.neg(right.eval());
+		public Complex eval(Expression.Context ctx) {
+			return Complex.neg(right.eval(ctx));
 		}
 
 		@Override
-		void passTables(VarTable ref, FunctionTable fref) {
+		int compile(Program.Assembler asm) {
+			return asm.unary(Program.NEG, right.compile(asm));
+		}
+
+		@Override
+		void passTables(VarTable ref, FunctionTable fref) throws EvaluateException {
 			super.passTables(ref, fref);
 			right.passTables(ref, fref);
 		}
+
+		@Override
+		boolean isConstant() {
+			return right.isConstant();
+		}
+
+		@Override
+		EvalNode optimize() {
+			right = right.optimize();
+			if (isConstant())
+				return fold();
+			if (right instanceof EvalNodeNeg)
+				return ((EvalNodeNeg)right).right;
+			return this;
+		}
+
+		@Override
+		public String toString() {
+			return "(-" + right + ")";
+		}
 	}
 
 	public static class EvalNodeAdd extends EvalNode {
@@ -112,16 +261,49 @@ public class Evaluator {
 		}
 
 		@Override
-		public Complex eval() throws EvaluateException {
-			return Complex.add(left.eval(), right.eval());
+		public Complex eval(Expression.Context ctx) {
+			return Complex.add(left.eval(ctx), right.eval(ctx));
 		}
 
 		@Override
-		void passTables(VarTable ref, FunctionTable fref) {
+		int compile(Program.Assembler asm) {
+			int a = left.compile(asm);
+			return asm.binary(Program.ADD, a, right.compile(asm));
+		}
+
+		@Override
+		void passTables(VarTable ref, FunctionTable fref) throws EvaluateException {
 			super.passTables(ref, fref);
 			left.passTables(ref, fref);
 			right.passTables(ref, fref);
 		}
+
+		@Override
+		boolean isConstant() {
+			return left.isConstant() && right.isConstant();
+		}
+
+		/**
+		 * Besides folding constants, an addition of -0 is removed. An addition of +0 is kept,
+		 * since -0 + 0 is +0 and not -0, which would change eg. the side of a branch cut.
+		 */
+		@Override
+		EvalNode optimize() {
+			left = left.optimize();
+			right = right.optimize();
+			if (isConstant())
+				return fold();
+			if (isSignedZero(left, -0.0))
+				return right;
+			if (isSignedZero(right, -0.0))
+				return left;
+			return this;
+		}
+
+		@Override
+		public String toString() {
+			return "(" + left + " + " + right + ")";
+		}
 	}
 
 	public static class EvalNodeSub extends EvalNode {
@@ -134,16 +316,47 @@ public class Evaluator {
 		}
 
 		@Override
-		public Complex eval() throws EvaluateException {
-			return Complex.sub(left.eval(), right.eval());
+		public Complex eval(Expression.Context ctx) {
+			return Complex.sub(left.eval(ctx), right.eval(ctx));
 		}
 
 		@Override
-		void passTables(VarTable ref, FunctionTable fref) {
+		int compile(Program.Assembler asm) {
+			int a = left.compile(asm);
+			return asm.binary(Program.SUB, a, right.compile(asm));
+		}
+
+		@Override
+		void passTables(VarTable ref, FunctionTable fref) throws EvaluateException {
 			super.passTables(ref, fref);
 			left.passTables(ref, fref);
 			right.passTables(ref, fref);
 		}
+
+		@Override
+		boolean isConstant() {
+			return left.isConstant() && right.isConstant();
+		}
+
+		/**
+		 * Besides folding constants, a subtraction of +0 is removed. A subtraction from zero is
+		 * not replaced by a negation, since 0 - 0 is +0 while -0 is -0.
+		 */
+		@Override
+		EvalNode optimize() {
+			left = left.optimize();
+			right = right.optimize();
+			if (isConstant())
+				return fold();
+			if (isSignedZero(right, 0.0))
+				return left;
+			return this;
+		}
+
+		@Override
+		public String toString() {
+			return "(" + left + " - " + right + ")";
+		}
 	}
 
 	public static class EvalNodeMul extends EvalNode {
@@ -156,16 +369,52 @@ public class Evaluator {
 		}
 
 		@Override
-		public Complex eval() throws EvaluateException {
-			return Complex.mul(left.eval(), right.eval());
+		public Complex eval(Expression.Context ctx) {
+			return Complex.mul(left.eval(ctx), right.eval(ctx));
+		}
+
+		@Override
+		int compile(Program.Assembler asm) {
+			int a = left.compile(asm);
+			return asm.binary(Program.MUL, a, right.compile(asm));
 		}
 
 		@Override
-		void passTables(VarTable ref, FunctionTable fref) {
+		void passTables(VarTable ref, FunctionTable fref) throws EvaluateException {
 			super.passTables(ref, fref);
 			left.passTables(ref, fref);
 			right.passTables(ref, fref);
 		}
+
+		@Override
+		boolean isConstant() {
+			return left.isConstant() && right.isConstant();
+		}
+
+		/**
+		 * Besides folding constants and dropping factors of one, a product with a zero factor is
+		 * replaced by zero. This differs from the unoptimized product only where the other factor
+		 * is infinite or NaN.
+		 */
+		@Override
+		EvalNode optimize() {
+			left = left.optimize();
+			right = right.optimize();
+			if (isConstant())
+				return fold();
+			if (isValue(left, 1.0, 0.0))
+				return right;
+			if (isValue(right, 1.0, 0.0))
+				return left;
+			if (isValue(left, 0.0, 0.0) || isValue(right, 0.0, 0.0))
+				return new EvalNodeVal(new Complex(0.0, 0.0));
+			return this;
+		}
+
+		@Override
+		public String toString() {
+			return "(" + left + " * " + right + ")";
+		}
 	}
 
 	public static class EvalNodeDiv extends EvalNode {
@@ -178,19 +427,54 @@ public class Evaluator {
 		}
 
 		@Override
-		public Complex eval() throws EvaluateException {
-			return Complex.div(left.eval(), right.eval());
+		public Complex eval(Expression.Context ctx) {
+			return Complex.div(left.eval(ctx), right.eval(ctx));
+		}
+
+		@Override
+		int compile(Program.Assembler asm) {
+			int a = left.compile(asm);
+			return asm.binary(Program.DIV, a, right.compile(asm));
 		}
 
 		@Override
-		void passTables(VarTable ref, FunctionTable fref) {
+		void passTables(VarTable ref, FunctionTable fref) throws EvaluateException {
 			super.passTables(ref, fref);
 			left.passTables(ref, fref);
 			right.passTables(ref, fref);
 		}
+
+		@Override
+		boolean isConstant() {
+			return left.isConstant() && right.isConstant();
+		}
+
+		/**
+		 * Division by a nonzero constant is replaced by multiplication with its reciprocal.
+		 */
+		@Override
+		EvalNode optimize() {
+			left = left.optimize();
+			right = right.optimize();
+			if (isConstant())
+				return fold();
+			if (isValue(right, 1.0, 0.0))
+				return left;
+			if (right.isConstant() && !isValue(right, 0.0, 0.0)) {
+				Complex reciprocal = Complex.div(new Complex(1.0, 0.0), right.eval(null));
+				return new EvalNodeMul(left, new EvalNodeVal(reciprocal));
+			}
+			return this;
+		}
+
+		@Override
+		public String toString() {
+			return "(" + left + " / " + right + ")";
+		}
 	}
 
 	public static class EvalNodePow extends EvalNode {
+		private static final int MAX_INTEGER_POWER = 16;
 		private EvalNode left = null;
 		private EvalNode right = null;
 
@@ -200,21 +484,73 @@ public class Evaluator {
 		}
 
 		@Override
-		public Complex eval() throws EvaluateException {
-			return Complex.pow(left.eval(), right.eval());
+		public Complex eval(Expression.Context ctx) {
+			return Complex.pow(left.eval(ctx), right.eval(ctx));
 		}
 
 		@Override
-		void passTables(VarTable ref, FunctionTable fref) {
+		int compile(Program.Assembler asm) {
+			int a = left.compile(asm);
+			return asm.binary(Program.POW, a, right.compile(asm));
+		}
+
+		@Override
+		void passTables(VarTable ref, FunctionTable fref) throws EvaluateException {
 			super.passTables(ref, fref);
 			left.passTables(ref, fref);
 			right.passTables(ref, fref);
 		}
+
+		@Override
+		boolean isConstant() {
+			return left.isConstant() && right.isConstant();
+		}
+
+		/**
+		 * Powers with a small integer exponent are replaced by repeated squaring, which takes
+		 * a handful of multiplications instead of an exponential and a logarithm, and negative
+		 * exponents by the reciprocal of such a product. The squared subtrees are shared.
+		 */
+		@Override
+		EvalNode optimize() {
+			left = left.optimize();
+			right = right.optimize();
+			if (isConstant())
+				return fold();
+			if (!(right instanceof EvalNodeVal))
+				return this;
+			Complex w = ((EvalNodeVal)right).value;
+			if (w.y != 0.0 || w.x != Math.rint(w.x) || Math.abs(w.x) > MAX_INTEGER_POWER)
+				return this;
+			int n = (int)w.x;
+			if (n == 0)
+				return new EvalNodeVal(new Complex(1.0, 0.0));
+			if (n > 0)
+				return power(left, n);
+			return new EvalNodeDiv(new EvalNodeVal(new Complex(1.0, 0.0)), power(left, -n));
+		}
+
+		private static EvalNode power(EvalNode base, int n) {
+			if (n == 1)
+				return base;
+			EvalNode half = power(base, n / 2);
+			EvalNode square = new EvalNodeMul(half, half);
+			return (n % 2 == 0) ? square : new EvalNodeMul(square, base);
+		}
+
+		@Override
+		public String toString() {
+			return "(" + left + " ^ " + right + ")";
+		}
 	}
 
 	private VarTable varTable = null;
 	private FunctionTable fcnTable = null;
-	private EvalNode evalRoot = null;
+	private Backend backend = Backend.PROGRAM;
+	private boolean optimizing = true;
+	private boolean debug = false;
+	private volatile Expression expression = null;
+	private final ThreadLocal<Expression.Context> contexts = new ThreadLocal<>();
 
 	/**
 	 * Initialize the evaluator.
@@ -222,32 +558,189 @@ public class Evaluator {
 	public Evaluator() {
 		varTable = new VarTable();
 		fcnTable = new FunctionTable();
+		if ("bytecode".equalsIgnoreCase(System.getProperty("cplot.backend")))
+			backend = Backend.BYTECODE;
+		else if ("tree".equalsIgnoreCase(System.getProperty("cplot.backend")))
+			backend = Backend.TREE;
+		optimizing = !"false".equalsIgnoreCase(System.getProperty("cplot.optimize"));
+		debug = Boolean.getBoolean("cplot.debug");
+	}
+
+	/**
+	 * Return true if trees are optimized before they are compiled. The default may be changed
+	 * with the system property cplot.optimize.
+	 * @return
+	 */
+	public boolean isOptimizing() {
+		return optimizing;
 	}
 
 	/**
-	 * Set the root of a tree.
+	 * Choose whether trees set after this call are optimized. Constant subtrees are folded,
+	 * small integer powers are computed by multiplication, division by a constant becomes
+	 * multiplication and subtractions of zero and multiplications by one are removed.
+	 * @param optimizing
+	 */
+	public void setOptimizing(boolean optimizing) {
+		this.optimizing = optimizing;
+	}
+
+	/**
+	 * Return the requested backend. The default may be chosen with the system property
+	 * cplot.backend (tree, program or bytecode).
+	 * @return
+	 */
+	public Backend getBackend() {
+		return backend;
+	}
+
+	/**
+	 * Return the backend which is actually used for the current tree.
+	 * @return
+	 */
+	public Backend getActiveBackend() {
+		return expression.getBackend();
+	}
+
+	/**
+	 * Choose the backend and recompile the current tree.
+	 * @param backend the backend, must not be null
+	 */
+	public void setBackend(Backend backend) {
+		assert backend != null;
+		this.backend = backend;
+		if (expression != null)
+			bind(expression.getRoot(), expression.getCanonicalKey() != expression);
+	}
+
+	/**
+	 * Set the root of a tree and compile the tree for the chosen backend. Every variable and
+	 * function of the tree is resolved here once, so evaluation never looks up names. Threads
+	 * which are evaluating the previous expression at the same time are not affected.
 	 * @param root An EvalNode-object which is supposed to be a root of a tree.
+	 * @throws EvaluateException if the tree refers to an unknown variable or function, in which
+	 *                           case the previous expression is kept
 	 */
-	public void setRoot(EvalNode root) {
-		evalRoot = root;
+	public void setRoot(EvalNode root) throws EvaluateException {
 		root.passTables(varTable, fcnTable);
+		if (optimizing) {
+			String before = debug ? root.toString() : null;
+			root = root.optimize();
+			root.passTables(varTable, fcnTable);
+			if (debug)
+				System.out.println("Eval-tree: " + before + "\nOptimized: " + root);
+		}
+		bind(root, optimizing);
+	}
+
+	//
+	// Compile a tree whose names have already been resolved. The variables of a folded tree
+	// have been replaced by their values.
+	//
+	private void bind(EvalNode root, boolean folded) {
+		Program program = null;
+		CompiledExpression compiled = null;
+		if (backend != Backend.TREE) {
+			program = Program.compile(root);
+			if (backend == Backend.BYTECODE)
+				compiled = BytecodeCompiler.compile(program);
+		}
+		expression = new Expression(root, program, compiled, folded);
+	}
+
+	/**
+	 * Return the current expression. The expression is immutable so a thread may keep using it
+	 * with contexts of its own even if the root of the evaluator is changed meanwhile.
+	 * @return
+	 */
+	public Expression getExpression() {
+		return expression;
+	}
+
+	/**
+	 * Return the compiled program or null if the tree could not be compiled.
+	 * @return
+	 */
+	public Program getProgram() {
+		return expression.getProgram();
+	}
+
+	//
+	// Return the calling thread's context for the expression e.
+	//
+	private Expression.Context context(Expression e) {
+		Expression.Context ctx = contexts.get();
+		if (ctx == null || ctx.getExpression() != e) {
+			ctx = e.newContext();
+			contexts.set(ctx);
+		}
+		return ctx;
+	}
+
+	/**
+	 * Evaluates the expression at complex point z = x + iy without allocating anything. Like all
+	 * evaluation methods of the class this one may be called from any number of threads at once.
+	 * @param x the real part of z
+	 * @param y the imaginary part of z
+	 * @param out the real part of the result is written to out[0] and the imaginary part to out[1]
+	 */
+	public void evalAt(double x, double y, double [] out) {
+		Expression e = expression;
+		e.eval(x, y, out, context(e));
+	}
+
+	/**
+	 * Evaluates the expression at a batch of points given as separate arrays of real and
+	 * imaginary parts. See Expression.evalBatch.
+	 * @param re the real parts of the points
+	 * @param im the imaginary parts of the points
+	 * @param outRe the real parts of the results
+	 * @param outIm the imaginary parts of the results
+	 * @param offset index of the first point in all four arrays
+	 * @param len the number of points
+	 */
+	public void evalBatch(double [] re, double [] im, double [] outRe, double [] outIm,
+						  int offset, int len) {
+		Expression e = expression;
+		e.evalBatch(re, im, outRe, outIm, offset, len, context(e));
 	}
 
 	/**
-	 * Evaluates the tree at complex point z.
+	 * Evaluates the expression on a rectangle of the plot matrix. See Expression.evalGrid.
+	 * @param coordinates the plot coordinates
+	 * @param x0 matrix x coordinate of the left edge
+	 * @param y0 matrix y coordinate of the top edge
+	 * @param width width of the rectangle
+	 * @param height height of the rectangle
+	 * @param outRe the real parts of the results, at least width*height long
+	 * @param outIm the imaginary parts of the results, at least width*height long
+	 */
+	public void evalGrid(PlotCoordinates coordinates, int x0, int y0, int width, int height,
+						 double [] outRe, double [] outIm) {
+		Expression e = expression;
+		e.evalGrid(coordinates, x0, y0, width, height, outRe, outIm, context(e));
+	}
+
+	/**
+	 * Evaluates the expression at complex point z.
 	 * @param z A complex number
 	 * @return The result of the evaluation
 	 */
 	public Complex evalAt(Complex z) {
-		try {
-			varTable.set("z", z);
-			return evalRoot.eval();
-		} catch (EvaluateException e) {
-			// This is a programming error, should never happend due to user input.
-			assert false : "Evaluator.evalAt exception should never be caught.";
-			MainWindow.bailOut(e);
-            return null;
-		}
+		double [] out = new double[2];
+		evalAt(z.x, z.y, out);
+		return new Complex(out[0], out[1]);
+	}
+
+	/**
+	 * Evaluates the expression at complex point z by interpreting the tree. This is slower than
+	 * evalAt but serves as the reference the compiled program is tested against.
+	 * @param z A complex number
+	 * @return The result of the evaluation
+	 */
+	public Complex evalTreeAt(Complex z) {
+		Expression e = expression;
+		return e.evalTree(z, context(e));
 	}
 
 }
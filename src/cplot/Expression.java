@@ -0,0 +1,228 @@
+/*
+    Copyright (C) 2016  Petri Aaltonen
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+
+package cplot;
+
+import java.util.Arrays;
+
+/**
+ * A bound and compiled expression. An expression is immutable after construction and all the
+ * mutable state of an evaluation, such as registers and the value of z, lives in a Context.
+ * Any number of threads may therefore evaluate the same expression at the same time as long as
+ * each of them uses a context of its own.
+ * @author Petri Aaltonen
+ */
+public final class Expression {
+
+    private final Evaluator.EvalNode root;
+    private final Program program;
+    private final CompiledExpression compiled;
+    private final Object canonicalKey;
+    private final BlockKernels kernels = BlockKernels.getInstance();
+
+    /**
+     * Initialize an expression.
+     * @param root the root of a tree which is already bound to its tables, must not be null
+     * @param program the compiled program or null if the tree is interpreted
+     * @param compiled the generated class or null if it is not used
+     * @param folded true if the variables of the tree have been folded into constants
+     */
+    Expression(Evaluator.EvalNode root, Program program, CompiledExpression compiled, boolean folded) {
+        assert root != null : "root is null in Expression constructor";
+        assert compiled == null || program != null : "compiled requires program in Expression constructor";
+        this.root = root;
+        this.program = program;
+        this.compiled = compiled;
+        this.canonicalKey = folded ? getBackend() + " " + root : this;
+    }
+
+    /**
+     * Return a key which is equal for expressions which compute the same values, eg. when the
+     * same formula is entered again. If the variables of the tree have been folded into
+     * constants, the key is the tree in infix notation and the backend, otherwise the value of
+     * a variable may change and the key is the expression itself.
+     * @return
+     */
+    public Object getCanonicalKey() {
+        return canonicalKey;
+    }
+
+    /**
+     * Return the root of the tree.
+     * @return
+     */
+    Evaluator.EvalNode getRoot() {
+        return root;
+    }
+
+    /**
+     * Return the compiled program or null if the tree is interpreted.
+     * @return
+     */
+    public Program getProgram() {
+        return program;
+    }
+
+    /**
+     * Return the backend which evaluates the expression.
+     * @return
+     */
+    public Evaluator.Backend getBackend() {
+        if (compiled != null) return Evaluator.Backend.BYTECODE;
+        if (program != null) return Evaluator.Backend.PROGRAM;
+        return Evaluator.Backend.TREE;
+    }
+
+    /**
+     * Return a new evaluation context for this expression. A context must not be used by two
+     * threads at the same time.
+     * @return
+     */
+    public Context newContext() {
+        return new Context(this);
+    }
+
+    /**
+     * Evaluates the expression at complex point z = x + iy without allocating anything unless
+     * the tree is interpreted.
+     * @param x the real part of z
+     * @param y the imaginary part of z
+     * @param out the real part of the result is written to out[0] and the imaginary part to out[1]
+     * @param ctx a context of this expression owned by the calling thread
+     */
+    public void eval(double x, double y, double [] out, Context ctx) {
+        assert ctx.expression == this : "context of another expression in Expression.eval";
+        if (compiled != null) {
+            compiled.eval(x, y, out);
+        }
+        else if (program != null) {
+            program.eval(x, y, ctx.registers, out);
+        }
+        else {
+            Complex w = evalTree(new Complex(x, y), ctx);
+            out[0] = w.x;
+            out[1] = w.y;
+        }
+    }
+
+    /**
+     * Evaluates the expression at a batch of points given as separate arrays of real and
+     * imaginary parts. The points are pushed through the program a block at a time so that
+     * every operation runs as a tight loop over the block. The input and output arrays may be
+     * the same arrays.
+     * @param re the real parts of the points
+     * @param im the imaginary parts of the points
+     * @param outRe the real parts of the results
+     * @param outIm the imaginary parts of the results
+     * @param offset index of the first point in all four arrays
+     * @param len the number of points
+     * @param ctx a context of this expression owned by the calling thread
+     */
+    public void evalBatch(double [] re, double [] im, double [] outRe, double [] outIm,
+                          int offset, int len, Context ctx) {
+        assert ctx.expression == this : "context of another expression in Expression.evalBatch";
+        if (program == null) {
+            for (int i = offset; i < offset + len; i++) {
+                Complex w = evalTree(new Complex(re[i], im[i]), ctx);
+                outRe[i] = w.x;
+                outIm[i] = w.y;
+            }
+            return;
+        }
+        if (ctx.blockRegisters == null)
+            ctx.blockRegisters = program.newBlockRegisters();
+        double [][] r = ctx.blockRegisters;
+        int result = program.getResultSlot();
+        for (int start = offset; start < offset + len; start += Program.BLOCK_SIZE) {
+            int n = Math.min(Program.BLOCK_SIZE, offset + len - start);
+            System.arraycopy(re, start, r[0], 0, n);
+            System.arraycopy(im, start, r[1], 0, n);
+            program.evalBlock(r, n, kernels);
+            System.arraycopy(r[result], 0, outRe, start, n);
+            System.arraycopy(r[result + 1], 0, outIm, start, n);
+        }
+    }
+
+    /**
+     * Evaluates the expression on a rectangle of the plot matrix. The results are stored row by
+     * row, the value of matrix point (x0 + i, y0 + j) at index j*width + i.
+     * @param coordinates the plot coordinates
+     * @param x0 matrix x coordinate of the left edge
+     * @param y0 matrix y coordinate of the top edge
+     * @param width width of the rectangle
+     * @param height height of the rectangle
+     * @param outRe the real parts of the results, at least width*height long
+     * @param outIm the imaginary parts of the results, at least width*height long
+     * @param ctx a context of this expression owned by the calling thread
+     */
+    public void evalGrid(PlotCoordinates coordinates, int x0, int y0, int width, int height,
+                         double [] outRe, double [] outIm, Context ctx) {
+        for (int i = 0; i < width; i++)
+            outRe[i] = coordinates.matToRe(x0 + i);
+        for (int j = 0; j < height; j++) {
+            if (j > 0)
+                System.arraycopy(outRe, 0, outRe, j * width, width);
+            Arrays.fill(outIm, j * width, (j + 1) * width, coordinates.matToIm(y0 + j));
+        }
+        evalBatch(outRe, outIm, outRe, outIm, 0, width * height, ctx);
+    }
+
+    /**
+     * Evaluates the expression at complex point z by interpreting the tree.
+     * @param z A complex number
+     * @param ctx a context of this expression owned by the calling thread
+     * @return The result of the evaluation
+     */
+    public Complex evalTree(Complex z, Context ctx) {
+        ctx.z = z;
+        return root.eval(ctx);
+    }
+
+    /**
+     * Return the tree of the expression in infix notation with every operation parenthesized.
+     * @return
+     */
+    @Override
+    public String toString() {
+        return root.toString();
+    }
+
+    /**
+     * The mutable state of evaluating an expression on one thread: the value of z for the tree
+     * interpreter and the registers of the program.
+     */
+    public static final class Context {
+        private final Expression expression;
+        private final double [] registers;
+        private double [][] blockRegisters = null;
+        Complex z = null;
+
+        private Context(Expression expression) {
+            this.expression = expression;
+            this.registers = (expression.program != null) ? expression.program.newRegisters() : null;
+        }
+
+        /**
+         * Return the expression this context belongs to.
+         * @return
+         */
+        public Expression getExpression() {
+            return expression;
+        }
+    }
+
+}
@@ -0,0 +1,31 @@
+/*
+    Copyright (C) 2016  Petri Aaltonen
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+
+package cplot;
+
+/**
+ * Used as a callback in the middle of computing a plot when a part of the plot, such as the
+ * visible viewport, is ready to be shown. The pixels themselves reach the plot image as
+ * tiles, see Plot.getTilePublisher. Called on the event dispatch thread.
+ * @author Petri Aaltonen
+ */
+@FunctionalInterface
+public interface FrameCallback {
+
+    void callback(PlotWorker workerRef);
+
+}
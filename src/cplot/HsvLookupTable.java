@@ -0,0 +1,115 @@
+/*
+    Copyright (C) 2016  Petri Aaltonen
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+
+package cplot;
+
+/**
+ * A table of packed RGB values of HSV colors sampled on a regular grid. A lookup rounds the
+ * hue, saturation and value to the nearest grid point, which replaces the conversion done by
+ * Coloring.hsvToRgb with a multiplication and an array access per channel. The error of a
+ * channel is bounded by the change of the exact color over half a grid step.
+ *
+ * A table is immutable and may be shared by any number of colorings and threads.
+ * @author Petri Aaltonen
+ */
+public final class HsvLookupTable {
+
+    public static final int DEFAULT_HUE_STEPS = 256;
+    public static final int DEFAULT_SATURATION_STEPS = 32;
+    public static final int DEFAULT_VALUE_STEPS = 32;
+
+    private final int hueSteps;
+    private final int saturationSteps;
+    private final int valueSteps;
+    private final double hueScale;
+    private final int [] table;
+
+    /**
+     * Initialize a table with the default resolution.
+     */
+    public HsvLookupTable() {
+        this(DEFAULT_HUE_STEPS, DEFAULT_SATURATION_STEPS, DEFAULT_VALUE_STEPS);
+    }
+
+    /**
+     * Initialize a table. The hue range [0, 2*pi) and the saturation and value ranges [0, 1]
+     * are divided into the given number of steps.
+     * @param hueSteps the number of hue steps, must be positive
+     * @param saturationSteps the number of saturation steps, must be positive
+     * @param valueSteps the number of value steps, must be positive
+     */
+    public HsvLookupTable(int hueSteps, int saturationSteps, int valueSteps) {
+        if (hueSteps < 1 || saturationSteps < 1 || valueSteps < 1)
+            throw new IllegalArgumentException("the number of steps must be positive in HsvLookupTable.HsvLookupTable");
+        this.hueSteps = hueSteps;
+        this.saturationSteps = saturationSteps;
+        this.valueSteps = valueSteps;
+        this.hueScale = hueSteps / (2.0 * Math.PI);
+        this.table = new int[hueSteps * (saturationSteps + 1) * (valueSteps + 1)];
+        for (int i = 0; i < hueSteps; i++)
+            for (int j = 0; j <= saturationSteps; j++)
+                for (int k = 0; k <= valueSteps; k++)
+                    table[index(i, j, k)] = Coloring.hsvToRgb(
+                            2.0 * Math.PI * i / hueSteps,
+                            (double)j / saturationSteps,
+                            (double)k / valueSteps);
+    }
+
+    /**
+     * Parse a table resolution of the form HUExSATURATIONxVALUE, eg. 256x32x32.
+     * @param resolution the resolution
+     * @return a new table
+     * @throws IllegalArgumentException if the string is not a valid resolution
+     */
+    public static HsvLookupTable parse(String resolution) {
+        String [] steps = resolution.trim().split("x");
+        if (steps.length != 3)
+            throw new IllegalArgumentException("invalid resolution in HsvLookupTable.parse");
+        return new HsvLookupTable(Integer.parseInt(steps[0]), Integer.parseInt(steps[1]),
+                Integer.parseInt(steps[2]));
+    }
+
+    private int index(int h, int s, int v) {
+        return (h * (saturationSteps + 1) + s) * (valueSteps + 1) + v;
+    }
+
+    /**
+     * Return the packed RGB value of the grid point nearest to the color.
+     * @param h Hue in range [0, 2*pi)
+     * @param s Saturation in range [0, 1]
+     * @param v Value in range [0, 1]
+     * @return packed RGB value
+     */
+    public int lookup(double h, double s, double v) {
+        int i = (int)(h * hueScale + 0.5);
+        if (i >= hueSteps || i < 0) i = Math.floorMod(i, hueSteps);
+        int j = (int)(s * saturationSteps + 0.5);
+        if (j > saturationSteps) j = saturationSteps;
+        else if (j < 0) j = 0;
+        int k = (int)(v * valueSteps + 0.5);
+        if (k > valueSteps) k = valueSteps;
+        else if (k < 0) k = 0;
+        return table[index(i, j, k)];
+    }
+
+    public int getHueSteps() { return hueSteps; }
+
+    public int getSaturationSteps() { return saturationSteps; }
+
+    public int getValueSteps() { return valueSteps; }
+
+}
@@ -51,6 +51,8 @@ public class MainWindow extends JFrame {
 	private JMenu plotMenu;
 	private JMenuItem newPlot;
 	private JMenuItem limitsItem;
+	private JMenuItem backItem;
+	private JMenuItem forwardItem;
 	private JMenu coloringMenu;
 	private JMenu leftMouseButtonMenu;
 	private JRadioButtonMenuItem scanMenuItem;
@@ -58,6 +60,7 @@ public class MainWindow extends JFrame {
 	private JCheckBoxMenuItem boxItem;
 	private JCheckBoxMenuItem crosshairItem;
 	private JCheckBoxMenuItem toolTipItem;
+	private JCheckBoxMenuItem dyadicItem;
 	//private JMenu helpMenu;
 	//private JMenuItem aboutItem;
 	private HashMap<String, JMenuItem> coloringItems = null;
@@ -117,7 +120,7 @@ public class MainWindow extends JFrame {
 
         parser = new Parser();
         try { evaluator.setRoot(parser.parseStatement(DEFAULT_EXPRESSION)); }
-        catch (ParserException e) { bailOut(e); }
+        catch (ParserException | EvaluateException e) { bailOut(e); }
 
 		try { panel.updateBackgroundImage(); }
 		catch (PlotException e) { bailOut(e); }
@@ -155,6 +158,19 @@ public class MainWindow extends JFrame {
 		limitsItem.addActionListener(event -> onSetLimitsMenuItemClick());
 		plotMenu.add(limitsItem);
 
+		backItem = new JMenuItem("Back");
+		backItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_LEFT, InputEvent.ALT_DOWN_MASK));
+		backItem.addActionListener(event -> onBackMenuItemClick());
+		backItem.setEnabled(false);
+		plotMenu.add(backItem);
+
+		forwardItem = new JMenuItem("Forward");
+		forwardItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_RIGHT, InputEvent.ALT_DOWN_MASK));
+		forwardItem.addActionListener(event -> onForwardMenuItemClick());
+		forwardItem.setEnabled(false);
+		plotMenu.add(forwardItem);
+		plot.addStartCallback(() -> updateHistoryItems());
+
 		coloringMenu = new JMenu("Coloring");
 		String [] coloringNames = plot.listColoring();
 		coloringItems = new HashMap<String, JMenuItem>(2*coloringNames.length);
@@ -197,6 +213,11 @@ public class MainWindow extends JFrame {
 		toolTipItem.setState(true);
 		plotMenu.add(toolTipItem);
 
+		dyadicItem = new JCheckBoxMenuItem("Snap zoom to powers of two");
+		dyadicItem.addActionListener(event -> onDyadicMenuItemClick(event));
+		dyadicItem.setState(plot.isDyadic());
+		plotMenu.add(dyadicItem);
+
 		//helpMenu = new JMenu("Help");
 		//aboutItem = new JMenuItem("About");
 		//helpMenu.add(aboutItem);
@@ -299,6 +320,37 @@ public class MainWindow extends JFrame {
 		});
 	}
 
+	/**
+	 * Respond to the user clicking the back menu item.
+	 */
+	private void onBackMenuItemClick() {
+		plot.back();
+		onHistoryMoved();
+	}
+
+	/**
+	 * Respond to the user clicking the forward menu item.
+	 */
+	private void onForwardMenuItemClick() {
+		plot.forward();
+		onHistoryMoved();
+	}
+
+	private void onHistoryMoved() {
+		try { panel.updateBackgroundImage(); }
+		catch (PlotException e) { bailOut(e); }
+		panel.repaint();
+		updateHistoryItems();
+	}
+
+	/**
+	 * Enable the back and forward menu items if there is a view to move to.
+	 */
+	private void updateHistoryItems() {
+		backItem.setEnabled(plot.canGoBack());
+		forwardItem.setEnabled(plot.canGoForward());
+	}
+
 	/**
 	 * Respond to the user clicking one of the coloring options menu item.
 	 * @param e
@@ -362,6 +414,14 @@ public class MainWindow extends JFrame {
 		panel.repaint();
 	}
 
+	/**
+	 * Respond to the user clicking the snap zoom checkbox menu item.
+	 * @param e
+     */
+	private void onDyadicMenuItemClick(ActionEvent e) {
+		plot.setDyadic(((JCheckBoxMenuItem)e.getSource()).getState());
+	}
+
 	/**
 	 * Make a new plot.
 	 * @param params parameters for the new plot
@@ -385,6 +445,11 @@ public class MainWindow extends JFrame {
 			JOptionPane.showMessageDialog(this, msg, "Invalid expression",
 					JOptionPane.ERROR_MESSAGE);
 		}
+		catch (EvaluateException e) {
+			String msg = "Expression can not be evaluated:\n" + e.getMessage();
+			JOptionPane.showMessageDialog(this, msg, "Invalid expression",
+					JOptionPane.ERROR_MESSAGE);
+		}
 		catch (PlotException e) {
 			bailOut(e);
 		}
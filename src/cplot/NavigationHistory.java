@@ -0,0 +1,201 @@
+/*
+    Copyright (C) 2016  Petri Aaltonen
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+
+package cplot;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+
+/**
+ * The views the user has navigated away from, as in the back and forward buttons of a web
+ * browser. Each entry remembers the coordinates of its view and may also keep the pixels and
+ * the values of its plot, so that returning to the view does not need to compute anything.
+ *
+ * The number of entries and the memory their plots take are bounded. When the plots exceed the
+ * budget, the plots of the least recently used entries are dropped, the values of an entry
+ * before its pixels. An entry without pixels is computed again when it is returned to.
+ * @author Petri Aaltonen
+ */
+public class NavigationHistory {
+
+    /**
+     * A view of the plot and, optionally, its rendered plot.
+     */
+    public static final class Entry {
+        private final PlotCoordinates coordinates;
+        private final Expression expression;
+        private final Coloring coloring;
+        private int [] pixels;
+        private ValueBuffer values;
+        private long lastUsed = 0;
+
+        /**
+         * Initialize an entry.
+         * @param coordinates the coordinates of the view, copied
+         * @param expression the expression of the plot
+         * @param coloring the coloring of the pixels or null if there are none
+         * @param pixels the packed RGB values of the matrix row by row or null
+         * @param values the values of the matrix or null
+         */
+        public Entry(PlotCoordinates coordinates, Expression expression, Coloring coloring,
+                     int [] pixels, ValueBuffer values) {
+            assert pixels == null || coloring != null : "pixels without coloring in NavigationHistory.Entry";
+            this.coordinates = new PlotCoordinates(coordinates);
+            this.expression = expression;
+            this.coloring = coloring;
+            this.pixels = pixels;
+            this.values = values;
+        }
+
+        public PlotCoordinates getCoordinates() { return new PlotCoordinates(coordinates); }
+
+        public Expression getExpression() { return expression; }
+
+        public Coloring getColoring() { return coloring; }
+
+        /**
+         * Return the pixels of the plot or null if they are not kept.
+         * @return
+         */
+        public int [] getPixels() { return pixels; }
+
+        /**
+         * Return the values of the plot or null if they are not kept.
+         * @return
+         */
+        public ValueBuffer getValues() { return values; }
+
+        long getByteCount() {
+            long n = (pixels != null) ? 4L * pixels.length : 0L;
+            if (values != null) n += values.getByteCount();
+            return n;
+        }
+    }
+
+    private final int capacity;
+    private long budget;
+    private final Deque<Entry> back = new ArrayDeque<>();
+    private final Deque<Entry> forward = new ArrayDeque<>();
+    private long clock = 0;
+
+    /**
+     * Initialize an empty history.
+     * @param capacity the largest number of entries in each direction, must be positive
+     * @param budget the largest total number of bytes of the plots kept, must not be negative
+     */
+    public NavigationHistory(int capacity, long budget) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("capacity < 1 in NavigationHistory.NavigationHistory");
+        if (budget < 0)
+            throw new IllegalArgumentException("budget < 0 in NavigationHistory.NavigationHistory");
+        this.capacity = capacity;
+        this.budget = budget;
+    }
+
+    /**
+     * Change the budget and drop the plots which no longer fit, see evict.
+     * @param budget the largest total number of bytes of the plots kept, must not be negative
+     */
+    public void setBudget(long budget) {
+        if (budget < 0)
+            throw new IllegalArgumentException("budget < 0 in NavigationHistory.setBudget");
+        this.budget = budget;
+        evict();
+    }
+
+    /**
+     * Remember the view which is left for a new one. The forward entries are forgotten.
+     * @param current the view which is left
+     */
+    public void push(Entry current) {
+        forward.clear();
+        add(back, current);
+    }
+
+    /**
+     * Return to the previous view.
+     * @param current the view which is left, it becomes the first forward entry
+     * @return the previous view or null if there is none
+     */
+    public Entry back(Entry current) {
+        return move(back, forward, current);
+    }
+
+    /**
+     * Return to the view left by back.
+     * @param current the view which is left, it becomes the first back entry
+     * @return the next view or null if there is none
+     */
+    public Entry forward(Entry current) {
+        return move(forward, back, current);
+    }
+
+    private Entry move(Deque<Entry> from, Deque<Entry> to, Entry current) {
+        if (from.isEmpty()) return null;
+        Entry entry = from.pop();
+        add(to, current);
+        entry.lastUsed = ++clock;
+        return entry;
+    }
+
+    private void add(Deque<Entry> to, Entry entry) {
+        entry.lastUsed = ++clock;
+        to.push(entry);
+        if (to.size() > capacity)
+            to.removeLast();
+        evict();
+    }
+
+    /**
+     * Drop the plots of the least recently used entries until the plots fit in the budget. The
+     * values of an entry, which take four times as much memory as its pixels, are dropped first.
+     */
+    private void evict() {
+        long bytes = getByteCount();
+        while (bytes > budget) {
+            Entry lru = null;
+            for (Deque<Entry> deque : Arrays.asList(back, forward))
+                for (Entry e : deque)
+                    if (e.getByteCount() > 0 && (lru == null || e.lastUsed < lru.lastUsed))
+                        lru = e;
+            if (lru == null) return;
+            bytes -= lru.getByteCount();
+            if (lru.values != null)
+                lru.values = null;
+            else
+                lru.pixels = null;
+            bytes += lru.getByteCount();
+        }
+    }
+
+    public boolean canGoBack() { return !back.isEmpty(); }
+
+    public boolean canGoForward() { return !forward.isEmpty(); }
+
+    /**
+     * Return the total number of bytes of the plots kept.
+     * @return
+     */
+    public long getByteCount() {
+        long n = 0;
+        for (Entry e : back) n += e.getByteCount();
+        for (Entry e : forward) n += e.getByteCount();
+        return n;
+    }
+
+}
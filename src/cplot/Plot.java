@@ -18,12 +18,19 @@
 package cplot;
 
 import javax.swing.*;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Point;
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Flow;
+import java.util.concurrent.SubmissionPublisher;
 
 /**
  * Handle plotting a complex function.
@@ -35,8 +42,18 @@ public class Plot {
     private final int MIN_MATRIX_XSIZE = 50;
     private final int MIN_MATRIX_YSIZE = 50;
 
-    // An AWT-image
+    // An AWT-image and the coordinates of the matrix it shows. While a plot is being computed,
+    // the finished tiles are drawn into it.
     private BufferedImage plot = null;
+    private PlotCoordinates imageCoordinates = null;
+
+    // The pattern shown where the plot has not been computed yet.
+    private static final int PLACEHOLDER_SIZE = 16;
+    private static final Color PLACEHOLDER_LIGHT = new Color(204, 204, 204);
+    private static final Color PLACEHOLDER_DARK = new Color(179, 179, 179);
+
+    // The values of the expression the image was colored from.
+    private ValueBuffer values = null;
 
     // The plot coordinates
     private PlotCoordinates coordinates = null;
@@ -49,13 +66,67 @@ public class Plot {
     // a plot.
     private Evaluator evaluator = null;
 
-    // A PlotWorker-instance
-    private PlotWorker worker = null;
+    // The last worker which finished without being cancelled, the latest worker and the
+    // matrix it computes, and the scheduler which starts new workers.
+    private PlotWorker finished = null;
+    private PlotWorker current = null;
+    private PlotCoordinates currentMatrix = null;
+    private final RenderScheduler scheduler = new RenderScheduler();
+
+    // Publishes the tiles of the current worker as they are finished. The buffer of each
+    // subscriber is bounded, so a slow subscriber holds back the render threads.
+    private final SubmissionPublisher<RenderedTile> tiles = new SubmissionPublisher<>();
+
+    // The viewport point the tiles are rendered outward from, or null for the center.
+    private Point focus = null;
+
+    // The values of the recent plots, which a plot zoomed by a power of two partly reuses. The
+    // budget in megabytes may be given with the system property cplot.samples. By default it is
+    // 256 megabytes or the values of two matrices of the current size, whichever is larger.
+    private final SampleStore samples = new SampleStore(budget("cplot.samples", 256L, 0L));
+    private boolean samplesRejected = false;
+
+    // The rendered tiles of the recent plots, which a plot returning to a region, a coloring or
+    // a zoom level copies. The budget in megabytes may be given with the system property
+    // cplot.tiles.
+    private final TileCache tileCache = new TileCache(
+            Math.max(0L, Long.getLong("cplot.tiles", 128L)) << 20);
+
+    // The views navigated away from. The budget in megabytes of the plots kept with them may be
+    // given with the system property cplot.history. By default it is 128 megabytes or the
+    // pixels and values of two plots of the current size, whichever is larger. The entry being
+    // returned to, if any, is shown by the next worker, and scanning is true while the viewport
+    // is dragged.
+    private static final int HISTORY_CAPACITY = 50;
+    private final NavigationHistory history = new NavigationHistory(HISTORY_CAPACITY,
+            budget("cplot.history", 128L, 0L));
+    private NavigationHistory.Entry restored = null;
+    private boolean scanning = false;
+
+    // Computes the views likely to be visited next while the plot is idle. The budget in
+    // megabytes of their values may be given with the system property cplot.prefetch. By
+    // default it is 64 megabytes or the values of two matrices of the current size, whichever
+    // is larger. The direction of the last scan is the sum of its moves.
+    private final Prefetcher prefetcher = new Prefetcher(scheduler, budget("cplot.prefetch", 64L, 0L));
+    private int panX = 0;
+    private int panY = 0;
+    private final boolean debug = Boolean.getBoolean("cplot.debug");
+
+    // The rendering engine and the tile renderer used by the parallel engine. The engine and
+    // the number of render threads may be chosen with the system properties cplot.engine
+    // (serial or parallel) and cplot.threads.
+    private PlotWorker.Engine engine = PlotWorker.Engine.PARALLEL;
+    private TileRenderer renderer = null;
+
+    // Whether the viewport is computed in progressively finer passes, see the system property
+    // cplot.progressive.
+    private boolean progressive = true;
 
     // A list of callbacks
     private ArrayList<StartCallback> startCallbacks = null;
     private ArrayList<DoneCallback> doneCallbacks = null;
     private ArrayList<ProgressChangedCallback> progressChangedCallbacks = null;
+    private ArrayList<FrameCallback> frameCallbacks = null;
 
     // Variables used in measuring the time to make the computation.
     private long startTime;
@@ -76,14 +147,83 @@ public class Plot {
         coloringList[3] = new BRYColoring();
         coloringList[4] = new BRYSColoring();
 
+        // The colorings may look their colors up from a table, see the system property cplot.lut.
+        String lut = System.getProperty("cplot.lut");
+        if (lut != null && !"false".equalsIgnoreCase(lut)) {
+            try {
+                HsvLookupTable table = "true".equalsIgnoreCase(lut)
+                        ? new HsvLookupTable() : HsvLookupTable.parse(lut);
+                for (Coloring c : coloringList)
+                    c.setLookupTable(table);
+            } catch (IllegalArgumentException e) {
+                // An invalid resolution, keep computing the colors exactly.
+            }
+        }
+
         activeColoring = coloringList[0];
 
         startCallbacks = new ArrayList<>(4);
         doneCallbacks = new ArrayList<>(4);
         progressChangedCallbacks = new ArrayList<>(4);
+        frameCallbacks = new ArrayList<>(4);
 
         this.evaluator = evaluator;
         coordinates = new PlotCoordinates(100, 100);
+
+        if ("serial".equalsIgnoreCase(System.getProperty("cplot.engine")))
+            engine = PlotWorker.Engine.SERIAL;
+        if ("false".equalsIgnoreCase(System.getProperty("cplot.progressive")))
+            progressive = false;
+        coordinates.setDyadic(Boolean.getBoolean("cplot.dyadic"));
+        renderer = new TileRenderer(
+                Integer.getInteger("cplot.threads", Runtime.getRuntime().availableProcessors()),
+                TileRenderer.DEFAULT_TILE_SIZE);
+    }
+
+    /**
+     * Return the rendering engine.
+     * @return
+     */
+    public PlotWorker.Engine getEngine() { return engine; }
+
+    /**
+     * Choose the rendering engine used by subsequent computations.
+     * @param engine the engine, must not be null
+     */
+    public void setEngine(PlotWorker.Engine engine) {
+        assert engine != null;
+        this.engine = engine;
+    }
+
+    /**
+     * Return true if the viewport is computed in progressively finer passes.
+     * @return
+     */
+    public boolean isProgressive() { return progressive; }
+
+    /**
+     * Choose whether subsequent computations show coarse passes of the viewport before the
+     * full resolution plot.
+     * @param progressive
+     */
+    public void setProgressive(boolean progressive) {
+        this.progressive = progressive;
+    }
+
+    /**
+     * Return true if zooming snaps the limits to a dyadic lattice.
+     * @return
+     */
+    public boolean isDyadic() { return coordinates.isDyadic(); }
+
+    /**
+     * Choose whether zooming snaps the spacing of the points to the spacing of the last plot
+     * whose limits were set, times a power of two. A plot zoomed in or out by a power of two
+     * then reuses the points it shares with the earlier plots.
+     * @param dyadic
+     */
+    public void setDyadic(boolean dyadic) {
+        coordinates.setDyadic(dyadic);
     }
 
     /**
@@ -104,7 +244,8 @@ public class Plot {
     public String getColoring() { return new String(activeColoring.getName()); }
 
     /**
-     * Set the active coloring model.
+     * Set the active coloring model. If the values of the current plot are still valid they are
+     * only colored again, otherwise the plot is computed anew.
      * @param coloring name of the coloring model
      * @throws PlotException if 'coloring' does not correspond to a valid coloring model name
      */
@@ -120,15 +261,57 @@ public class Plot {
     }
 
     /**
-     * Resize the matrix.
+     * Resize the matrix. If the size does not change, the values of the current plot are still
+     * valid and they are only colored again.
      * @param width
      * @param height
      */
     public void resize(int width, int height) {
         coordinates.resize(width, height);
+        updateBudgets();
+        restored = null;
         computeMatrix();
     }
 
+    /**
+     * Return the budget in bytes of the memory a cache may take. The budget may be given in
+     * megabytes with a system property. Otherwise it is the default or the number of bytes the
+     * current matrix needs, whichever is larger.
+     * @param property the name of the system property
+     * @param megabytes the default budget in megabytes
+     * @param needed the number of bytes the current matrix needs
+     * @return
+     */
+    private static long budget(String property, long megabytes, long needed) {
+        Long given = Long.getLong(property);
+        if (given != null)
+            return Math.max(0L, given) << 20;
+        return Math.max(megabytes << 20, needed);
+    }
+
+    /**
+     * Grow or shrink the budgets not given with system properties to the size of the matrix.
+     */
+    private void updateBudgets() {
+        long points = (long)coordinates.getMatrixWidth() * coordinates.getMatrixHeight();
+        samples.setBudget(budget("cplot.samples", 256L, 2 * 16 * points));
+        history.setBudget(budget("cplot.history", 128L, 2 * 20 * points));
+        prefetcher.setBudget(budget("cplot.prefetch", 64L, 2 * 16 * points));
+    }
+
+    /**
+     * Add values to the sample store of the plot. A budget given with cplot.samples may be too
+     * small for a whole matrix, which is told once.
+     * @param values the values of a finished plot
+     */
+    private void addSamples(ValueBuffer values) {
+        if (samples.add(values) || samplesRejected) return;
+        samplesRejected = true;
+        System.out.println("cplot.samples: a matrix of " + (values.getByteCount() >> 20)
+                + " MB does not fit in the budget of " + (samples.getBudget() >> 20)
+                + " MB, zoomed plots compute all their points");
+    }
+
     /**
      * Reset the x and y limits.
      * @param xmin must be strictly less than xmax
@@ -138,7 +321,9 @@ public class Plot {
      * @throws PlotException
      */
     public void setLimits(double xmin, double xmax, double ymin, double ymax) throws PlotException {
+        NavigationHistory.Entry current = currentView();
         coordinates.setLimits(xmin, xmax, ymin, ymax);
+        remember(current);
         computeMatrix();
     }
 
@@ -150,17 +335,37 @@ public class Plot {
      * @param y2
      */
     public void zoom(int x1, int y1, int x2, int y2) {
+        remember(currentView());
         coordinates.zoom(x1, y1, x2, y2);
         computeMatrix();
     }
 
+    /**
+     * Zoom the plot by a factor around a point of the viewport.
+     * @param x
+     * @param y
+     * @param factor greater than one to zoom in and less than one to zoom out
+     */
+    public void zoom(int x, int y, double factor) {
+        remember(currentView());
+        coordinates.zoom(x, y, factor);
+        computeMatrix();
+    }
+
     /**
      * Scan the plot.
      * @param dx
      * @param dy
      */
     public void scan(int dx, int dy) {
-        coordinates.scan(dx, dy);
+        if (!scanning) {
+            remember(currentView());
+            scanning = true;
+        }
+        panX += dx;
+        panY += dy;
+        if (coordinates.pan(dx, dy))
+            computeMatrix();
     }
 
     /**
@@ -168,10 +373,98 @@ public class Plot {
      * TODO: Shouldn't Plot do this?
      */
     public void postScanUpdate() {
+        scanning = false;
         coordinates.postScanUpdate();
         computeMatrix();
     }
 
+    /**
+     * Return true if there is a view to go back to.
+     * @return
+     */
+    public boolean canGoBack() { return history.canGoBack(); }
+
+    /**
+     * Return true if there is a view to go forward to.
+     * @return
+     */
+    public boolean canGoForward() { return history.canGoForward(); }
+
+    /**
+     * Return to the previous view. If its plot is still kept by the history it is shown as it
+     * is, otherwise it is computed again.
+     */
+    public void back() {
+        restore(history.back(currentView()));
+    }
+
+    /**
+     * Return to the view left by back.
+     */
+    public void forward() {
+        restore(history.forward(currentView()));
+    }
+
+    /**
+     * Return the entry of the current view for the history. The entry keeps the plot if it has
+     * been computed for the current view.
+     * @return
+     */
+    private NavigationHistory.Entry currentView() {
+        Expression expression = evaluator.getExpression();
+        PlotWorker p = finished;
+        if (p != null && p == current && p.getPixels() != null && p.getMissing().isEmpty()
+                && p.getValues() != null && p.getValues().matches(expression, coordinates))
+            return new NavigationHistory.Entry(coordinates, expression, p.getColoring(),
+                    p.getPixels(), p.getValues());
+        return new NavigationHistory.Entry(coordinates, expression, null, null, null);
+    }
+
+    /**
+     * Remember a view which is left for another one.
+     * @param view
+     */
+    private void remember(NavigationHistory.Entry view) {
+        history.push(view);
+        restored = null;
+        panX = 0;
+        panY = 0;
+    }
+
+    /**
+     * Return to a view of the history. The plot of the view is used if it has been kept and the
+     * expression has not changed since. Views of another size are only scaled to the size of
+     * the matrix.
+     * @param view the view or null to do nothing
+     */
+    private void restore(NavigationHistory.Entry view) {
+        if (view == null) return;
+        panX = 0;
+        panY = 0;
+        PlotCoordinates c = view.getCoordinates();
+        boolean sameSize = c.getViewportWidth() == coordinates.getViewportWidth()
+                && c.getViewportHeight() == coordinates.getViewportHeight();
+        if (sameSize) {
+            boolean dyadic = coordinates.isDyadic();
+            coordinates.set(c);
+            coordinates.setDyadic(dyadic);
+        }
+        else {
+            try { coordinates.setLimits(c.getXmin(), c.getXmax(), c.getYmin(), c.getYmax()); }
+            catch (PlotException e) { assert false : "Should be unreachable"; }
+        }
+        restored = null;
+        if (sameSize && view.getExpression() == evaluator.getExpression()) {
+            if (view.getValues() != null) {
+                values = view.getValues();
+                addSamples(values);
+            }
+            if (view.getPixels() != null)
+                restored = view;
+        }
+        computeMatrix();
+    }
+
     /**
      * Reset the viewport.
      */
@@ -228,39 +521,281 @@ public class Plot {
         progressChangedCallbacks.add(callback);
     }
 
+    /**
+     * Add a new FrameCallback which is called when a pass of a progressive plot is ready, or
+     * when the viewport of a plot is ready and the same worker still computes the margin. A
+     * deferred margin is computed after the done callbacks, see finish.
+     * @param callback a FrameCallback instance
+     */
+    public void addFrameCallback(FrameCallback callback) {
+        assert callback != null;
+        frameCallbacks.add(callback);
+    }
+
     /**
      * This is where the actual computation of a new plot takes place. Note that
      * the computation is performed asynchronously. All registered DoneCallback-instances
-     * will be fired when done.
+     * will be fired when done. The request is passed to the scheduler, which coalesces the
+     * requests made during one event and cancels the computation they supersede.
      */
     private void computeMatrix() {
+        prefetcher.cancel();
+        updateImage();
+        scheduler.submit(RenderScheduler.Priority.INTERACTIVE, this::createWorker);
+    }
 
-        // If a previous computation is ongoing, cancel it.
-        if (worker != null && !worker.isDone() && !worker.isCancelled())
-            worker.cancel(true);
-
-        worker = new PlotWorker(evaluator, activeColoring, coordinates);
+    /**
+     * Make the image show the current matrix. If the matrix has been moved, zoomed or resized
+     * since the image was drawn, the image is replaced by a new one on which the old image is
+     * drawn moved and scaled to the new matrix. The rest of the new image, which has not been
+     * computed yet, is filled with a placeholder pattern until the tiles of the new plot arrive.
+     */
+    private void updateImage() {
+        if (plot != null && imageCoordinates != null && imageCoordinates.hasSameMatrix(coordinates))
+            return;
+        int width = coordinates.getMatrixWidth();
+        int height = coordinates.getMatrixHeight();
+        BufferedImage canvas = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = canvas.createGraphics();
+        fillPlaceholder(g, new Rectangle(0, 0, width, height));
+        if (plot != null && imageCoordinates != null) {
+            // The point of column x of the old image is at column x0 + sx*x of the new one.
+            double sx = imageCoordinates.getDeltaX() / coordinates.getDeltaX();
+            double sy = imageCoordinates.getDeltaY() / coordinates.getDeltaY();
+            double x0 = (imageCoordinates.matToRe(0) - coordinates.matToRe(0)) / coordinates.getDeltaX();
+            double y0 = (coordinates.matToIm(0) - imageCoordinates.matToIm(0)) / coordinates.getDeltaY();
+            double right = x0 + sx*plot.getWidth();
+            double bottom = y0 + sy*plot.getHeight();
+            if (x0 < width && y0 < height && right > 0 && bottom > 0
+                    && Math.max(right - x0, bottom - y0) < Integer.MAX_VALUE / 4)
+                g.drawImage(plot, (int)Math.round(x0), (int)Math.round(y0),
+                        (int)Math.round(right - x0), (int)Math.round(bottom - y0), null);
+        }
+        g.dispose();
+        plot = canvas;
+        imageCoordinates = new PlotCoordinates(coordinates);
+    }
 
-        worker.addDoneCallback(ref -> {
-            try {
-                plot = ref.get();
-            }
-            catch (InterruptedException ex) {
-                MainWindow.bailOut(ex);
-            }
-            catch (ExecutionException ex) {
-                MainWindow.bailOut(ex);
+    /**
+     * Fill a rectangle of the image with the placeholder pattern. The squares of the pattern are
+     * aligned to the matrix, so filled rectangles line up with each other.
+     * @param g the graphics of the image
+     * @param r a rectangle of the matrix
+     */
+    private static void fillPlaceholder(Graphics2D g, Rectangle r) {
+        int x0 = r.x - r.x % PLACEHOLDER_SIZE;
+        int y0 = r.y - r.y % PLACEHOLDER_SIZE;
+        g.setClip(r);
+        for (int y = y0; y < r.y + r.height; y += PLACEHOLDER_SIZE)
+            for (int x = x0; x < r.x + r.width; x += PLACEHOLDER_SIZE) {
+                boolean odd = ((x + y) / PLACEHOLDER_SIZE) % 2 != 0;
+                g.setColor(odd ? PLACEHOLDER_DARK : PLACEHOLDER_LIGHT);
+                g.fillRect(x, y, PLACEHOLDER_SIZE, PLACEHOLDER_SIZE);
             }
-        });
+        g.setClip(null);
+    }
+
+    /**
+     * Create the worker of a request when the scheduler starts it. If the values of the last
+     * finished plot are still valid they are only colored again, which is much faster than
+     * computing the plot. Otherwise the plot is computed anew and the new worker copies the
+     * points it shares with the last plot, which after scanning is most of them. A view
+     * returned to from the history is only shown if its plot has been kept.
+     * @return
+     */
+    private PlotWorker createWorker() {
+        TileRenderer r = (engine == PlotWorker.Engine.PARALLEL) ? renderer : null;
+        NavigationHistory.Entry view = restored;
+        restored = null;
+        PlotCoordinates matrix = new PlotCoordinates(coordinates);
+        PlotWorker worker;
+        if (view != null && view.getColoring() == activeColoring) {
+            worker = new PlotWorker(view.getPixels(), view.getValues(), activeColoring, coordinates);
+        }
+        else if (values != null && values.matches(evaluator.getExpression(), coordinates)) {
+            worker = new PlotWorker(values, activeColoring, r);
+        }
+        else {
+            prefetcher.claim(evaluator.getExpression(), coordinates, samples);
+            worker = new PlotWorker(evaluator, activeColoring, coordinates, r, finished);
+            worker.setProgressive(progressive);
+            worker.setSampleStore(samples);
+            worker.setTileCache(tileCache);
+            worker.setMarginDeferred(true);
+        }
+
+        worker.addDoneCallback(ref -> finish(ref, matrix));
+
+        // The tiles are drawn over the image of the matrix, so that the plot can be shown while
+        // the rest of it is computed.
+        updateImage();
+        current = worker;
+        currentMatrix = matrix;
+        worker.setTileConsumer(tiles::submit);
+        if (focus != null)
+            worker.setFocus(new Point(coordinates.getLeft() + focus.x, coordinates.getTop() + focus.y));
+
+        for (FrameCallback c : frameCallbacks) worker.addFrameCallback(c);
 
         worker.addDoneCallback(ref -> stopTimer()); // Must do this before adding other callbacks to ensure
         // that timer-data is available.
+        if (debug)
+            worker.addDoneCallback(ref -> System.out.println(
+                    "Render: " + elapsedTime + " ms, scheduler: " + scheduler + ", prefetch: " + prefetcher
+                            + ", tiles: " + tileCache));
         for (DoneCallback c : doneCallbacks) worker.addDoneCallback(c);
         for (ProgressChangedCallback c : progressChangedCallbacks) worker.addProgressChangedCallback(c);
         for (StartCallback c : startCallbacks) c.callback();
 
         startTimer();
-        worker.execute();
+        return worker;
+    }
+
+    /**
+     * Show the plot of a finished worker and keep its values. If the worker deferred the margin
+     * around the viewport, the margin is shown as the placeholder pattern and computed by a
+     * background request, so that an interactive request pre-empts it. The views around a
+     * complete plot are prefetched.
+     * @param ref the finished worker
+     * @param matrix the matrix the worker computed
+     */
+    private void finish(PlotWorker ref, PlotCoordinates matrix) {
+        try {
+            plot = ref.get();
+            List<Rectangle> missing = ref.getMissing();
+            if (!missing.isEmpty()) {
+                Graphics2D g = plot.createGraphics();
+                for (Rectangle r : missing)
+                    fillPlaceholder(g, r);
+                g.dispose();
+            }
+            imageCoordinates = matrix;
+            updateImage();
+            values = missing.isEmpty() ? ref.getValues() : null;
+            finished = ref;
+            if (values != null)
+                addSamples(values);
+            if (ref != current)
+                return;
+            if (missing.isEmpty())
+                prefetch();
+            else
+                scheduler.submit(RenderScheduler.Priority.BACKGROUND, () -> createMarginWorker(ref, matrix));
+        }
+        catch (InterruptedException ex) {
+            MainWindow.bailOut(ex);
+        }
+        catch (ExecutionException ex) {
+            MainWindow.bailOut(ex);
+        }
+    }
+
+    /**
+     * Create the worker which computes the margin a worker deferred, unless another worker has
+     * been started since.
+     * @param visible the worker which computed the viewport
+     * @param matrix the matrix the worker computed
+     * @return
+     */
+    private PlotWorker createMarginWorker(PlotWorker visible, PlotCoordinates matrix) {
+        if (visible != current)
+            return null;
+        PlotWorker worker = new PlotWorker(visible);
+        worker.addDoneCallback(ref -> finish(ref, matrix));
+        worker.setTileConsumer(tiles::submit);
+        current = worker;
+        return worker;
+    }
+
+    /**
+     * Prefetch the views the user is likely to visit next: the view one viewport ahead in the
+     * direction of the last scan, and if zooming snaps to powers of two, the plots zoomed in
+     * and out by two around the focus, which a turn of the mouse wheel shows. The prefetching
+     * workers reuse the values of the current plot like any other worker.
+     */
+    private void prefetch() {
+        if (!prefetcher.isEnabled()) return;
+        int width = coordinates.getViewportWidth();
+        int height = coordinates.getViewportHeight();
+        List<PlotCoordinates> views = new ArrayList<>(3);
+        if (panX != 0 || panY != 0) {
+            PlotCoordinates ahead = new PlotCoordinates(coordinates);
+            ahead.pan(Integer.signum(panX)*width, Integer.signum(panY)*height);
+            views.add(ahead);
+        }
+        if (coordinates.isDyadic()) {
+            Point p = (focus != null) ? focus : new Point(width/2, height/2);
+            for (double factor : new double[] {2.0, 0.5}) {
+                PlotCoordinates zoomed = new PlotCoordinates(coordinates);
+                zoomed.zoom(p.x, p.y, factor);
+                views.add(zoomed);
+            }
+        }
+        TileRenderer r = (engine == PlotWorker.Engine.PARALLEL) ? renderer : null;
+        Coloring coloring = activeColoring;
+        PlotWorker previous = finished;
+        prefetcher.prefetch(evaluator.getExpression(), views, c -> {
+            PlotWorker worker = new PlotWorker(evaluator, coloring, c, r, previous);
+            worker.setSampleStore(samples);
+            worker.setTileCache(tileCache);
+            return worker;
+        });
+    }
+
+    /**
+     * Return the cache of rendered tiles, eg. for its statistics.
+     * @return
+     */
+    public TileCache getTileCache() {
+        return tileCache;
+    }
+
+    /**
+     * Return the prefetcher of the views likely to be visited next, eg. for its statistics.
+     * @return
+     */
+    public Prefetcher getPrefetcher() {
+        return prefetcher;
+    }
+
+    /**
+     * Return the scheduler of the renders, eg. for its statistics.
+     * @return
+     */
+    public RenderScheduler getScheduler() {
+        return scheduler;
+    }
+
+    /**
+     * Return the publisher of the tiles of the plot being computed. A subscriber is called on a
+     * thread of its own and should pass the tiles to drawTile on the event dispatch thread.
+     * @return
+     */
+    public Flow.Publisher<RenderedTile> getTilePublisher() {
+        return tiles;
+    }
+
+    /**
+     * Draw a tile into the plot image.
+     * @param tile a tile published by getTilePublisher
+     * @return true if the tile belongs to the current plot and was drawn
+     */
+    public boolean drawTile(RenderedTile tile) {
+        if (tile.getSource() != current || tile.getSource().isCancelled() || plot == null
+                || !currentMatrix.hasSameMatrix(imageCoordinates))
+            return false;
+        Rectangle r = tile.getBounds();
+        plot.getRaster().setDataElements(r.x, r.y, r.width, r.height, tile.getPixels());
+        return true;
+    }
+
+    /**
+     * Choose the viewport point the following computations render outward from, eg. the mouse
+     * position.
+     * @param focus a point of the viewport or null for the center of the viewport
+     */
+    public void setFocus(Point focus) {
+        this.focus = (focus != null) ? new Point(focus) : null;
     }
 
     /**
@@ -32,6 +32,9 @@ public class PlotCoordinates {
     private static final double DEF_YMIN = -1.0;
     private static final double DEF_YMAX = 1.0;
 
+    // The largest lattice index of the viewport a dyadic zoom may produce.
+    private static final int MAX_LATTICE_INDEX = 1 << 29;
+
     private double deltaX;
     private double deltaY;
 
@@ -40,6 +43,21 @@ public class PlotCoordinates {
     private Rectangle rectMatrix = null;
     private Rectangle2D rectMatrixCmplx = null;
 
+    // The matrix points lie on a lattice: column x is at anchorRe + deltaX*(latticeX + x) and
+    // row y at anchorIm + deltaY*(latticeY + height - y - 1). Scanning only moves the integer
+    // offsets, so a point keeps exactly the same coordinates when the matrix is recentered.
+    private double anchorRe;
+    private double anchorIm;
+    private int latticeX = 0;
+    private int latticeY = 0;
+
+    // If dyadic is true, zooming keeps the anchor of the lattice and snaps its spacing to the
+    // spacing set by setLimits or resize times a power of two. The points of a plot zoomed by
+    // a power of two then lie exactly on the points of the earlier plot, see SampleStore.
+    private boolean dyadic = false;
+    private double baseDeltaX;
+    private double baseDeltaY;
+
     /**
      * Initialize the class and set the viewport size.
      * @param viewPortXsize viewport width
@@ -67,6 +85,8 @@ public class PlotCoordinates {
                 DEF_YMIN - (DEF_YMAX - DEF_YMIN),
                 3.0 * (DEF_XMAX - DEF_XMIN),
                 3.0 * (DEF_YMAX - DEF_YMIN));
+        anchorRe = rectMatrixCmplx.getMinX();
+        anchorIm = rectMatrixCmplx.getMinY();
 
         rectViewportCmplx = new Rectangle2D.Double(
                 DEF_XMIN,
@@ -77,11 +97,53 @@ public class PlotCoordinates {
         computeDeltaValues();
     }
 
+    /**
+     * Initialize a copy of other coordinates.
+     * @param other
+     */
+    public PlotCoordinates(PlotCoordinates other) {
+        set(other);
+    }
+
+    /**
+     * Make these coordinates equal to other coordinates, eg. to return to an earlier view.
+     * @param other
+     */
+    public void set(PlotCoordinates other) {
+        deltaX = other.deltaX;
+        deltaY = other.deltaY;
+        rectViewport = (other.rectViewport != null) ? new Rectangle(other.rectViewport) : null;
+        rectViewportCmplx = (Rectangle2D.Double)other.rectViewportCmplx.clone();
+        rectMatrix = (other.rectMatrix != null) ? new Rectangle(other.rectMatrix) : null;
+        rectMatrixCmplx = (Rectangle2D)other.rectMatrixCmplx.clone();
+        anchorRe = other.anchorRe;
+        anchorIm = other.anchorIm;
+        latticeX = other.latticeX;
+        latticeY = other.latticeY;
+        dyadic = other.dyadic;
+        baseDeltaX = other.baseDeltaX;
+        baseDeltaY = other.baseDeltaY;
+    }
+
     private void computeDeltaValues() {
         deltaX = rectViewportCmplx.width / (double)(rectViewport.width - 1);
         deltaY = rectViewportCmplx.height / (double)(rectViewport.height - 1);
+        baseDeltaX = deltaX;
+        baseDeltaY = deltaY;
     }
 
+    /**
+     * Choose whether zooming snaps the limits to a dyadic lattice.
+     * @param dyadic
+     */
+    public void setDyadic(boolean dyadic) { this.dyadic = dyadic; }
+
+    /**
+     * Return true if zooming snaps the limits to a dyadic lattice.
+     * @return
+     */
+    public boolean isDyadic() { return dyadic; }
+
     /**
      * Convert from matrix to complex coordinates.
      * @param x
@@ -91,11 +153,65 @@ public class PlotCoordinates {
     public Complex matToCmplx(int x, int y) {
         if (!rectMatrix.contains(x, y)) return null;
         Complex z = new Complex();
-        z.x = rectMatrixCmplx.getMinX() + deltaX*x;
-        z.y = rectMatrixCmplx.getMinY() + deltaY*(rectMatrix.height - y - 1);
+        z.x = matToRe(x);
+        z.y = matToIm(y);
         return z;
     }
 
+    /**
+     * Return the real part of the complex coordinates of matrix column x.
+     * @param x
+     * @return
+     */
+    public double matToRe(int x) {
+        return anchorRe + deltaX*(latticeX + x);
+    }
+
+    /**
+     * Return the imaginary part of the complex coordinates of matrix row y.
+     * @param y
+     * @return
+     */
+    public double matToIm(int y) {
+        return anchorIm + deltaY*(latticeY + rectMatrix.height - y - 1);
+    }
+
+    /**
+     * Return the distance between two adjacent matrix columns.
+     * @return
+     */
+    public double getDeltaX() { return deltaX; }
+
+    /**
+     * Return the distance between two adjacent matrix rows.
+     * @return
+     */
+    public double getDeltaY() { return deltaY; }
+
+    /**
+     * Return the real part of the lattice point with index zero.
+     * @return
+     */
+    public double getAnchorRe() { return anchorRe; }
+
+    /**
+     * Return the imaginary part of the lattice point with index zero.
+     * @return
+     */
+    public double getAnchorIm() { return anchorIm; }
+
+    /**
+     * Return the lattice index of the leftmost matrix column.
+     * @return
+     */
+    public int getLatticeX() { return latticeX; }
+
+    /**
+     * Return the lattice index of the bottom matrix row.
+     * @return
+     */
+    public int getLatticeY() { return latticeY; }
+
     /**
      * Covert from complex to matrix coordinates.
      * @param z
@@ -231,6 +347,10 @@ public class PlotCoordinates {
             return;
         }
 
+        // The matrix keeps its lattice if the size does not change, so the plot may be reused.
+        if (rectViewport != null && rectViewport.width == width && rectViewport.height == height)
+            return;
+
         double dx = (rectViewportCmplx.x - rectMatrixCmplx.getMinX())
                 / rectMatrixCmplx.getWidth();
         double dy = (rectMatrixCmplx.getMaxY() - rectViewportCmplx.getMaxY())
@@ -243,6 +363,10 @@ public class PlotCoordinates {
                 width,
                 height);
 
+        anchorRe = rectMatrixCmplx.getMinX();
+        anchorIm = rectMatrixCmplx.getMinY();
+        latticeX = 0;
+        latticeY = 0;
         computeDeltaValues();
     }
 
@@ -272,6 +396,10 @@ public class PlotCoordinates {
                 3.0*(xmax - xmin),
                 3.0*(ymax - ymin));
 
+        anchorRe = rectMatrixCmplx.getMinX();
+        anchorIm = rectMatrixCmplx.getMinY();
+        latticeX = 0;
+        latticeY = 0;
         computeDeltaValues();
     }
 
@@ -285,10 +413,85 @@ public class PlotCoordinates {
     public void zoom(int x1, int y1, int x2, int y2) {
         Complex topLeft = getComplexCoordinates(x1, y1);
         Complex bottomRight = getComplexCoordinates(x2, y2);
-        try { setLimits(topLeft.x, bottomRight.x, bottomRight.y, topLeft.y); }
+        zoomTo(topLeft.x, bottomRight.x, bottomRight.y, topLeft.y);
+    }
+
+    /**
+     * Zoom the viewport by a factor so that the point under the given viewport pixel stays
+     * in place.
+     * @param x viewport x coordinate
+     * @param y viewport y coordinate
+     * @param factor greater than one to zoom in and less than one to zoom out
+     */
+    public void zoom(int x, int y, double factor) {
+        assert factor > 0.0 : "factor <= 0";
+        Complex z = getComplexCoordinates(x, y);
+        if (z == null) return;
+        double xmin = z.x - deltaX/factor*x;
+        double ymax = z.y + deltaY/factor*y;
+        zoomTo(xmin, xmin + deltaX/factor*(rectViewport.width - 1),
+                ymax - deltaY/factor*(rectViewport.height - 1), ymax);
+    }
+
+    private void zoomTo(double xmin, double xmax, double ymin, double ymax) {
+        if (dyadic && xmin < xmax && ymin < ymax) {
+            snap(xmin, xmax, ymin, ymax);
+            return;
+        }
+        try { setLimits(xmin, xmax, ymin, ymax); }
         catch(PlotException e) { assert false : "Should be unreachable"; }
     }
 
+    /**
+     * Set the limits of the viewport as close to the given ones as the dyadic lattice allows.
+     * The spacing is the base spacing times the nearest power of two and the viewport starts
+     * at the nearest lattice point, so the anchor of the lattice does not change.
+     */
+    private void snap(double xmin, double xmax, double ymin, double ymax) {
+        int width = rectViewport.width;
+        int height = rectViewport.height;
+        int levelX = (int)Math.round(Math.log((xmax - xmin) / (width - 1) / baseDeltaX) / Math.log(2.0));
+        int levelY = (int)Math.round(Math.log((ymax - ymin) / (height - 1) / baseDeltaY) / Math.log(2.0));
+        deltaX = Math.scalb(baseDeltaX, levelX);
+        deltaY = Math.scalb(baseDeltaY, levelY);
+
+        // The lattice indices of the left column and the bottom row of the viewport. The
+        // lattice is moved if the indices of a deep zoom no longer fit in an int.
+        double left = Math.rint((xmin - anchorRe) / deltaX);
+        double bottom = Math.rint((ymin - anchorIm) / deltaY);
+        if (Math.abs(left) > MAX_LATTICE_INDEX) {
+            anchorRe = xmin;
+            left = 0.0;
+        }
+        if (Math.abs(bottom) > MAX_LATTICE_INDEX) {
+            anchorIm = ymin;
+            bottom = 0.0;
+        }
+        latticeX = (int)left - width;
+        latticeY = (int)bottom - height;
+        centerViewport();
+    }
+
+    /**
+     * Center the viewport inside the matrix and compute the complex rectangles of both from
+     * the lattice.
+     */
+    private void centerViewport() {
+        int width = rectViewport.width;
+        int height = rectViewport.height;
+        rectViewport.setLocation(width, height);
+        rectViewportCmplx = new Rectangle2D.Double(
+                matToRe(width),
+                matToIm(2*height - 1),
+                deltaX*(width - 1),
+                deltaY*(height - 1));
+        rectMatrixCmplx = new Rectangle2D.Double(
+                matToRe(0),
+                matToIm(rectMatrix.height - 1),
+                3.0*rectViewportCmplx.width,
+                3.0*rectViewportCmplx.height);
+    }
+
     /**
      * Scan the viewport.
      * @param dx delta x in matrix coordinates
@@ -322,16 +525,57 @@ public class PlotCoordinates {
     }
 
     /**
-     * Called after scanning the plot.
-     * TODO: Better way to do this!
+     * Scan the viewport without a limit. While the viewport stays within half of its size from
+     * the center of the matrix this is the same as scan. Otherwise the matrix is moved a whole
+     * number of lattice steps so that the viewport is at its center again, and the part of the
+     * matrix that was not in the old matrix has to be computed.
+     * @param dx delta x in matrix coordinates
+     * @param dy delta y in matrix coordinates
+     * @return true if the matrix was moved
+     */
+    public boolean pan(int dx, int dy) {
+        int x = rectViewport.x + dx;
+        int y = rectViewport.y + dy;
+        if (Math.abs(x - rectViewport.width) <= rectViewport.width / 2
+                && Math.abs(y - rectViewport.height) <= rectViewport.height / 2) {
+            scan(dx, dy);
+            return false;
+        }
+        latticeX += x - rectViewport.width;
+        latticeY -= y - rectViewport.height;
+        centerViewport();
+        return true;
+    }
+
+    /**
+     * Return true if the matrix of other has the same size and consists of the same lattice
+     * points as the matrix of these coordinates. The viewports may differ.
+     * @param other plot coordinates
+     * @return
+     */
+    public boolean hasSameMatrix(PlotCoordinates other) {
+        return rectMatrix != null && other.rectMatrix != null
+                && rectMatrix.width == other.rectMatrix.width
+                && rectMatrix.height == other.rectMatrix.height
+                && deltaX == other.deltaX
+                && deltaY == other.deltaY
+                && anchorRe == other.anchorRe
+                && anchorIm == other.anchorIm
+                && latticeX == other.latticeX
+                && latticeY == other.latticeY;
+    }
+
+    /**
+     * Called after scanning the plot. The matrix is recentered around the viewport by moving it
+     * a whole number of lattice steps, so the new matrix point (x, y) is exactly the old point
+     * (x + dx, y + dy) where dx and dy are the offsets of the viewport from the center. The
+     * complex rectangles are computed again from the lattice, so the rounding errors of the
+     * scans do not accumulate.
      */
     public void postScanUpdate() {
-        rectMatrixCmplx = new Rectangle2D.Double(
-                rectViewportCmplx.x - rectViewportCmplx.width,
-                rectViewportCmplx.y - rectViewportCmplx.height,
-                3.0*rectViewportCmplx.width,
-                3.0*rectViewportCmplx.height);
-        rectViewport.setLocation(rectViewport.width, rectViewport.height);
+        latticeX += rectViewport.x - rectViewport.width;
+        latticeY -= rectViewport.y - rectViewport.height;
+        centerViewport();
     }
 
     /**
@@ -23,6 +23,8 @@ import java.awt.geom.*;
 import java.awt.event.*;
 import java.awt.image.*;
 import java.util.Formatter;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Flow;
 
 /**
  * A UI-component which contains the plot.
@@ -56,6 +58,11 @@ public class PlotPanel extends JPanel {
     private static final int TOOLTIP_CLEARANCE = 10;
     private static final int TEXT_CLEARANCE = 5;
 
+    // The plot is computed at the new size only after the panel has not been resized for this
+    // many milliseconds. Until then the previous image is drawn scaled.
+    private static final int RESIZE_DELAY = 200;
+    private final Timer resizeTimer = new Timer(RESIZE_DELAY, e -> resizePlot());
+
     private int numberOfTics = 7;
 
     public enum DraggingTool {SCAN, ZOOM}
@@ -70,6 +77,8 @@ public class PlotPanel extends JPanel {
     private int scanX1, scanY1;
     private boolean isDragging = false;
     private boolean isComputing = false;
+    private boolean hasFrame = false;
+    private boolean hasTiles = false;
 
     private Plot plot = null;
 
@@ -82,6 +91,8 @@ public class PlotPanel extends JPanel {
         super();
         setCursor(new Cursor(Cursor.CROSSHAIR_CURSOR));
         plot = plotRef;
+        resizeTimer.setRepeats(false);
+        plotRef.getTilePublisher().subscribe(new TileSubscriber());
 
         //
         // Handle resize events.
@@ -99,7 +110,8 @@ public class PlotPanel extends JPanel {
         addMouseMotionListener(new MouseMotionAdapter() {
             @Override
             public void mouseDragged(MouseEvent e) {
-                if (isComputing) return;
+                // A scan continues while the tiles it uncovers are computed.
+                if (isLocked() && !isDragging) return;
                 else if (draggingTool == DraggingTool.ZOOM) {
                     if (!isDragging) return;
 
@@ -133,6 +145,11 @@ public class PlotPanel extends JPanel {
             public void mouseMoved(MouseEvent e) {
                 mouseXPos = e.getX();
                 mouseYPos = e.getY();
+                if (mouseXPos >= plotLeft && mouseXPos < plotRight
+                        && mouseYPos >= plotTop && mouseYPos < plotBottom)
+                    plot.setFocus(new Point(mouseXPos - plotLeft, mouseYPos - plotTop));
+                else
+                    plot.setFocus(null);
                 repaint();
             }
         });
@@ -143,7 +160,7 @@ public class PlotPanel extends JPanel {
         addMouseListener(new MouseAdapter() {
             @Override
             public void mousePressed(MouseEvent e) {
-                if (isComputing) return;
+                if (isLocked()) return;
                 else if (draggingTool == DraggingTool.ZOOM) {
                     if (e.getX() >= plotLeft && e.getX() <= plotRight
                             && e.getY() >= plotTop && e.getY() <= plotBottom) {
@@ -165,7 +182,7 @@ public class PlotPanel extends JPanel {
 
             @Override
             public void mouseReleased(MouseEvent e) {
-                if (isComputing) return;
+                if (isLocked() && !isDragging) return;
                 else if (draggingTool == DraggingTool.ZOOM) {
                     if (!isDragging)
                         return;
@@ -205,21 +222,106 @@ public class PlotPanel extends JPanel {
             }
         });
 
+        //
+        // Handle mouse wheel events, which zoom in or out by two around the cursor.
+        //
+        addMouseWheelListener(e -> {
+            if (isLocked() || isDragging) return;
+            if (!(e.getX() >= plotLeft && e.getX() < plotRight
+                    && e.getY() >= plotTop && e.getY() < plotBottom)) return;
+            try {
+                plot.zoom(e.getX() - plotLeft, e.getY() - plotTop, (e.getWheelRotation() < 0) ? 2.0 : 0.5);
+                updateBackgroundImage();
+            }
+            catch (PlotException ex) { MainWindow.bailOut(ex); }
+            repaint();
+        });
+
         // Add callbacks to handle locking the tools and repainting the component.
         plotRef.addStartCallback(new StartCallback() {
             @Override
             public void callback() {
                 isComputing = true;
+                hasFrame = false;
+                hasTiles = false;
                 repaint();
             }
         });
 
+        plotRef.addFrameCallback(ref -> {
+            hasFrame = true;
+            repaint();
+        });
+
         plotRef.addDoneCallback(ref -> {
             isComputing = false;
             repaint();
         });
     }
 
+    /**
+     * Return true if the tools are locked because nothing of the plot being computed can be
+     * shown yet, or because the plot does not have the size of the panel. The tools are unlocked
+     * after the first pass of a progressive computation.
+     * @return
+     */
+    private boolean isLocked() {
+        return (isComputing && !hasFrame) || isResizing();
+    }
+
+    /**
+     * Repaint the part of the panel which shows a rectangle of the plot matrix.
+     * @param bounds a rectangle in matrix coordinates
+     */
+    private void repaintMatrixRect(Rectangle bounds) {
+        PlotCoordinates coordinates = plot.getCoordinates();
+        Rectangle viewport = new Rectangle(coordinates.getLeft(), coordinates.getTop(),
+                coordinates.getViewportWidth(), coordinates.getViewportHeight());
+        Rectangle dirty = bounds.intersection(viewport);
+        if (dirty.isEmpty()) return;
+        repaint(plotLeft + dirty.x - viewport.x, plotTop + dirty.y - viewport.y,
+                dirty.width + 1, dirty.height + 1);
+    }
+
+    /**
+     * Receives the tiles of the plot being computed and draws them on the event dispatch thread.
+     * The next tile is requested only after the previous one has been drawn, so a render which
+     * is faster than the event dispatch thread is held back by the buffer of the publisher
+     * instead of flooding the event queue.
+     */
+    private class TileSubscriber implements Flow.Subscriber<RenderedTile> {
+        private Flow.Subscription subscription;
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            subscription.request(1);
+        }
+
+        @Override
+        public void onNext(RenderedTile tile) {
+            SwingUtilities.invokeLater(() -> {
+                if (plot.drawTile(tile)) {
+                    hasTiles = true;
+                    repaintMatrixRect(tile.getBounds());
+                }
+                subscription.request(1);
+            });
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            // The stream ends with the error, so no more tiles would ever arrive.
+            Exception e = (throwable instanceof Exception)
+                    ? (Exception)throwable : new ExecutionException(throwable);
+            SwingUtilities.invokeLater(() -> MainWindow.bailOut(e));
+        }
+
+        @Override
+        public void onComplete() {
+        }
+    }
+
     /**
      * Enable or disable the box around the plot.
      * @param val
@@ -321,20 +423,40 @@ public class PlotPanel extends JPanel {
     }
 
     /**
-     * Update the plot after resizing.
+     * Update the plot after resizing. The background is updated at once but the plot is
+     * computed at the new size only when the resizing has settled, see RESIZE_DELAY.
      */
     public void resize() {
         try {
             computePlotSize();
             if (plotWidth == 0) {
                 backgroundImage = null;
+                resizeTimer.stop();
             }
             else {
-                plot.resize(plotWidth, plotHeight);
                 updateBackgroundImage();
+                resizeTimer.restart();
             }
         }
         catch (PlotException e) { MainWindow.bailOut(e); }
+        repaint();
+    }
+
+    /**
+     * Resize the plot to the size of the panel.
+     */
+    private void resizePlot() {
+        if (plotWidth > 0)
+            plot.resize(plotWidth, plotHeight);
+        repaint();
+    }
+
+    /**
+     * Return true if the panel has been resized but the plot has not.
+     * @return
+     */
+    private boolean isResizing() {
+        return resizeTimer.isRunning();
     }
 
     /**
@@ -482,20 +604,23 @@ public class PlotPanel extends JPanel {
         if (backgroundImage != null) {
             g.drawImage(backgroundImage, 0, 0, null);
         }
-        if (!isComputing) {
-            if (plot.getImage() != null) {
-                g.drawImage(
-                        plot.getImage(),
-                        plotLeft,
-                        plotTop,
-                        plotLeft + plot.getCoordinates().getViewportWidth(),
-                        plotTop + plot.getCoordinates().getViewportHeight(),
-                        plot.getCoordinates().getLeft(),
-                        plot.getCoordinates().getTop(),
-                        plot.getCoordinates().getRight(),
-                        plot.getCoordinates().getBottom(),
-                        null);
-            }
+        // While resizing, the viewport of the plot is scaled to the new size of the panel. The
+        // parts of the image which have not been computed yet show a placeholder pattern.
+        if (plot.getImage() != null) {
+            g.drawImage(
+                    plot.getImage(),
+                    plotLeft,
+                    plotTop,
+                    plotLeft + plotWidth,
+                    plotTop + plotHeight,
+                    plot.getCoordinates().getLeft(),
+                    plot.getCoordinates().getTop(),
+                    plot.getCoordinates().getRight(),
+                    plot.getCoordinates().getBottom(),
+                    null);
+        }
+        if (isResizing()) return;
+        if (!isComputing || hasFrame || hasTiles) {
             if (enabledCrosshair) drawCrosshair(g);
             if (isDragging && draggingTool == DraggingTool.ZOOM) drawZoomBox(g);
             if (enabledToolTip) drawToolTip(g);
@@ -688,15 +813,21 @@ public class PlotPanel extends JPanel {
      */
     void updateBackgroundImage() throws PlotException {
 
-        if (backgroundImage != null) backgroundImage = null;
-        if (backgroundWidth == 0 || backgroundHeight == 0) return;
+        if (backgroundWidth == 0 || backgroundHeight == 0) {
+            backgroundImage = null;
+            return;
+        }
 
-        backgroundImage = new BufferedImage(backgroundWidth, backgroundHeight,
-                BufferedImage.TYPE_INT_RGB);
+        // The image is redrawn on every drag event, so it is reused while the size is the same.
+        if (backgroundImage == null || backgroundImage.getWidth() != backgroundWidth
+                || backgroundImage.getHeight() != backgroundHeight)
+            backgroundImage = new BufferedImage(backgroundWidth, backgroundHeight,
+                    BufferedImage.TYPE_INT_RGB);
 
         Graphics2D g = backgroundImage.createGraphics();
         g.setColor(new Color(255, 255, 255, 255));
         g.fill(new Rectangle2D.Double(0.0, 0.0, backgroundWidth, backgroundHeight));
+        g.dispose();
         if (enabledBox) drawBox();
     }
 
@@ -17,36 +17,234 @@
 
 package cplot;
 
-import java.awt.Color;
+import java.awt.Point;
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
 import javax.swing.SwingWorker;
 
 /**
- * A worker-thread that does the heavy number-crunching job of computing the plot.
+ * A worker-thread that does the heavy number-crunching job of computing the plot. A worker
+ * either evaluates the expression into a new ValueBuffer and colors it, or only colors the
+ * buffer of an earlier worker again. When the matrix has only been moved by scanning, the values
+ * and pixels of the previous worker which still lie on the matrix are copied and only the
+ * exposed strips are evaluated.
+ *
+ * The points of the visible viewport are computed first and the partial image is passed to the
+ * frame callbacks before the margin around the viewport is computed. Cancelling the worker
+ * skips the margin. The margin may also be deferred to a worker of its own, which the plot runs
+ * as a background request after the viewport is shown. A progressive worker computes the viewport in passes of 1/8, 1/4, 1/2 and
+ * full resolution, each reusing the samples of the previous one, and passes the image of every
+ * pass to the frame callbacks.
+ *
+ * Every finished tile may also be passed to a tile consumer as soon as it is done. The parallel
+ * engine renders the tiles outward from a focus point, by default the center of the viewport.
  * @author Petri Aaltonen
  */
-public class PlotWorker extends SwingWorker<BufferedImage, Void> {
+public class PlotWorker extends SwingWorker<BufferedImage, Integer> {
 
-    private Evaluator evaluator;
+    /**
+     * The rendering engines a worker can use. SERIAL walks the matrix row by row on the worker
+     * thread, PARALLEL renders tiles on the pool of a TileRenderer.
+     */
+    public enum Engine {SERIAL, PARALLEL}
+
+    // The distance between samples in the first pass of a progressive worker.
+    private static final int COARSEST_STEP = 8;
+
+    private Expression expression;
+    private ValueBuffer values;
     private Coloring coloring;
-    private PlotCoordinates coordinates;
+    private final PlotCoordinates coordinates;
+    private Rectangle viewport;
+    private TileRenderer renderer;
+    private PlotWorker previous = null;
+    private boolean progressive = false;
+    private Point focus = null;
+    private Consumer<RenderedTile> tileConsumer = null;
+    private SampleStore samples = null;
+    private TileCache cache = null;
+    // The rectangle of the matrix which holds every sampleStep:th sample of a coarser plot.
+    private Rectangle sampled = null;
+    private int sampleStep = 1;
+    // Whether the margin is left to a worker of its own, the regions of the matrix not computed
+    // yet, the regions this worker and the worker it continues evaluated, and the worker whose
+    // margin this worker computes.
+    private boolean marginDeferred = false;
+    private List<Rectangle> missing = Collections.emptyList();
+    private List<Rectangle> rendered = null;
+    private PlotWorker continued = null;
+    private volatile int [] pixels = null;
     private ArrayList<DoneCallback> doneCallbacks;
     private ArrayList<ProgressChangedCallback> progressChangedCallbacks;
+    private ArrayList<FrameCallback> frameCallbacks;
 
     /**
-     * Initialize a new worker thread.
+     * Initialize a new worker thread which uses the serial engine.
      * @param evaluator
      * @param coloring
      * @param coordinates
      */
     public PlotWorker(Evaluator evaluator, Coloring coloring, PlotCoordinates coordinates) {
+        this(evaluator, coloring, coordinates, null);
+    }
+
+    /**
+     * Initialize a new worker thread. The worker evaluates the expression the evaluator holds
+     * at this moment in contexts of its own, so changing the expression later does not affect it.
+     * @param evaluator
+     * @param coloring
+     * @param coordinates
+     * @param renderer a TileRenderer for the parallel engine or null for the serial engine
+     */
+    public PlotWorker(Evaluator evaluator, Coloring coloring, PlotCoordinates coordinates,
+                      TileRenderer renderer) {
+        this(evaluator.getExpression(), null, coloring, coordinates, renderer);
+    }
+
+    /**
+     * Initialize a new worker thread which reuses the results of an earlier worker. If the
+     * earlier worker computed the same expression on the same lattice, the points shared by the
+     * two matrices are copied instead of evaluated, and so are their pixels if the coloring is
+     * also the same. Otherwise the whole matrix is computed.
+     * @param evaluator
+     * @param coloring
+     * @param coordinates
+     * @param renderer a TileRenderer for the parallel engine or null for the serial engine
+     * @param previous a finished, not cancelled worker or null
+     */
+    public PlotWorker(Evaluator evaluator, Coloring coloring, PlotCoordinates coordinates,
+                      TileRenderer renderer, PlotWorker previous) {
+        this(evaluator.getExpression(), null, coloring, coordinates, renderer);
+        this.previous = previous;
+    }
+
+    /**
+     * Initialize a new worker thread which colors the values computed by an earlier worker.
+     * @param values a buffer returned by getValues of an earlier worker
+     * @param coloring
+     * @param renderer a TileRenderer for the parallel engine or null for the serial engine
+     */
+    public PlotWorker(ValueBuffer values, Coloring coloring, TileRenderer renderer) {
+        this(null, values, coloring, null, renderer);
+    }
+
+    /**
+     * Initialize a new worker thread which only shows the pixels of an earlier plot, eg. when
+     * returning to a view of the navigation history.
+     * @param pixels the packed RGB values of the matrix row by row
+     * @param values the values the pixels were colored from or null
+     * @param coloring the coloring of the pixels
+     * @param coordinates the plot coordinates of the pixels
+     */
+    public PlotWorker(int [] pixels, ValueBuffer values, Coloring coloring, PlotCoordinates coordinates) {
+        this(null, values, coloring, coordinates, null);
+        assert pixels.length == coordinates.getMatrixWidth() * coordinates.getMatrixHeight();
+        this.pixels = pixels;
+    }
+
+    /**
+     * Initialize a new worker thread which computes the margin an earlier worker deferred, see
+     * setMarginDeferred. The new worker writes into the values and the pixels of the earlier
+     * worker, but only into the regions getMissing of the earlier worker returns, so the rest of
+     * them may be copied while it runs.
+     * @param visible a finished, not cancelled worker whose margin is missing
+     */
+    public PlotWorker(PlotWorker visible) {
+        this(visible.expression, visible.values, visible.coloring, visible.coordinates, visible.renderer);
+        assert !visible.missing.isEmpty() : "nothing missing in PlotWorker.PlotWorker";
+        this.continued = visible;
+        this.cache = visible.cache;
+        this.missing = visible.missing;
+    }
+
+    private PlotWorker(Expression expression, ValueBuffer values, Coloring coloring,
+                       PlotCoordinates coordinates, TileRenderer renderer) {
         super();
-        this.evaluator = evaluator;
+        this.expression = expression;
+        this.values = values;
         this.coloring = coloring;
-        this.coordinates = coordinates;
+        // The coordinates are copied, since panning may move the matrix while the worker runs.
+        this.coordinates = (coordinates != null) ? new PlotCoordinates(coordinates) : null;
+        this.renderer = renderer;
+        if (coordinates != null)
+            viewport = new Rectangle(coordinates.getLeft(), coordinates.getTop(),
+                    coordinates.getViewportWidth(), coordinates.getViewportHeight());
         doneCallbacks = new ArrayList<>(4);
         progressChangedCallbacks = new ArrayList<>(4);
+        frameCallbacks = new ArrayList<>(4);
+    }
+
+    /**
+     * Return true if the viewport is computed in progressively finer passes.
+     * @return
+     */
+    public boolean isProgressive() {
+        return progressive;
+    }
+
+    /**
+     * Choose whether the viewport is computed in progressively finer passes. Must be called
+     * before the worker is executed.
+     * @param progressive
+     */
+    public void setProgressive(boolean progressive) {
+        this.progressive = progressive;
+    }
+
+    /**
+     * Choose whether the margin around the viewport is left to a worker of its own. If it is,
+     * the worker finishes as soon as the viewport is computed, getMissing returns the regions
+     * of the margin and a worker created from this one computes them. Must be called before the
+     * worker is executed.
+     * @param marginDeferred
+     */
+    public void setMarginDeferred(boolean marginDeferred) {
+        this.marginDeferred = marginDeferred;
+    }
+
+    /**
+     * Choose the matrix point the tiles are rendered outward from. Must be called before the
+     * worker is executed.
+     * @param focus a point of the matrix or null for the center of the viewport
+     */
+    public void setFocus(Point focus) {
+        this.focus = (focus != null) ? new Point(focus) : null;
+    }
+
+    /**
+     * Set the consumer which receives every tile as soon as it is done. The consumer is called
+     * from the threads which render the tiles. Must be called before the worker is executed.
+     * @param tileConsumer the consumer or null
+     */
+    public void setTileConsumer(Consumer<RenderedTile> tileConsumer) {
+        this.tileConsumer = tileConsumer;
+    }
+
+    /**
+     * Set the store of the values of earlier plots. If the previous worker shares no points
+     * with the new matrix, the values are copied from a buffer of the store which does, eg.
+     * from the plot before a zoom by a power of two. Must be called before the worker is
+     * executed.
+     * @param samples the store or null
+     */
+    public void setSampleStore(SampleStore samples) {
+        this.samples = samples;
+    }
+
+    /**
+     * Set the cache of rendered tiles. The tiles of the cache which lie inside the regions left
+     * to render are copied instead of evaluated, and the tiles this worker evaluates are added
+     * to the cache when it finishes. Must be called before the worker is executed.
+     * @param cache the cache or null
+     */
+    public void setTileCache(TileCache cache) {
+        this.cache = cache;
     }
 
     /**
@@ -65,43 +263,604 @@ public class PlotWorker extends SwingWorker<BufferedImage, Void> {
         progressChangedCallbacks.add(callback);
     }
 
+    /**
+     * Register a new callback which is called when the viewport has been computed but the
+     * margin around it has not.
+     * @param callback
+     */
+    public void addFrameCallback(FrameCallback callback) {
+        frameCallbacks.add(callback);
+    }
+
+    /**
+     * Return the coloring of the pixels.
+     * @return
+     */
+    public Coloring getColoring() {
+        return coloring;
+    }
+
+    /**
+     * Return the values of the expression. Valid after the worker has finished, and null for
+     * a worker which only shows pixels whose values were not kept.
+     * @return
+     */
+    public ValueBuffer getValues() {
+        return values;
+    }
+
+    /**
+     * Return the packed RGB values of the matrix row by row. Valid after the worker has finished.
+     * @return
+     */
+    public int [] getPixels() {
+        return pixels;
+    }
+
+    /**
+     * Return the disjoint regions of the matrix whose values and pixels have not been computed,
+     * the margin if it was deferred and otherwise none. Valid after the worker has finished.
+     * @return
+     */
+    public List<Rectangle> getMissing() {
+        return Collections.unmodifiableList(missing);
+    }
+
     /**
      * This is where the heavy number crunching is made.
      * @return
      */
     @Override
     public BufferedImage doInBackground() {
-        BufferedImage img = new BufferedImage(
-                coordinates.getMatrixWidth(),
-                coordinates.getMatrixHeight(),
-                BufferedImage.TYPE_INT_RGB);
+        if (continued != null)
+            return paintMargin();
+        if (pixels != null) {
+            int width = coordinates.getMatrixWidth();
+            int height = coordinates.getMatrixHeight();
+            publishTile(new Rectangle(0, 0, width, height), pixels);
+            return toImage(pixels, width, height);
+        }
+        if (expression == null) {
+            int [] rgb = new int[values.getWidth() * values.getHeight()];
+            colorize(Collections.singletonList(new Rectangle(0, 0, values.getWidth(), values.getHeight())),
+                    rgb, progressChangedCallbacks);
+            if (isCancelled()) return null;
+            pixels = rgb;
+            return toImage(rgb, values.getWidth(), values.getHeight());
+        }
+
+        values = new ValueBuffer(expression, coordinates);
+        int [] rgb = new int[values.getWidth() * values.getHeight()];
+
+        // The exposed regions are computed from scratch and the sampled ones only between the
+        // samples copied from a coarser plot.
+        List<Rectangle> visible = new ArrayList<>(4);
+        List<Rectangle> margin = new ArrayList<>(16);
+        List<Rectangle> exposed = reuse(rgb);
+        if (cache != null)
+            exposed = reuseCached(exposed, rgb);
+        for (Rectangle r : exposed)
+            split(r, 1, visible, margin);
+        List<Rectangle> sampledVisible = new ArrayList<>(1);
+        List<Rectangle> sampledMargin = new ArrayList<>(4);
+        if (sampled != null)
+            split(sampled, sampleStep, sampledVisible, sampledMargin);
+
+        boolean hasMargin = !margin.isEmpty() || !sampledMargin.isEmpty();
+        boolean deferred = marginDeferred && hasMargin;
+        int start = Math.max(progressive ? COARSEST_STEP : 1, sampleStep / 2);
+        int total = deferred ? 0 : area(margin);
+        for (int step = start; step >= 1; step /= 2) {
+            total += passSize(visible, step, step < start);
+            if (step < sampleStep)
+                total += passSize(sampledVisible, step, true)
+                        + (deferred ? 0 : passSize(sampledMargin, step, true));
+        }
+
+        if (progressive && !sampledVisible.isEmpty())
+            colorize(sampledVisible, rgb, sampleStep, Collections.emptyList());
+        int done = 0;
+        for (int step = start; step >= 1; step /= 2) {
+            int part = passSize(visible, step, step < start);
+            paint(visible, rgb, step, step < start, partOf(done, part, total));
+            done += part;
+            if (step < sampleStep) {
+                part = passSize(sampledVisible, step, true);
+                paint(sampledVisible, rgb, step, true, partOf(done, part, total));
+                done += part;
+            }
+            if (isCancelled()) return null;
+            if ((progressive && step > 1) || (step == 1 && hasMargin && !deferred))
+                publish(step);
+        }
+        if (sampled != null)
+            exposed.add(sampled);
+        if (deferred) {
+            // The samples copied into the margin are computed again with the rest of it.
+            missing = new ArrayList<>(margin);
+            missing.addAll(sampledMargin);
+            rendered = exposed;
+            pixels = rgb;
+            return toImage(rgb, values.getWidth(), values.getHeight());
+        }
+        if (!margin.isEmpty()) {
+            paint(margin, rgb, 1, false, partOf(done, area(margin), total));
+            done += area(margin);
+        }
+        for (int step = sampleStep / 2; step >= 1; step /= 2) {
+            int part = passSize(sampledMargin, step, true);
+            paint(sampledMargin, rgb, step, true, partOf(done, part, total));
+            done += part;
+        }
+        if (isCancelled()) return null;
+
+        if (cache != null)
+            cacheTiles(exposed, rgb);
+        pixels = rgb;
+        return toImage(rgb, values.getWidth(), values.getHeight());
+    }
+
+    /**
+     * Compute the margin the continued worker deferred. The tiles are cached only when the
+     * whole matrix is done, since a tile may lie partly in the viewport and partly in the margin.
+     * @return
+     */
+    private BufferedImage paintMargin() {
+        int [] rgb = continued.pixels;
+        paint(missing, rgb, 1, false, progressChangedCallbacks);
+        if (isCancelled()) return null;
+        if (cache != null)
+            cacheTiles(continued.rendered, rgb);
+        missing = Collections.emptyList();
+        pixels = rgb;
+        return toImage(rgb, values.getWidth(), values.getHeight());
+    }
+
+    /**
+     * Copy the tiles of the cache which lie inside the exposed rectangles and return the
+     * rectangles which are still left to render. A rectangle none of whose tiles is cached is
+     * returned as it is.
+     * @param exposed the rectangles left to render
+     * @param rgb the pixels of the new matrix
+     * @return
+     */
+    private List<Rectangle> reuseCached(List<Rectangle> exposed, int [] rgb) {
+        List<Rectangle> left = new ArrayList<>(exposed.size());
+        for (Rectangle r : exposed) {
+            // The tiles which lie wholly inside the rectangle.
+            long tx0 = TileCache.tileIndex(coordinates.getLatticeX() + r.x + TileCache.TILE_SIZE - 1);
+            long tx1 = TileCache.tileIndex(coordinates.getLatticeX() + r.x + r.width) - 1;
+            long bottom = (long)coordinates.getLatticeY() + coordinates.getMatrixHeight() - r.y - r.height;
+            long ty0 = TileCache.tileIndex(bottom + TileCache.TILE_SIZE - 1);
+            long ty1 = TileCache.tileIndex(bottom + r.height) - 1;
+            List<Rectangle> missed = new ArrayList<>();
+            for (long ty = ty1; ty >= ty0; ty--)
+                for (long tx = tx0; tx <= tx1; tx++) {
+                    Rectangle bounds = TileCache.bounds(coordinates, tx, ty);
+                    TileCache.Tile tile = cache.get(new TileCache.Key(expression, coloring, coordinates, tx, ty));
+                    if (tile == null) {
+                        missed.add(bounds);
+                        continue;
+                    }
+                    TileCache.copyIn(tile, values, rgb, bounds);
+                    publishTile(bounds, rgb);
+                }
+            long area = (tx1 - tx0 + 1)*(ty1 - ty0 + 1);
+            if (tx0 > tx1 || ty0 > ty1 || missed.size() == area) {
+                left.add(r);
+                continue;
+            }
+            Rectangle first = TileCache.bounds(coordinates, tx0, ty1);
+            Rectangle inner = new Rectangle(first.x, first.y,
+                    (int)(tx1 - tx0 + 1)*TileCache.TILE_SIZE, (int)(ty1 - ty0 + 1)*TileCache.TILE_SIZE);
+            subtract(r, inner, left);
+            left.addAll(missed);
+        }
+        return left;
+    }
+
+    /**
+     * Add the tiles which overlap the rendered rectangles and lie wholly inside the matrix to
+     * the cache, unless they are already there.
+     * @param rendered the rectangles this worker evaluated
+     * @param rgb the pixels of the matrix
+     */
+    private void cacheTiles(List<Rectangle> rendered, int [] rgb) {
+        Rectangle matrix = new Rectangle(0, 0, values.getWidth(), values.getHeight());
+        Set<TileCache.Key> added = new HashSet<>();
+        for (Rectangle r : rendered) {
+            long tx0 = TileCache.tileIndex(coordinates.getLatticeX() + r.x);
+            long tx1 = TileCache.tileIndex(coordinates.getLatticeX() + r.x + r.width - 1);
+            long bottom = (long)coordinates.getLatticeY() + coordinates.getMatrixHeight() - r.y - r.height;
+            long ty0 = TileCache.tileIndex(bottom);
+            long ty1 = TileCache.tileIndex(bottom + r.height - 1);
+            for (long ty = ty0; ty <= ty1; ty++)
+                for (long tx = tx0; tx <= tx1; tx++) {
+                    Rectangle bounds = TileCache.bounds(coordinates, tx, ty);
+                    TileCache.Key key = new TileCache.Key(expression, coloring, coordinates, tx, ty);
+                    if (!matrix.contains(bounds) || !added.add(key) || cache.contains(key))
+                        continue;
+                    cache.put(key, TileCache.copyOut(values, rgb, bounds));
+                }
+        }
+    }
+
+    /**
+     * Split a rectangle into its part in the viewport and the rest around it. If the rectangle
+     * holds samples of a coarser plot, the visible part is widened to the grid of the samples
+     * so that every part starts at a sample.
+     * @param r a rectangle of the matrix
+     * @param step the distance between the samples of r, or 1
+     * @param visible receives the part in the viewport
+     * @param margin receives the rest
+     */
+    private void split(Rectangle r, int step, List<Rectangle> visible, List<Rectangle> margin) {
+        Rectangle v = r.intersection(viewport);
+        if (v.isEmpty()) {
+            margin.add(r);
+            return;
+        }
+        if (step > 1) {
+            int x = v.x - Math.floorMod(v.x - r.x, step);
+            int y = v.y - Math.floorMod(v.y - r.y, step);
+            int right = Math.min(x + (v.x + v.width - x + step - 1) / step * step, r.x + r.width);
+            int bottom = Math.min(y + (v.y + v.height - y + step - 1) / step * step, r.y + r.height);
+            v = new Rectangle(x, y, right - x, bottom - y);
+        }
+        visible.add(v);
+        subtract(r, v, margin);
+    }
+
+    /**
+     * Add the parts of a rectangle outside of a hole inside it to a list as up to four
+     * rectangles: the full-width bands above and below the hole and the parts left and right
+     * of it.
+     * @param r a rectangle
+     * @param hole a rectangle inside r
+     * @param out receives the rectangles
+     */
+    private static void subtract(Rectangle r, Rectangle hole, List<Rectangle> out) {
+        if (hole.y > r.y)
+            out.add(new Rectangle(r.x, r.y, r.width, hole.y - r.y));
+        if (hole.y + hole.height < r.y + r.height)
+            out.add(new Rectangle(r.x, hole.y + hole.height, r.width, r.y + r.height - hole.y - hole.height));
+        if (hole.x > r.x)
+            out.add(new Rectangle(r.x, hole.y, hole.x - r.x, hole.height));
+        if (hole.x + hole.width < r.x + r.width)
+            out.add(new Rectangle(hole.x + hole.width, hole.y, r.x + r.width - hole.x - hole.width, hole.height));
+    }
+
+    private static int passSize(List<Rectangle> regions, int step, boolean refine) {
+        int n = 0;
+        for (Rectangle r : regions)
+            n += TileRenderer.sampleCount(r, step, refine);
+        return n;
+    }
+
+    private static int area(List<Rectangle> regions) {
+        int n = 0;
+        for (Rectangle r : regions)
+            n += r.width * r.height;
+        return n;
+    }
+
+    /**
+     * Return callbacks which report the progress of a part of the work as the progress of the
+     * whole work.
+     * @param done the number of pixels computed before the part
+     * @param part the number of pixels in the part
+     * @param total the total number of pixels
+     * @return
+     */
+    private List<ProgressChangedCallback> partOf(int done, int part, int total) {
+        List<ProgressChangedCallback> callbacks = new ArrayList<>(1);
+        callbacks.add(progress -> {
+            int p = (int)Math.ceil((done + part * progress / 100.0) / total * 100.0);
+            for (ProgressChangedCallback callback : progressChangedCallbacks)
+                callback.callback(p);
+        });
+        return callbacks;
+    }
+
+    /**
+     * Copy the values and pixels of the previous worker which lie on the new matrix and return
+     * the rectangles of the matrix which are left to render. The rectangles form an L-shaped
+     * region along two edges of the matrix if the matrix was moved diagonally.
+     * @param rgb the pixels of the new matrix
+     * @return
+     */
+    private List<Rectangle> reuse(int [] rgb) {
+        PlotWorker prev = previous;
+        previous = null;
+
+        int width = values.getWidth();
+        int height = values.getHeight();
+        List<Rectangle> exposed = new ArrayList<>(4);
+        if (prev == null || prev.pixels == null || prev.values == null
+                || !prev.values.isOnLattice(expression, coordinates)
+                || Math.abs(prev.values.getOffsetX(coordinates)) >= width
+                || Math.abs(prev.values.getOffsetY(coordinates)) >= height) {
+            ValueBuffer source = (samples != null) ? samples.find(expression, coordinates) : null;
+            Rectangle shared = (source != null) ? SampleStore.sharedPoints(source, coordinates) : null;
+            if (shared == null || shared.isEmpty()) {
+                exposed.add(new Rectangle(0, 0, width, height));
+                return exposed;
+            }
+            return reuseSamples(source, shared, rgb);
+        }
+
+        // The point (x, y) of the new matrix is the point (x + dx, y + dy) of the previous one.
+        int dx = prev.values.getOffsetX(coordinates);
+        int dy = prev.values.getOffsetY(coordinates);
+
+        int x0 = Math.max(0, -dx);
+        int x1 = Math.min(width, width - dx);
+        int y0 = Math.max(0, -dy);
+        int y1 = Math.min(height, height - dy);
+        boolean samePixels = prev.coloring == coloring;
+        for (int y = y0; y < y1; y++) {
+            int src = (y + dy)*width + x0 + dx;
+            int dst = y*width + x0;
+            System.arraycopy(prev.values.re, src, values.re, dst, x1 - x0);
+            System.arraycopy(prev.values.im, src, values.im, dst, x1 - x0);
+            if (samePixels)
+                System.arraycopy(prev.pixels, src, rgb, dst, x1 - x0);
+        }
+        if (samePixels)
+            publishTile(new Rectangle(x0, y0, x1 - x0, y1 - y0), rgb);
+        else
+            colorize(Collections.singletonList(new Rectangle(x0, y0, x1 - x0, y1 - y0)), rgb,
+                    Collections.emptyList());
+
+        if (y0 > 0) exposed.add(new Rectangle(0, 0, width, y0));
+        if (y1 < height) exposed.add(new Rectangle(0, y1, width, height - y1));
+        if (x0 > 0) exposed.add(new Rectangle(0, y0, x0, y1 - y0));
+        if (x1 < width) exposed.add(new Rectangle(x1, y0, width - x1, y1 - y0));
+        // The margin of the previous worker may not have been computed, those points are
+        // rendered again.
+        Rectangle copied = new Rectangle(x0, y0, x1 - x0, y1 - y0);
+        for (Rectangle m : prev.missing) {
+            Rectangle r = new Rectangle(m.x - dx, m.y - dy, m.width, m.height).intersection(copied);
+            if (!r.isEmpty())
+                exposed.add(r);
+        }
+        return (samples != null) ? reuseExposed(exposed, rgb) : exposed;
+    }
+
+    /**
+     * Copy the values of exposed rectangles which a buffer of the sample store holds at the
+     * spacing of the matrix, such as a plot prefetched ahead of a scan, and return the
+     * rectangles which are still left to render.
+     * @param exposed the rectangles left to render after copying the previous worker
+     * @param rgb the pixels of the new matrix
+     * @return
+     */
+    private List<Rectangle> reuseExposed(List<Rectangle> exposed, int [] rgb) {
+        List<Rectangle> left = new ArrayList<>(exposed.size());
+        for (Rectangle r : exposed) {
+            ValueBuffer source = samples.find(expression, coordinates, r, 0);
+            Rectangle shared = (source != null)
+                    ? SampleStore.sharedPoints(source, coordinates).intersection(r) : null;
+            if (shared == null || shared.isEmpty()) {
+                left.add(r);
+                continue;
+            }
+            SampleStore.copy(source, values, coordinates, shared);
+            colorize(Collections.singletonList(shared), rgb, Collections.emptyList());
+            subtract(r, shared, left);
+        }
+        return left;
+    }
+
+    /**
+     * Copy the values a buffer of the sample store shares with the new matrix and return the
+     * rectangles of the matrix which are left to render. If the buffer is coarser than the
+     * matrix, only every sampleStep:th point of the shared rectangle is copied and the rest of
+     * them are left to the refining passes of the render. Otherwise the shared rectangle is
+     * complete and only needs to be colored.
+     * @param source a buffer on the dyadic lattice of the matrix
+     * @param shared the rectangle of the matrix the buffer shares
+     * @param rgb the pixels of the new matrix
+     * @return
+     */
+    private List<Rectangle> reuseSamples(ValueBuffer source, Rectangle shared, int [] rgb) {
+        SampleStore.copy(source, values, coordinates, shared);
+        int scale = source.getScale(coordinates);
+        if (scale > 0) {
+            sampled = shared;
+            sampleStep = 1 << scale;
+        }
+        else {
+            colorize(Collections.singletonList(shared), rgb, Collections.emptyList());
+        }
+        List<Rectangle> exposed = new ArrayList<>(4);
+        subtract(new Rectangle(0, 0, values.getWidth(), values.getHeight()), shared, exposed);
+        return exposed;
+    }
 
-        int n = coordinates.getMatrixWidth() * coordinates.getMatrixHeight();
+    /**
+     * Evaluate and color rectangles of the matrix, or render one pass of a progressive render
+     * of them as described in TileRenderer.render.
+     * @param regions disjoint rectangles of the matrix
+     * @param rgb the pixels of the matrix
+     * @param step the distance between samples
+     * @param refine true if the samples of the pass with twice the step are already computed
+     * @param callbacks callbacks which are notified of the progress of the regions
+     */
+    private void paint(List<Rectangle> regions, int [] rgb, int step, boolean refine,
+                       List<ProgressChangedCallback> callbacks) {
+        if (renderer != null) {
+            renderer.render(expression, coloring, coordinates, values, rgb, regions, step, refine,
+                    monitor(rgb), callbacks);
+            return;
+        }
+
+        int width = values.getWidth();
+        int n = 0;
+        for (Rectangle r : regions)
+            n += TileRenderer.sampleCount(r, step, refine);
         int progressed = 0;
+        double [] value = new double[2];
+        Expression.Context ctx = expression.newContext();
+        ColoringInput in = new ColoringInput();
 
-        for (int y = 0; y < coordinates.getMatrixHeight(); y++)
-            for (int x = 0; x < coordinates.getMatrixWidth(); x++) {
-                // The following is a quick-and-dirty fix for a bug!!!
-                Complex u = coordinates.matToCmplx(x, y);
-                if (u != null) {
-                    Complex z = evaluator.evalAt(u);
-                    Color rgb = !Double.isNaN(z.x) && !Double.isNaN(z.y)
-                            ? coloring.getColor(z)
-                            : new Color(255, 255, 255);
-                    int c = rgb.getRed() << 16 | rgb.getGreen() << 8 | rgb.getBlue();
-                    img.setRGB(x, y, c);
+        for (Rectangle r : regions) {
+            int top = r.y;
+            for (int y = r.y; y < r.y + r.height; y += step) {
+                if (isCancelled()) return;
+                for (int x = r.x; x < r.x + r.width; x += step) {
+                    if (refine && (x - r.x) % (2*step) == 0 && (y - r.y) % (2*step) == 0)
+                        continue;
+                    expression.eval(coordinates.matToRe(x), coordinates.matToIm(y), value, ctx);
+                    values.re[y*width + x] = value[0];
+                    values.im[y*width + x] = value[1];
                     ++progressed;
                     if (progressed % 10 == 0) {
                        int  progress = (int)Math.ceil((double)progressed / n * 100.0);
-                        for (ProgressChangedCallback callback : progressChangedCallbacks)
+                        for (ProgressChangedCallback callback : callbacks)
                             callback.callback(progress);
                     }
                 }
+                if (step == 1)
+                    coloring.colorize(values.re, values.im, rgb, y*width + r.x, r.width, in);
+                else
+                    TileRenderer.colorBlocks(values, coloring, rgb, r, y, r.x, r.x + r.width, step, in);
+                top = publishRows(r, top, y + step, rgb);
+            }
+        }
+    }
+
+    /**
+     * Color rectangles of the matrix from the values already in the buffer.
+     * @param regions disjoint rectangles of the matrix
+     * @param rgb the pixels of the matrix
+     * @param callbacks callbacks which are notified of the progress of the regions
+     */
+    private void colorize(List<Rectangle> regions, int [] rgb, List<ProgressChangedCallback> callbacks) {
+        colorize(regions, rgb, 1, callbacks);
+    }
+
+    /**
+     * Color the samples of rectangles of the matrix without evaluating the expression. Every
+     * step:th sample of the rectangles is colored as a block as in a progressive pass.
+     * @param regions disjoint rectangles of the matrix
+     * @param rgb the pixels of the matrix
+     * @param step the distance between samples
+     * @param callbacks callbacks which are notified of the progress of the regions
+     */
+    private void colorize(List<Rectangle> regions, int [] rgb, int step,
+                          List<ProgressChangedCallback> callbacks) {
+        if (renderer != null) {
+            renderer.colorize(values, coloring, rgb, regions, step, monitor(rgb), callbacks);
+            return;
+        }
+        if (step > 1) {
+            ColoringInput in = new ColoringInput();
+            for (Rectangle r : regions) {
+                int top = r.y;
+                for (int y = r.y; y < r.y + r.height; y += step) {
+                    if (isCancelled()) return;
+                    TileRenderer.colorBlocks(values, coloring, rgb, r, y, r.x, r.x + r.width, step, in);
+                    top = publishRows(r, top, y + step, rgb);
+                }
+            }
+            return;
+        }
+
+        int width = values.getWidth();
+        int n = area(regions);
+        int progressed = 0;
+        ColoringInput in = new ColoringInput();
+
+        for (Rectangle r : regions) {
+            int top = r.y;
+            for (int y = r.y; y < r.y + r.height; y++) {
+                if (isCancelled()) return;
+                coloring.colorize(values.re, values.im, rgb, y*width + r.x, r.width, in);
+                top = publishRows(r, top, y + 1, rgb);
+                progressed += r.width;
+                int progress = (int)Math.ceil((double)progressed / n * 100.0);
+                for (ProgressChangedCallback callback : callbacks)
+                    callback.callback(progress);
+            }
+        }
+    }
+
+    /**
+     * Return the monitor of a render by the tile renderer.
+     * @param rgb the pixels of the matrix
+     * @return
+     */
+    private TileRenderer.Monitor monitor(int [] rgb) {
+        return new TileRenderer.Monitor() {
+            @Override
+            public boolean isCancelled() {
+                return PlotWorker.this.isCancelled();
+            }
+
+            @Override
+            public Point getFocus() {
+                if (focus != null || viewport == null) return focus;
+                return new Point((int)viewport.getCenterX(), (int)viewport.getCenterY());
+            }
+
+            @Override
+            public void tileDone(Rectangle bounds) {
+                publishTile(bounds, rgb);
             }
+        };
+    }
+
+    /**
+     * Publish the rows of a rectangle colored since the last published row once they make up
+     * a tile of TileCache.TILE_SIZE rows or reach the bottom of the rectangle, so that the
+     * serial loops do not hand a tile to the panel for every row.
+     * @param r the rectangle being colored
+     * @param top the first row not yet published
+     * @param bottom the row below the last colored row
+     * @param rgb the pixels of the matrix
+     * @return the first row not yet published after the call
+     */
+    private int publishRows(Rectangle r, int top, int bottom, int [] rgb) {
+        bottom = Math.min(bottom, r.y + r.height);
+        if (bottom - top < TileCache.TILE_SIZE && bottom < r.y + r.height)
+            return top;
+        publishTile(new Rectangle(r.x, top, r.width, bottom - top), rgb);
+        return bottom;
+    }
+
+    private void publishTile(Rectangle bounds, int [] rgb) {
+        if (tileConsumer != null && !bounds.isEmpty())
+            tileConsumer.accept(new RenderedTile(this, bounds, rgb,
+                    (values != null) ? values.getWidth() : coordinates.getMatrixWidth()));
+    }
 
+    /**
+     * Copy packed RGB values into a new image with a single bulk write into its raster. The
+     * pixels are not written one by one with setRGB, and the image keeps a data buffer of its
+     * own so that Java2D may still cache it as a managed image.
+     * @param rgb the packed RGB values row by row
+     * @param width
+     * @param height
+     * @return
+     */
+    private static BufferedImage toImage(int [] rgb, int width, int height) {
+        BufferedImage img = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        img.getRaster().setDataElements(0, 0, width, height, rgb);
         return img;
     }
 
+    /**
+     * Notify the frame callbacks that a pass has finished. The steps of the passes finished
+     * since the last call are coalesced into one notification.
+     * @param steps
+     */
+    @Override
+    protected void process(List<Integer> steps) {
+        if (!isCancelled() && !steps.isEmpty())
+            for (FrameCallback c : frameCallbacks) c.callback(this);
+    }
+
     /**
      * Executes when the computation is ready.
      */
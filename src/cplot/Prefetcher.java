@@ -0,0 +1,224 @@
+/*
+    Copyright (C) 2016  Petri Aaltonen
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+
+package cplot;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * Compute speculatively the views the user is likely to visit next, such as the matrix ahead
+ * of a scan or the plot zoomed in or out around the cursor, while the user looks at the current
+ * plot. The views are rendered one at a time as background requests of the scheduler, so an
+ * interactive render cancels them at once. Their values are kept in a sample store of their own,
+ * whose budget bounds the memory they take. A view whose values would not fit in the budget
+ * together with the views prefetched before it for the same plot is dropped without computing
+ * it, since keeping it would evict them. When the plot moves, a prefetched buffer which
+ * shares points with the new matrix is handed to the sample store of the plot, from which the
+ * new worker copies them.
+ *
+ * All methods must be called on the event dispatch thread.
+ * @author Petri Aaltonen
+ */
+public class Prefetcher {
+
+    private final RenderScheduler scheduler;
+    private final SampleStore store;
+    private final Deque<PlotCoordinates> queue = new ArrayDeque<>();
+    private Expression expression = null;
+    private Function<PlotCoordinates, PlotWorker> factory = null;
+    private long reserved = 0;
+
+    private int started = 0;
+    private int completed = 0;
+    private int dropped = 0;
+    private int hits = 0;
+    private int misses = 0;
+
+    /**
+     * Initialize a prefetcher.
+     * @param scheduler the scheduler of the plot
+     * @param budget the largest total number of bytes of the prefetched values, 0 to disable
+     *               prefetching
+     */
+    public Prefetcher(RenderScheduler scheduler, long budget) {
+        assert scheduler != null;
+        this.scheduler = scheduler;
+        this.store = new SampleStore(budget);
+    }
+
+    /**
+     * Return true if the budget allows prefetching.
+     * @return
+     */
+    public boolean isEnabled() {
+        return store.getBudget() > 0;
+    }
+
+    /**
+     * Change the budget, evicting the least recently used prefetched values which no longer fit.
+     * @param budget the largest total number of bytes of the prefetched values, 0 to disable
+     *               prefetching
+     */
+    public void setBudget(long budget) {
+        store.setBudget(budget);
+    }
+
+    /**
+     * Replace the views waiting to be prefetched. Views whose values have already been
+     * prefetched are skipped and views which do not fit in the budget are dropped.
+     * @param expression the expression of the plot
+     * @param views the coordinates of the views, the most likely first
+     * @param factory creates the worker which computes a view
+     */
+    public void prefetch(Expression expression, List<PlotCoordinates> views,
+                         Function<PlotCoordinates, PlotWorker> factory) {
+        cancel();
+        if (!isEnabled()) return;
+        queue.addAll(views);
+        this.expression = expression;
+        this.factory = factory;
+        reserved = 0;
+        submitNext();
+    }
+
+    /**
+     * Forget the views waiting to be prefetched, eg. because the plot has moved. A running
+     * prefetch is cancelled by the interactive request which follows.
+     */
+    public void cancel() {
+        queue.clear();
+        expression = null;
+        factory = null;
+    }
+
+    private void submitNext() {
+        if (!queue.isEmpty())
+            scheduler.submit(RenderScheduler.Priority.BACKGROUND, this::createWorker);
+    }
+
+    private PlotWorker createWorker() {
+        Function<PlotCoordinates, PlotWorker> f = factory;
+        PlotCoordinates view;
+        long needed;
+        while (true) {
+            view = queue.poll();
+            if (view == null) return null;
+            if (isPrefetched(view)) continue;
+            needed = 16L * view.getMatrixWidth() * view.getMatrixHeight();
+            if (reserved + needed <= store.getBudget()) break;
+            dropped++;
+        }
+
+        PlotWorker worker = f.apply(view);
+        reserved += needed;
+        started++;
+        worker.addDoneCallback(ref -> {
+            if (ref.getValues() != null) {
+                if (store.add(ref.getValues()))
+                    completed++;
+                else
+                    dropped++;
+            }
+            if (factory == f)
+                submitNext();
+        });
+        return worker;
+    }
+
+    private boolean isPrefetched(PlotCoordinates view) {
+        ValueBuffer buffer = store.find(expression, view);
+        return buffer != null && buffer.matches(expression, view);
+    }
+
+    /**
+     * Move the prefetched buffer which shares the most points with the current matrix into the
+     * sample store of the plot, so that the next worker copies its points. Counts a hit if there
+     * is such a buffer and a miss otherwise.
+     * @param expression the expression of the matrix
+     * @param coordinates the plot coordinates
+     * @param samples the sample store of the plot
+     * @return true on a hit
+     */
+    public boolean claim(Expression expression, PlotCoordinates coordinates, SampleStore samples) {
+        if (!isEnabled()) return false;
+        ValueBuffer buffer = store.find(expression, coordinates);
+        if (buffer == null) {
+            misses++;
+            return false;
+        }
+        store.remove(buffer);
+        samples.add(buffer);
+        hits++;
+        return true;
+    }
+
+    /**
+     * Return the number of prefetches started.
+     * @return
+     */
+    public int getStarted() { return started; }
+
+    /**
+     * Return the number of prefetches which finished without being cancelled.
+     * @return
+     */
+    public int getCompleted() { return completed; }
+
+    /**
+     * Return the number of views not computed or not kept because their values did not fit in
+     * the budget.
+     * @return
+     */
+    public int getDropped() { return dropped; }
+
+    /**
+     * Return the number of new plots which reused a prefetched buffer.
+     * @return
+     */
+    public int getHits() { return hits; }
+
+    /**
+     * Return the number of new plots which found no prefetched buffer.
+     * @return
+     */
+    public int getMisses() { return misses; }
+
+    /**
+     * Return the share of new plots which reused a prefetched buffer, or 0 if there have been
+     * none.
+     * @return
+     */
+    public double getHitRate() {
+        return (hits + misses > 0) ? (double)hits / (hits + misses) : 0.0;
+    }
+
+    /**
+     * Return the total number of bytes of the prefetched values kept.
+     * @return
+     */
+    public long getByteCount() { return store.getByteCount(); }
+
+    @Override
+    public String toString() {
+        return "started " + started + ", completed " + completed + ", dropped " + dropped
+                + ", hits " + hits + ", misses " + misses + String.format(", hit rate %.2f", getHitRate());
+    }
+
+}
@@ -0,0 +1,487 @@
+/*
+    Copyright (C) 2016  Petri Aaltonen
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+
+package cplot;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * A linear program compiled from an eval-tree. The program works on a register file of
+ * primitive doubles where the complex register k occupies the slots 2*k (the real part) and
+ * 2*k + 1 (the imaginary part). Register 0 holds the variable z and the registers following
+ * it hold the constants of the expression. Evaluating the program does not allocate anything
+ * on the heap unless the expression calls a function which is not one of the built-in ones.
+ * @author Petri Aaltonen
+ */
+public final class Program {
+
+    static final int NEG = 0;
+    static final int ADD = 1;
+    static final int SUB = 2;
+    static final int MUL = 3;
+    static final int DIV = 4;
+    static final int POW = 5;
+    static final int ABS = 6;
+    static final int ARG = 7;
+    static final int RE = 8;
+    static final int IM = 9;
+    static final int CONJ = 10;
+    static final int EXP = 11;
+    static final int LOG = 12;
+    static final int SQRT = 13;
+    static final int SIN = 14;
+    static final int COS = 15;
+    static final int TAN = 16;
+    static final int CALL = 17;
+
+    /**
+     * The number of points evaluated at once by evalBlock.
+     */
+    public static final int BLOCK_SIZE = 256;
+
+    // Every instruction takes four ints: the opcode, the destination slot and the slots of the
+    // two operands. Slots are indices into the register file, ie. twice the register number.
+    // For CALL the last operand is an index into calls.
+    private final int [] code;
+    private final double [] image;
+    private final Function [] calls;
+    private final int result;
+
+    private Program(int [] code, double [] image, Function [] calls, int result) {
+        this.code = code;
+        this.image = image;
+        this.calls = calls;
+        this.result = result;
+    }
+
+    /**
+     * Compile an eval-tree into a program.
+     * @param root the root of a tree whose names have been resolved by passTables
+     * @return a new program
+     */
+    public static Program compile(Evaluator.EvalNode root) {
+        Assembler asm = new Assembler();
+        return asm.finish(root.compile(asm));
+    }
+
+    /**
+     * Return the opcode of a built-in function or CALL if the function has no opcode.
+     */
+    static int opcodeOf(Function fcn) {
+        if (fcn instanceof Abs) return ABS;
+        if (fcn instanceof Arg) return ARG;
+        if (fcn instanceof Re) return RE;
+        if (fcn instanceof Im) return IM;
+        if (fcn instanceof Conj) return CONJ;
+        if (fcn instanceof Exp) return EXP;
+        if (fcn instanceof Log) return LOG;
+        if (fcn instanceof Sqrt) return SQRT;
+        if (fcn instanceof Sin) return SIN;
+        if (fcn instanceof Cos) return COS;
+        if (fcn instanceof Tan) return TAN;
+        return CALL;
+    }
+
+    /**
+     * Return a new register file for this program. Each thread evaluating the program needs
+     * a register file of its own.
+     * @return a new array holding the constants of the program
+     */
+    public double [] newRegisters() {
+        return image.clone();
+    }
+
+    /**
+     * Return a new register file for evalBlock. Each slot of the register file is an array of
+     * BLOCK_SIZE doubles so a complex register holds the real parts and the imaginary parts of a
+     * whole block of points in two separate arrays.
+     * @return a new array holding the constants of the program
+     */
+    public double [][] newBlockRegisters() {
+        double [][] r = new double[image.length][BLOCK_SIZE];
+        for (int k = 2; k < image.length; k++)
+            Arrays.fill(r[k], image[k]);
+        return r;
+    }
+
+    /**
+     * Return the number of instructions.
+     * @return
+     */
+    public int getLength() { return code.length / 4; }
+
+    // The following give BytecodeCompiler access to the program. The arrays are not copied
+    // and must not be modified.
+    int [] getCode() { return code; }
+    double [] getImage() { return image; }
+    int getCallCount() { return calls.length; }
+
+    /**
+     * Evaluate the program at z = x + iy.
+     * @param x the real part of z
+     * @param y the imaginary part of z
+     * @param r a register file returned by newRegisters
+     * @param out the real part of the result is written to out[0] and the imaginary part to out[1]
+     */
+    public void eval(double x, double y, double [] r, double [] out) {
+        r[0] = x;
+        r[1] = y;
+        final int [] code = this.code;
+        for (int pc = 0; pc < code.length; pc += 4) {
+            int dst = code[pc + 1];
+            int a = code[pc + 2];
+            int b = code[pc + 3];
+            double ax = r[a];
+            double ay = r[a + 1];
+            switch (code[pc]) {
+                case NEG:
+                    r[dst] = -ax;
+                    r[dst + 1] = -ay;
+                    break;
+                case ADD:
+                    r[dst] = ax + r[b];
+                    r[dst + 1] = ay + r[b + 1];
+                    break;
+                case SUB:
+                    r[dst] = ax - r[b];
+                    r[dst + 1] = ay - r[b + 1];
+                    break;
+                case MUL: {
+                    double bx = r[b];
+                    double by = r[b + 1];
+                    r[dst] = ax * bx - ay * by;
+                    r[dst + 1] = ax * by + ay * bx;
+                    break;
+                }
+                case DIV: {
+                    double bx = r[b];
+                    double by = r[b + 1];
+                    double t = bx * bx + by * by;
+                    r[dst] = (ax * bx + ay * by) / t;
+                    r[dst + 1] = (ay * bx - ax * by) / t;
+                    break;
+                }
+                case POW:
+                    ComplexMath.pow(ax, ay, r[b], r[b + 1], r, dst);
+                    break;
+                case ABS:
+                    ComplexMath.abs(ax, ay, r, dst);
+                    break;
+                case ARG:
+                    ComplexMath.arg(ax, ay, r, dst);
+                    break;
+                case RE:
+                    ComplexMath.re(ax, ay, r, dst);
+                    break;
+                case IM:
+                    ComplexMath.im(ax, ay, r, dst);
+                    break;
+                case CONJ:
+                    ComplexMath.conj(ax, ay, r, dst);
+                    break;
+                case EXP:
+                    ComplexMath.exp(ax, ay, r, dst);
+                    break;
+                case LOG:
+                    ComplexMath.log(ax, ay, r, dst);
+                    break;
+                case SQRT:
+                    ComplexMath.sqrt(ax, ay, r, dst);
+                    break;
+                case SIN:
+                    ComplexMath.sin(ax, ay, r, dst);
+                    break;
+                case COS:
+                    ComplexMath.cos(ax, ay, r, dst);
+                    break;
+                case TAN:
+                    ComplexMath.tan(ax, ay, r, dst);
+                    break;
+                case CALL: {
+                    Complex w = calls[b].eval(new Complex(ax, ay));
+                    r[dst] = w.x;
+                    r[dst + 1] = w.y;
+                    break;
+                }
+                default:
+                    assert false : "unexpected opcode in Program.eval";
+                    throw new Error("unexpected opcode");
+            }
+        }
+        out[0] = r[result];
+        out[1] = r[result + 1];
+    }
+
+    /**
+     * Evaluate the program at a block of points. The caller writes the points into r[0] (the
+     * real parts) and r[1] (the imaginary parts) and the results are left in the slots returned
+     * by getResultSlot and getResultSlot + 1. Every instruction is dispatched once per block.
+     * @param r a register file returned by newBlockRegisters
+     * @param n the number of points, at most BLOCK_SIZE
+     * @param k the kernels carrying out the arithmetic
+     */
+    public void evalBlock(double [][] r, int n, BlockKernels k) {
+        assert n <= BLOCK_SIZE : "n > BLOCK_SIZE in Program.evalBlock";
+        final int [] code = this.code;
+        for (int pc = 0; pc < code.length; pc += 4) {
+            double [] dr = r[code[pc + 1]];
+            double [] di = r[code[pc + 1] + 1];
+            int a = code[pc + 2];
+            int b = code[pc + 3];
+            double [] ar = r[a];
+            double [] ai = r[a + 1];
+            switch (code[pc]) {
+                case NEG: k.neg(ar, ai, dr, di, n); break;
+                case ADD: k.add(ar, ai, r[b], r[b + 1], dr, di, n); break;
+                case SUB: k.sub(ar, ai, r[b], r[b + 1], dr, di, n); break;
+                case MUL: k.mul(ar, ai, r[b], r[b + 1], dr, di, n); break;
+                case DIV: k.div(ar, ai, r[b], r[b + 1], dr, di, n); break;
+                case POW: k.pow(ar, ai, r[b], r[b + 1], dr, di, n); break;
+                case ABS: k.abs(ar, ai, dr, di, n); break;
+                case ARG: k.arg(ar, ai, dr, di, n); break;
+                case RE: k.re(ar, ai, dr, di, n); break;
+                case IM: k.im(ar, ai, dr, di, n); break;
+                case CONJ: k.conj(ar, ai, dr, di, n); break;
+                case EXP: k.exp(ar, ai, dr, di, n); break;
+                case LOG: k.log(ar, ai, dr, di, n); break;
+                case SQRT: k.sqrt(ar, ai, dr, di, n); break;
+                case SIN: k.sin(ar, ai, dr, di, n); break;
+                case COS: k.cos(ar, ai, dr, di, n); break;
+                case TAN: k.tan(ar, ai, dr, di, n); break;
+                case CALL:
+                    for (int i = 0; i < n; i++) {
+                        Complex w = calls[b].eval(new Complex(ar[i], ai[i]));
+                        dr[i] = w.x;
+                        di[i] = w.y;
+                    }
+                    break;
+                default:
+                    assert false : "unexpected opcode in Program.evalBlock";
+                    throw new Error("unexpected opcode");
+            }
+        }
+    }
+
+    /**
+     * Return the register slot holding the real part of the result. The imaginary part is in
+     * the following slot.
+     * @return
+     */
+    public int getResultSlot() { return result; }
+
+    /**
+     * Note: Only for debugging
+     */
+    @Override
+    public String toString() {
+        final String [] names = {"NEG", "ADD", "SUB", "MUL", "DIV", "POW", "ABS", "ARG", "RE", "IM",
+                "CONJ", "EXP", "LOG", "SQRT", "SIN", "COS", "TAN", "CALL"};
+        StringBuilder str = new StringBuilder();
+        boolean [] computed = new boolean[image.length];
+        for (int pc = 0; pc < code.length; pc += 4)
+            computed[code[pc + 1]] = true;
+        for (int k = 2; k < image.length; k += 2)
+            if (!computed[k])
+                str.append("r").append(k / 2).append(" = (").append(image[k]).append(", ")
+                        .append(image[k + 1]).append(")\n");
+        for (int pc = 0; pc < code.length; pc += 4) {
+            str.append("r").append(code[pc + 1] / 2).append(" = ").append(names[code[pc]])
+                    .append(" r").append(code[pc + 2] / 2);
+            if (code[pc] <= POW)
+                str.append(" r").append(code[pc + 3] / 2);
+            str.append("\n");
+        }
+        str.append("return r").append(result / 2).append("\n");
+        return str.toString();
+    }
+
+    /**
+     * Collects the instructions while the eval-tree is walked. Every node of the tree emits its
+     * own instruction after its operands and returns the register holding its value.
+     *
+     * The assembler hash-conses the instructions: an instruction whose opcode and operands
+     * equal those of an earlier one returns the register of the earlier one instead. Since the
+     * operands are themselves registers of hash-consed instructions, structurally identical
+     * subtrees end up in the same register and the program computes each common subexpression
+     * once. Until finish the registers are virtual and every instruction has one of its own.
+     * finish then packs them so that a register is reused as scratch space as soon as the last
+     * instruction reading its value has been executed.
+     */
+    static final class Assembler {
+
+        private int [] code = new int[64];
+        private int codeLength = 0;
+        private double [] image = new double[16];
+        private boolean [] constant = new boolean[8];
+        private int registers = 1;
+        private final ArrayList<Function> calls = new ArrayList<>();
+        private final HashMap<Key, Integer> known = new HashMap<>();
+
+        private int newRegister(boolean isConstant) {
+            if (registers == constant.length)
+                constant = Arrays.copyOf(constant, 2 * constant.length);
+            constant[registers] = isConstant;
+            int slot = 2 * registers++;
+            if (slot + 2 > image.length)
+                image = Arrays.copyOf(image, 2 * image.length);
+            return slot;
+        }
+
+        private int emit(int op, int a, int b) {
+            boolean commutative = op == ADD || op == MUL;
+            Key key = new Key(op, commutative ? Math.min(a, b) : a, commutative ? Math.max(a, b) : b);
+            Integer register = known.get(key);
+            if (register != null)
+                return register;
+            if (codeLength + 4 > code.length)
+                code = Arrays.copyOf(code, 2 * code.length);
+            int dst = newRegister(false);
+            code[codeLength++] = op;
+            code[codeLength++] = dst;
+            code[codeLength++] = a;
+            code[codeLength++] = b;
+            known.put(key, dst);
+            return dst;
+        }
+
+        /**
+         * Return the register of a constant.
+         */
+        int constant(Complex value) {
+            Key key = new Key(-1, Double.doubleToLongBits(value.x), Double.doubleToLongBits(value.y));
+            Integer register = known.get(key);
+            if (register != null)
+                return register;
+            int slot = newRegister(true);
+            image[slot] = value.x;
+            image[slot + 1] = value.y;
+            known.put(key, slot);
+            return slot;
+        }
+
+        /**
+         * Return the register of the variable z which is always register 0. The values of all
+         * other variables are emitted as constants.
+         */
+        int z() {
+            return 0;
+        }
+
+        int unary(int op, int a) {
+            return emit(op, a, 0);
+        }
+
+        int binary(int op, int a, int b) {
+            return emit(op, a, b);
+        }
+
+        int function(Function fcn, int a) {
+            int op = opcodeOf(fcn);
+            if (op != CALL)
+                return emit(op, a, 0);
+            int index = calls.indexOf(fcn);
+            if (index < 0) {
+                calls.add(fcn);
+                index = calls.size() - 1;
+            }
+            return emit(CALL, a, index);
+        }
+
+        /**
+         * Assign the virtual registers to the registers of the program. Register 0 keeps z, the
+         * constants follow it and the rest are scratch registers shared by all values whose
+         * lifetimes do not overlap. The destination of an instruction is never one of its own
+         * operands.
+         */
+        Program finish(int result) {
+            int [] lastUse = new int[registers];
+            Arrays.fill(lastUse, -1);
+            for (int pc = 0; pc < codeLength; pc += 4) {
+                lastUse[code[pc + 2] / 2] = pc;
+                if (code[pc] <= POW)
+                    lastUse[code[pc + 3] / 2] = pc;
+            }
+            lastUse[result / 2] = codeLength;
+
+            int [] map = new int[registers];
+            int packed = 1;
+            for (int k = 1; k < registers; k++)
+                if (constant[k])
+                    map[k] = packed++;
+            double [] packedImage = new double[2 * packed];
+            for (int k = 1; k < registers; k++)
+                if (constant[k]) {
+                    packedImage[2 * map[k]] = image[2 * k];
+                    packedImage[2 * map[k] + 1] = image[2 * k + 1];
+                }
+
+            int [] packedCode = new int[codeLength];
+            ArrayDeque<Integer> free = new ArrayDeque<>();
+            for (int pc = 0; pc < codeLength; pc += 4) {
+                int op = code[pc];
+                int a = code[pc + 2] / 2;
+                int b = code[pc + 3] / 2;
+                int dst = code[pc + 1] / 2;
+                map[dst] = free.isEmpty() ? packed++ : free.pop();
+                packedCode[pc] = op;
+                packedCode[pc + 1] = 2 * map[dst];
+                packedCode[pc + 2] = 2 * map[a];
+                packedCode[pc + 3] = (op <= POW) ? 2 * map[b] : code[pc + 3];
+                if (a != 0 && !constant[a] && lastUse[a] == pc)
+                    free.push(map[a]);
+                if (op <= POW && b != a && b != 0 && !constant[b] && lastUse[b] == pc)
+                    free.push(map[b]);
+            }
+            if (packedImage.length < 2 * packed)
+                packedImage = Arrays.copyOf(packedImage, 2 * packed);
+
+            return new Program(packedCode, packedImage, calls.toArray(new Function[0]),
+                    2 * map[result / 2]);
+        }
+    }
+
+    /**
+     * The opcode and the operands of an instruction or the bits of a constant.
+     */
+    private static final class Key {
+        private final int op;
+        private final long a;
+        private final long b;
+
+        Key(int op, long a, long b) {
+            this.op = op;
+            this.a = a;
+            this.b = b;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) return false;
+            Key k = (Key)o;
+            return op == k.op && a == k.a && b == k.b;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(31 * (31 * op + a) + b);
+        }
+    }
+
+}
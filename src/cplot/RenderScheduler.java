@@ -0,0 +1,153 @@
+/*
+    Copyright (C) 2016  Petri Aaltonen
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+
+package cplot;
+
+import javax.swing.SwingUtilities;
+import javax.swing.SwingWorker;
+import java.util.EnumMap;
+import java.util.function.Supplier;
+
+/**
+ * Decide which render runs and when. Requests are not started at once but at the end of the
+ * current event, so a burst of requests from one user action, such as setting the coloring and
+ * the limits of a new plot, is coalesced into a single render: a request replaces the pending
+ * request of the same priority. The worker of a request is created only when it is started, so
+ * it sees the latest state of the plot.
+ *
+ * An interactive request cancels the running render, which is superseded by it, and runs before
+ * any background request. A background request waits until nothing else runs. A cancelled
+ * worker is expected to stop cooperatively, see TileRenderer.render.
+ *
+ * All methods must be called on the event dispatch thread.
+ * @author Petri Aaltonen
+ */
+public class RenderScheduler {
+
+    /**
+     * The priorities of requests. INTERACTIVE renders show what the user asked for, BACKGROUND
+     * renders only refine or prepare something that is not visible yet.
+     */
+    public enum Priority {INTERACTIVE, BACKGROUND}
+
+    private final EnumMap<Priority, Supplier<? extends SwingWorker<?, ?>>> pending = new EnumMap<>(Priority.class);
+    private SwingWorker<?, ?> running = null;
+    private Priority runningPriority = null;
+    private boolean launchQueued = false;
+
+    private int submitted = 0;
+    private int started = 0;
+    private int coalesced = 0;
+    private int cancelled = 0;
+
+    /**
+     * Request a render.
+     * @param priority the priority of the request
+     * @param factory creates the worker when the request is started, may return null if there
+     *                is nothing to render any more
+     */
+    public void submit(Priority priority, Supplier<? extends SwingWorker<?, ?>> factory) {
+        assert SwingUtilities.isEventDispatchThread() : "not on the event dispatch thread in RenderScheduler.submit";
+        assert priority != null && factory != null;
+        submitted++;
+        if (pending.put(priority, factory) != null)
+            coalesced++;
+        if (priority == Priority.INTERACTIVE && running != null)
+            cancelRunning();
+        queueLaunch();
+    }
+
+    private void cancelRunning() {
+        if (!running.isDone() && running.cancel(true))
+            cancelled++;
+        running = null;
+        runningPriority = null;
+    }
+
+    private void queueLaunch() {
+        if (!launchQueued) {
+            launchQueued = true;
+            SwingUtilities.invokeLater(this::launch);
+        }
+    }
+
+    private void launch() {
+        launchQueued = false;
+        while (running == null && !pending.isEmpty()) {
+            Priority priority = pending.containsKey(Priority.INTERACTIVE) ? Priority.INTERACTIVE : Priority.BACKGROUND;
+            SwingWorker<?, ?> worker = pending.remove(priority).get();
+            if (worker == null)
+                continue;
+
+            running = worker;
+            runningPriority = priority;
+            started++;
+            worker.addPropertyChangeListener(e -> {
+                if ("state".equals(e.getPropertyName()) && e.getNewValue() == SwingWorker.StateValue.DONE
+                        && running == worker) {
+                    running = null;
+                    runningPriority = null;
+                    queueLaunch();
+                }
+            });
+            worker.execute();
+        }
+    }
+
+    /**
+     * Return the priority of the running render or null if nothing runs.
+     * @return
+     */
+    public Priority getRunningPriority() { return runningPriority; }
+
+    /**
+     * Return true if a render is running or waiting to be started.
+     * @return
+     */
+    public boolean isBusy() { return running != null || !pending.isEmpty(); }
+
+    /**
+     * Return the number of requests submitted.
+     * @return
+     */
+    public int getSubmitted() { return submitted; }
+
+    /**
+     * Return the number of renders started.
+     * @return
+     */
+    public int getStarted() { return started; }
+
+    /**
+     * Return the number of requests which were replaced by a later request before they started.
+     * @return
+     */
+    public int getCoalesced() { return coalesced; }
+
+    /**
+     * Return the number of running renders cancelled by a later request.
+     * @return
+     */
+    public int getCancelled() { return cancelled; }
+
+    @Override
+    public String toString() {
+        return "submitted " + submitted + ", started " + started + ", coalesced " + coalesced
+                + ", cancelled " + cancelled;
+    }
+
+}
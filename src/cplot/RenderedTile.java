@@ -0,0 +1,76 @@
+/*
+    Copyright (C) 2016  Petri Aaltonen
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+
+package cplot;
+
+import java.awt.Rectangle;
+
+/**
+ * A rectangle of the plot matrix whose pixels a worker has finished. Tiles are published by
+ * Plot while a plot is being computed, so that the finished parts can be drawn before the whole
+ * plot is ready.
+ *
+ * A tile does not copy the pixels but refers to the pixel array of its worker. The pixels of the
+ * rectangle are final when the tile is published, except that a later pass of a progressive
+ * worker may refine them and then publishes them again.
+ * @author Petri Aaltonen
+ */
+public final class RenderedTile {
+
+    private final PlotWorker source;
+    private final Rectangle bounds;
+    private final int [] rgb;
+    private final int scanWidth;
+
+    /**
+     * Initialize a tile.
+     * @param source the worker which computed the tile
+     * @param bounds the rectangle of the matrix
+     * @param rgb the packed RGB values of the whole matrix row by row
+     * @param scanWidth the width of the matrix
+     */
+    RenderedTile(PlotWorker source, Rectangle bounds, int [] rgb, int scanWidth) {
+        this.source = source;
+        this.bounds = new Rectangle(bounds);
+        this.rgb = rgb;
+        this.scanWidth = scanWidth;
+    }
+
+    /**
+     * Return the worker which computed the tile.
+     * @return
+     */
+    public PlotWorker getSource() { return source; }
+
+    /**
+     * Return the rectangle of the matrix covered by the tile.
+     * @return
+     */
+    public Rectangle getBounds() { return new Rectangle(bounds); }
+
+    /**
+     * Return a copy of the packed RGB values of the tile row by row.
+     * @return
+     */
+    public int [] getPixels() {
+        int [] pixels = new int[bounds.width * bounds.height];
+        for (int j = 0; j < bounds.height; j++)
+            System.arraycopy(rgb, (bounds.y + j)*scanWidth + bounds.x, pixels, j*bounds.width, bounds.width);
+        return pixels;
+    }
+
+}
@@ -0,0 +1,252 @@
+/*
+    Copyright (C) 2016  Petri Aaltonen
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+
+package cplot;
+
+import java.awt.Rectangle;
+import java.util.LinkedList;
+
+/**
+ * The value buffers of the most recent plots, kept so that a plot zoomed by a power of two can
+ * copy the samples it shares with them instead of evaluating them again. A sample is found by
+ * its lattice coordinates: the buffers and the matrix share the anchor of the lattice, so the
+ * column x of the matrix at scale k below a buffer is the column (latticeX + x) / 2^k - latticeX'
+ * of the buffer, and similarly for the rows.
+ *
+ * The buffers are evicted in least recently used order when their total size exceeds the
+ * budget. The methods may be called from any thread.
+ * @author Petri Aaltonen
+ */
+public class SampleStore {
+
+    // The largest zoom factor, as a power of two, over which samples are reused. The samples of
+    // a buffer which is at most this much coarser than the matrix replace the coarse passes of
+    // a progressive render, see PlotWorker.COARSEST_STEP.
+    public static final int MAX_SCALE = 3;
+
+    private long budget;
+    private final LinkedList<ValueBuffer> buffers = new LinkedList<>();
+    private long bytes = 0;
+
+    /**
+     * Initialize a store.
+     * @param budget the largest total number of bytes of the buffers, must not be negative
+     */
+    public SampleStore(long budget) {
+        if (budget < 0)
+            throw new IllegalArgumentException("budget < 0 in SampleStore.SampleStore");
+        this.budget = budget;
+    }
+
+    /**
+     * Add the buffer of a finished plot as the most recently used one. Adding a buffer which is
+     * already in the store only marks it used. A buffer larger than the whole budget is not
+     * added.
+     * @param buffer a buffer whose arrays are no longer modified
+     * @return false if the buffer is larger than the budget
+     */
+    public synchronized boolean add(ValueBuffer buffer) {
+        if (buffers.remove(buffer)) {
+            buffers.addFirst(buffer);
+            return true;
+        }
+        if (buffer.getByteCount() > budget) return false;
+        buffers.addFirst(buffer);
+        bytes += buffer.getByteCount();
+        evict();
+        return true;
+    }
+
+    /**
+     * Change the budget and evict the least recently used buffers which no longer fit.
+     * @param budget the largest total number of bytes of the buffers, must not be negative
+     */
+    public synchronized void setBudget(long budget) {
+        if (budget < 0)
+            throw new IllegalArgumentException("budget < 0 in SampleStore.setBudget");
+        this.budget = budget;
+        evict();
+    }
+
+    private void evict() {
+        while (bytes > budget)
+            bytes -= buffers.removeLast().getByteCount();
+    }
+
+    /**
+     * Return the buffer which shares the most points with the current matrix and mark it used,
+     * or null if no buffer shares any.
+     * @param expression the expression of the matrix
+     * @param coordinates the plot coordinates
+     * @return
+     */
+    public ValueBuffer find(Expression expression, PlotCoordinates coordinates) {
+        return find(expression, coordinates,
+                new Rectangle(0, 0, coordinates.getMatrixWidth(), coordinates.getMatrixHeight()), MAX_SCALE);
+    }
+
+    /**
+     * Return the buffer which shares the most points with a rectangle of the current matrix and
+     * mark it used, or null if no buffer shares any.
+     * @param expression the expression of the matrix
+     * @param coordinates the plot coordinates
+     * @param region a rectangle of the matrix
+     * @param maxScale the largest absolute value of the scale of the buffer, 0 for buffers with
+     *                 the spacing of the matrix
+     * @return
+     */
+    public synchronized ValueBuffer find(Expression expression, PlotCoordinates coordinates,
+                                         Rectangle region, int maxScale) {
+        ValueBuffer best = null;
+        long bestCount = 0;
+        for (ValueBuffer buffer : buffers) {
+            if (!buffer.isOnDyadicLattice(expression, coordinates, maxScale)) continue;
+            Rectangle shared = sharedPoints(buffer, coordinates).intersection(region);
+            if (shared.isEmpty()) continue;
+            long count = (long)shared.width * shared.height;
+            int scale = buffer.getScale(coordinates);
+            if (scale > 0)
+                count >>= 2*scale;
+            if (count > bestCount) {
+                best = buffer;
+                bestCount = count;
+            }
+        }
+        if (best != null) {
+            buffers.remove(best);
+            buffers.addFirst(best);
+        }
+        return best;
+    }
+
+    /**
+     * Remove a buffer from the store.
+     * @param buffer a buffer
+     * @return true if the buffer was in the store
+     */
+    public synchronized boolean remove(ValueBuffer buffer) {
+        if (!buffers.remove(buffer)) return false;
+        bytes -= buffer.getByteCount();
+        return true;
+    }
+
+    /**
+     * Return the rectangle of the matrix which the points of a buffer on its dyadic lattice
+     * cover. If the buffer is coarser than the matrix, only every 2^scale:th column and row of
+     * the rectangle lies on the buffer, counted from its top left corner.
+     * @param buffer a buffer for which isOnDyadicLattice is true
+     * @param coordinates the plot coordinates
+     * @return the rectangle, empty if the buffer shares no points with the matrix
+     */
+    public static Rectangle sharedPoints(ValueBuffer buffer, PlotCoordinates coordinates) {
+        int scale = buffer.getScale(coordinates);
+        int width = coordinates.getMatrixWidth();
+        int height = coordinates.getMatrixHeight();
+        // The lattice indices of the columns and the rows of the matrix, the rows counted from
+        // the bottom row upwards.
+        long x0 = coordinates.getLatticeX();
+        long y0 = coordinates.getLatticeY();
+        long bx0 = buffer.getLatticeX();
+        long by0 = buffer.getLatticeY();
+        long bx1 = bx0 + buffer.getWidth() - 1;
+        long by1 = by0 + buffer.getHeight() - 1;
+        long left, right, bottom, top;
+        if (scale >= 0) {
+            // The index i of the buffer is the index i*2^scale of the matrix.
+            left = bx0 << scale;
+            right = bx1 << scale;
+            bottom = by0 << scale;
+            top = by1 << scale;
+        }
+        else {
+            // The index i of the matrix is the index i*2^-scale of the buffer.
+            left = -Math.floorDiv(-bx0, 1L << -scale);
+            right = Math.floorDiv(bx1, 1L << -scale);
+            bottom = -Math.floorDiv(-by0, 1L << -scale);
+            top = Math.floorDiv(by1, 1L << -scale);
+        }
+        left = Math.max(left, x0);
+        right = Math.min(right, x0 + width - 1);
+        bottom = Math.max(bottom, y0);
+        top = Math.min(top, y0 + height - 1);
+        if (scale > 0) {
+            // The first column and the first row from the top must lie on the buffer.
+            left += Math.floorMod(-left, 1L << scale);
+            top -= Math.floorMod(top, 1L << scale);
+        }
+        if (left > right || bottom > top)
+            return new Rectangle();
+        return new Rectangle(
+                (int)(left - x0),
+                (int)(y0 + height - 1 - top),
+                (int)(right - left + 1),
+                (int)(top - bottom + 1));
+    }
+
+    /**
+     * Copy the values of the points a buffer shares with the matrix into a buffer of the matrix.
+     * @param source a buffer for which isOnDyadicLattice is true
+     * @param target a buffer of the current matrix
+     * @param coordinates the plot coordinates
+     * @param shared the rectangle returned by sharedPoints
+     */
+    public static void copy(ValueBuffer source, ValueBuffer target, PlotCoordinates coordinates,
+                            Rectangle shared) {
+        int scale = source.getScale(coordinates);
+        int step = (scale > 0) ? 1 << scale : 1;
+        int width = target.getWidth();
+        int height = target.getHeight();
+        int sourceWidth = source.getWidth();
+        long top = source.getLatticeY() + source.getHeight() - 1;
+        for (int y = shared.y; y < shared.y + shared.height; y += step) {
+            long row = (long)coordinates.getLatticeY() + height - 1 - y;
+            long sy = top - ((scale >= 0) ? row >> scale : row << -scale);
+            for (int x = shared.x; x < shared.x + shared.width; x += step) {
+                long column = (long)coordinates.getLatticeX() + x;
+                long sx = ((scale >= 0) ? column >> scale : column << -scale) - source.getLatticeX();
+                int src = (int)(sy*sourceWidth + sx);
+                target.re[y*width + x] = source.re[src];
+                target.im[y*width + x] = source.im[src];
+            }
+        }
+    }
+
+    /**
+     * Return the largest total number of bytes of the buffers.
+     * @return
+     */
+    public synchronized long getBudget() {
+        return budget;
+    }
+
+    /**
+     * Return the number of buffers in the store.
+     * @return
+     */
+    public synchronized int size() {
+        return buffers.size();
+    }
+
+    /**
+     * Return the total number of bytes of the buffers in the store.
+     * @return
+     */
+    public synchronized long getByteCount() {
+        return bytes;
+    }
+
+}
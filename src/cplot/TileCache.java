@@ -0,0 +1,312 @@
+/*
+    Copyright (C) 2016  Petri Aaltonen
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+
+package cplot;
+
+import java.awt.Rectangle;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A cache of rendered tiles of the lattice. The lattice is divided into squares of TILE_SIZE
+ * points, indexed like the lattice points from its anchor, and a tile holds the values and the
+ * pixels of one square. A tile is found by the canonical key of the expression, the coloring,
+ * the lattice (its anchor and spacing) and the indices of the square, so a plot which returns to
+ * a region, a coloring or a zoom level it has shown before copies the tiles instead of
+ * evaluating them.
+ *
+ * The cache is divided into stripes, each a map of its own in least recently used order under
+ * a lock of its own, so the render threads of several workers rarely wait for each other. Each
+ * stripe evicts its least recently used tiles when its tiles exceed its share of the budget.
+ * @author Petri Aaltonen
+ */
+public class TileCache {
+
+    // The number of lattice points on a side of a tile. A multiple of the coarsest step of a
+    // progressive render, so the passes of a tile line up with the passes of the matrix.
+    public static final int TILE_SIZE = 64;
+
+    private static final int STRIPES = 16;
+
+    /**
+     * The key of a tile.
+     */
+    public static final class Key {
+        private final Object expression;
+        private final Coloring coloring;
+        private final double deltaX;
+        private final double deltaY;
+        private final double anchorRe;
+        private final double anchorIm;
+        private final long tileX;
+        private final long tileY;
+
+        /**
+         * Initialize the key of a tile of the current lattice.
+         * @param expression the expression of the plot
+         * @param coloring the coloring of the pixels
+         * @param coordinates the plot coordinates
+         * @param tileX the index of the column of tiles, counted from the anchor to the right
+         * @param tileY the index of the row of tiles, counted from the anchor upwards
+         */
+        public Key(Expression expression, Coloring coloring, PlotCoordinates coordinates,
+                   long tileX, long tileY) {
+            this.expression = expression.getCanonicalKey();
+            this.coloring = coloring;
+            this.deltaX = coordinates.getDeltaX();
+            this.deltaY = coordinates.getDeltaY();
+            this.anchorRe = coordinates.getAnchorRe();
+            this.anchorIm = coordinates.getAnchorIm();
+            this.tileX = tileX;
+            this.tileY = tileY;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) return false;
+            Key k = (Key)o;
+            return tileX == k.tileX && tileY == k.tileY
+                    && coloring == k.coloring
+                    && Double.compare(deltaX, k.deltaX) == 0
+                    && Double.compare(deltaY, k.deltaY) == 0
+                    && Double.compare(anchorRe, k.anchorRe) == 0
+                    && Double.compare(anchorIm, k.anchorIm) == 0
+                    && expression.equals(k.expression);
+        }
+
+        @Override
+        public int hashCode() {
+            int h = Long.hashCode(tileX);
+            h = 31*h + Long.hashCode(tileY);
+            h = 31*h + Double.hashCode(deltaX);
+            h = 31*h + Double.hashCode(deltaY);
+            h = 31*h + Double.hashCode(anchorRe);
+            h = 31*h + Double.hashCode(anchorIm);
+            h = 31*h + System.identityHashCode(coloring);
+            return 31*h + expression.hashCode();
+        }
+    }
+
+    /**
+     * The values and the packed RGB values of the points of a tile, row by row from the top.
+     */
+    public static final class Tile {
+        final double [] re;
+        final double [] im;
+        final int [] rgb;
+
+        Tile(double [] re, double [] im, int [] rgb) {
+            this.re = re;
+            this.im = im;
+            this.rgb = rgb;
+        }
+
+        long getByteCount() {
+            return 20L * rgb.length;
+        }
+    }
+
+    private static final class Stripe {
+        final LinkedHashMap<Key, Tile> tiles = new LinkedHashMap<>(64, 0.75f, true);
+        long bytes = 0;
+    }
+
+    private final long budget;
+    private final Stripe [] stripes = new Stripe[STRIPES];
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * Initialize a cache.
+     * @param budget the largest total number of bytes of the tiles, must not be negative
+     */
+    public TileCache(long budget) {
+        if (budget < 0)
+            throw new IllegalArgumentException("budget < 0 in TileCache.TileCache");
+        this.budget = budget;
+        for (int i = 0; i < STRIPES; i++)
+            stripes[i] = new Stripe();
+    }
+
+    private Stripe stripe(Key key) {
+        int h = key.hashCode();
+        return stripes[(h ^ (h >>> 16)) & (STRIPES - 1)];
+    }
+
+    /**
+     * Return the index of the column of tiles of a lattice column.
+     * @param column a lattice index
+     * @return
+     */
+    public static long tileIndex(long column) {
+        return Math.floorDiv(column, TILE_SIZE);
+    }
+
+    /**
+     * Return the rectangle of the matrix a tile covers. The rectangle may reach outside of the
+     * matrix.
+     * @param coordinates the plot coordinates
+     * @param tileX the index of the column of tiles
+     * @param tileY the index of the row of tiles
+     * @return
+     */
+    public static Rectangle bounds(PlotCoordinates coordinates, long tileX, long tileY) {
+        long top = tileY*TILE_SIZE + TILE_SIZE - 1;
+        return new Rectangle(
+                (int)(tileX*TILE_SIZE - coordinates.getLatticeX()),
+                (int)(coordinates.getLatticeY() + coordinates.getMatrixHeight() - 1 - top),
+                TILE_SIZE,
+                TILE_SIZE);
+    }
+
+    /**
+     * Return a tile and mark it used, or null if it is not in the cache.
+     * @param key the key of the tile
+     * @return
+     */
+    public Tile get(Key key) {
+        Stripe s = stripe(key);
+        Tile tile;
+        synchronized (s) {
+            tile = s.tiles.get(key);
+        }
+        (tile != null ? hits : misses).incrementAndGet();
+        return tile;
+    }
+
+    /**
+     * Return true if a tile is in the cache. Does not count as a hit or a miss.
+     * @param key the key of the tile
+     * @return
+     */
+    public boolean contains(Key key) {
+        Stripe s = stripe(key);
+        synchronized (s) {
+            return s.tiles.containsKey(key);
+        }
+    }
+
+    /**
+     * Add a tile as the most recently used one of its stripe and evict the least recently used
+     * tiles of the stripe if they exceed its share of the budget.
+     * @param key the key of the tile
+     * @param tile a tile whose arrays are no longer modified
+     */
+    public void put(Key key, Tile tile) {
+        long share = budget / STRIPES;
+        if (tile.getByteCount() > share) return;
+        Stripe s = stripe(key);
+        synchronized (s) {
+            Tile old = s.tiles.put(key, tile);
+            if (old != null) s.bytes -= old.getByteCount();
+            s.bytes += tile.getByteCount();
+            Iterator<Map.Entry<Key, Tile>> it = s.tiles.entrySet().iterator();
+            while (s.bytes > share) {
+                s.bytes -= it.next().getValue().getByteCount();
+                it.remove();
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Copy a tile of the lattice out of a buffer of the current matrix.
+     * @param values the values of the matrix
+     * @param rgb the pixels of the matrix
+     * @param r the bounds of the tile, which must lie inside the matrix
+     * @return
+     */
+    public static Tile copyOut(ValueBuffer values, int [] rgb, Rectangle r) {
+        int n = r.width * r.height;
+        Tile tile = new Tile(new double[n], new double[n], new int[n]);
+        int width = values.getWidth();
+        for (int y = 0; y < r.height; y++) {
+            int src = (r.y + y)*width + r.x;
+            System.arraycopy(values.re, src, tile.re, y*r.width, r.width);
+            System.arraycopy(values.im, src, tile.im, y*r.width, r.width);
+            System.arraycopy(rgb, src, tile.rgb, y*r.width, r.width);
+        }
+        return tile;
+    }
+
+    /**
+     * Copy a tile into a buffer of the current matrix.
+     * @param tile a tile
+     * @param values the values of the matrix
+     * @param rgb the pixels of the matrix
+     * @param r the bounds of the tile, which must lie inside the matrix
+     */
+    public static void copyIn(Tile tile, ValueBuffer values, int [] rgb, Rectangle r) {
+        int width = values.getWidth();
+        for (int y = 0; y < r.height; y++) {
+            int dst = (r.y + y)*width + r.x;
+            System.arraycopy(tile.re, y*r.width, values.re, dst, r.width);
+            System.arraycopy(tile.im, y*r.width, values.im, dst, r.width);
+            System.arraycopy(tile.rgb, y*r.width, rgb, dst, r.width);
+        }
+    }
+
+    /**
+     * Return the number of lookups which found their tile.
+     * @return
+     */
+    public long getHits() { return hits.get(); }
+
+    /**
+     * Return the number of lookups which did not find their tile.
+     * @return
+     */
+    public long getMisses() { return misses.get(); }
+
+    /**
+     * Return the number of tiles evicted to keep the cache within its budget.
+     * @return
+     */
+    public long getEvictions() { return evictions.get(); }
+
+    /**
+     * Return the number of tiles in the cache.
+     * @return
+     */
+    public int size() {
+        int n = 0;
+        for (Stripe s : stripes)
+            synchronized (s) { n += s.tiles.size(); }
+        return n;
+    }
+
+    /**
+     * Return the total number of bytes of the tiles in the cache.
+     * @return
+     */
+    public long getByteCount() {
+        long n = 0;
+        for (Stripe s : stripes)
+            synchronized (s) { n += s.bytes; }
+        return n;
+    }
+
+    @Override
+    public String toString() {
+        return "hits " + getHits() + ", misses " + getMisses() + ", evictions " + getEvictions()
+                + ", tiles " + size();
+    }
+
+}
@@ -0,0 +1,505 @@
+/*
+    Copyright (C) 2016  Petri Aaltonen
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+
+package cplot;
+
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A rendering engine which splits the plot matrix into square tiles and renders the tiles
+ * in parallel on a ForkJoinPool. Each tile is evaluated in batches with Expression.evalGrid
+ * which computes the same values bit by bit as the serial loop of PlotWorker, so both engines
+ * produce identical images. The values are stored into a ValueBuffer before the pixels of the
+ * tile are colored, and a buffer can later be colored again without evaluating anything.
+ *
+ * The tiles are rendered in a spiral outward from a focus point, such as the center of the
+ * viewport, and a Monitor is told about each tile as soon as it is done.
+ * @author Petri Aaltonen
+ */
+public class TileRenderer {
+
+    public static final int DEFAULT_TILE_SIZE = 64;
+
+    /**
+     * Steers a render and observes its progress tile by tile. The methods are called from the
+     * pool threads.
+     */
+    @FunctionalInterface
+    public interface Monitor {
+
+        /**
+         * Polled before each tile, once it returns true the remaining tiles are skipped and the
+         * render returns early.
+         * @return
+         */
+        boolean isCancelled();
+
+        /**
+         * Return the matrix point the tiles are rendered outward from, or null to render them
+         * in order.
+         * @return
+         */
+        default Point getFocus() { return null; }
+
+        /**
+         * Called when a rectangle of pixels is done. The rectangle may extend beyond the tile
+         * when the samples of a progressive pass are colored as blocks.
+         * @param bounds a rectangle of the matrix
+         */
+        default void tileDone(Rectangle bounds) { }
+    }
+
+    private final ForkJoinPool pool;
+    private final int tileSize;
+
+    /**
+     * Initialize a renderer which uses all available processors and the default tile size.
+     */
+    public TileRenderer() {
+        this(Runtime.getRuntime().availableProcessors(), DEFAULT_TILE_SIZE);
+    }
+
+    /**
+     * Initialize a renderer.
+     * @param parallelism the number of threads in the pool, must be positive
+     * @param tileSize the width and height of a tile in pixels, must be positive
+     */
+    public TileRenderer(int parallelism, int tileSize) {
+        if (parallelism < 1)
+            throw new IllegalArgumentException("parallelism must be positive in TileRenderer.TileRenderer");
+        if (tileSize < 1)
+            throw new IllegalArgumentException("tileSize must be positive in TileRenderer.TileRenderer");
+        this.pool = new ForkJoinPool(parallelism);
+        this.tileSize = tileSize;
+    }
+
+    /**
+     * Return the number of threads in the pool.
+     * @return
+     */
+    public int getParallelism() { return pool.getParallelism(); }
+
+    /**
+     * Return the tile size in pixels.
+     * @return
+     */
+    public int getTileSize() { return tileSize; }
+
+    /**
+     * Render the whole matrix into an image. The call blocks until all tiles are done.
+     * @param expression the expression, each pool thread evaluates it in a context of its own
+     * @param coloring the coloring scheme
+     * @param coordinates the plot coordinates
+     * @param values an empty buffer of the size of the matrix which receives the values
+     * @param rgb receives the packed RGB values of the matrix row by row, the tiles write
+     *            disjoint parts of it
+     * @param progressCallbacks callbacks which are notified of the progress, may be called from
+     *                          any of the pool threads
+     */
+    public void render(Expression expression, Coloring coloring, PlotCoordinates coordinates,
+                       ValueBuffer values, int [] rgb,
+                       List<ProgressChangedCallback> progressCallbacks) {
+        render(expression, coloring, coordinates, values, rgb, wholeMatrix(values), progressCallbacks);
+    }
+
+    /**
+     * Render only some rectangles of the matrix, for example the strips exposed by scanning. The
+     * rest of the buffer and the image are left untouched. The call blocks until all tiles are
+     * done.
+     * @param expression the expression, each pool thread evaluates it in a context of its own
+     * @param coloring the coloring scheme
+     * @param coordinates the plot coordinates
+     * @param values a buffer of the size of the matrix which receives the values
+     * @param rgb receives the packed RGB values of the matrix row by row
+     * @param regions disjoint rectangles of the matrix to render
+     * @param progressCallbacks callbacks which are notified of the progress of the regions
+     */
+    public void render(Expression expression, Coloring coloring, PlotCoordinates coordinates,
+                       ValueBuffer values, int [] rgb, List<Rectangle> regions,
+                       List<ProgressChangedCallback> progressCallbacks) {
+        render(expression, coloring, coordinates, values, rgb, regions, 1, false, () -> false, progressCallbacks);
+    }
+
+    /**
+     * Render one pass of a progressive render of some rectangles of the matrix. A pass evaluates
+     * only every step:th column and row counted from the top left corner of each rectangle, and
+     * colors every such sample as a block of step x step pixels. The samples of a pass with twice
+     * the step are a subset of the samples of a pass, so a refining pass evaluates only the
+     * samples that the previous pass did not. A refining pass with step 1 colors every pixel from
+     * its own value and completes the render. The call blocks until all tiles are done.
+     * @param expression the expression, each pool thread evaluates it in a context of its own
+     * @param coloring the coloring scheme
+     * @param coordinates the plot coordinates
+     * @param values a buffer of the size of the matrix which receives the values
+     * @param rgb receives the packed RGB values of the matrix row by row
+     * @param regions disjoint rectangles of the matrix to render
+     * @param step the distance between samples, a power of two
+     * @param refine true if the buffer already holds the samples of the pass with twice the step
+     * @param monitor steers the render and is told about each tile done
+     * @param progressCallbacks callbacks which are notified of the progress of the pass
+     */
+    public void render(Expression expression, Coloring coloring, PlotCoordinates coordinates,
+                       ValueBuffer values, int [] rgb, List<Rectangle> regions, int step, boolean refine,
+                       Monitor monitor, List<ProgressChangedCallback> progressCallbacks) {
+        if (step < 1 || Integer.bitCount(step) != 1)
+            throw new IllegalArgumentException("step must be a power of two in TileRenderer.render");
+        run(new Job(expression, coloring, coordinates, values, rgb, regions, step, refine, monitor,
+                progressCallbacks));
+    }
+
+    /**
+     * Color the values of a buffer into an image without evaluating the expression. The call
+     * blocks until all tiles are done.
+     * @param values a buffer filled by an earlier render
+     * @param coloring the coloring scheme
+     * @param rgb receives the packed RGB values row by row
+     * @param progressCallbacks callbacks which are notified of the progress, may be called from
+     *                          any of the pool threads
+     */
+    public void colorize(ValueBuffer values, Coloring coloring, int [] rgb,
+                         List<ProgressChangedCallback> progressCallbacks) {
+        colorize(values, coloring, rgb, wholeMatrix(values), () -> false, progressCallbacks);
+    }
+
+    /**
+     * Color only some rectangles of a buffer without evaluating the expression. The call blocks
+     * until all tiles are done.
+     * @param values a buffer whose regions are filled
+     * @param coloring the coloring scheme
+     * @param rgb receives the packed RGB values row by row
+     * @param regions disjoint rectangles of the matrix to color
+     * @param monitor steers the render and is told about each tile done
+     * @param progressCallbacks callbacks which are notified of the progress of the regions
+     */
+    public void colorize(ValueBuffer values, Coloring coloring, int [] rgb, List<Rectangle> regions,
+                         Monitor monitor, List<ProgressChangedCallback> progressCallbacks) {
+        colorize(values, coloring, rgb, regions, 1, monitor, progressCallbacks);
+    }
+
+    /**
+     * Color the samples of a pass of a progressive render which are already in a buffer as
+     * blocks, without evaluating the expression. The call blocks until all tiles are done.
+     * @param values a buffer which holds the samples of the regions
+     * @param coloring the coloring scheme
+     * @param rgb receives the packed RGB values row by row
+     * @param regions disjoint rectangles of the matrix to color
+     * @param step the distance between samples, a power of two
+     * @param monitor steers the render and is told about each tile done
+     * @param progressCallbacks callbacks which are notified of the progress of the regions
+     */
+    public void colorize(ValueBuffer values, Coloring coloring, int [] rgb, List<Rectangle> regions,
+                         int step, Monitor monitor, List<ProgressChangedCallback> progressCallbacks) {
+        if (step < 1 || Integer.bitCount(step) != 1)
+            throw new IllegalArgumentException("step must be a power of two in TileRenderer.colorize");
+        run(new Job(null, coloring, null, values, rgb, regions, step, false, monitor, progressCallbacks));
+    }
+
+    /**
+     * Return the number of samples a pass of a progressive render evaluates in a rectangle.
+     * @param region a rectangle of the matrix
+     * @param step the distance between samples
+     * @param refine true if the samples of the pass with twice the step are skipped
+     * @return
+     */
+    static int sampleCount(Rectangle region, int step, boolean refine) {
+        int n = samples(region.width, step) * samples(region.height, step);
+        if (refine)
+            n -= samples(region.width, 2*step) * samples(region.height, 2*step);
+        return n;
+    }
+
+    private static int samples(int length, int step) {
+        return (length + step - 1) / step;
+    }
+
+    /**
+     * Color the samples of a progressive pass on one row and fill the block of each sample. The
+     * blocks are clipped to the rectangle the samples belong to.
+     * @param values the buffer holding the samples
+     * @param coloring the coloring scheme
+     * @param rgb receives the packed RGB values of the matrix row by row
+     * @param region the rectangle of the samples
+     * @param y the matrix row of the samples
+     * @param x0 the matrix column of the first sample
+     * @param x1 the column after the last sample
+     * @param step the distance between samples
+     * @param in scratch arrays owned by the calling thread
+     */
+    static void colorBlocks(ValueBuffer values, Coloring coloring, int [] rgb, Rectangle region,
+                            int y, int x0, int x1, int step, ColoringInput in) {
+        int width = values.getWidth();
+        int n = samples(x1 - x0, step);
+        double [] re = new double[n];
+        double [] im = new double[n];
+        int [] color = new int[n];
+        for (int i = 0; i < n; i++) {
+            re[i] = values.re[y*width + x0 + i*step];
+            im[i] = values.im[y*width + x0 + i*step];
+        }
+        coloring.colorize(re, im, color, 0, n, in);
+
+        int right = region.x + region.width;
+        int bottom = Math.min(y + step, region.y + region.height);
+        for (int i = 0; i < n; i++) {
+            int x = x0 + i*step;
+            int w = Math.min(x + step, right) - x;
+            for (int j = y; j < bottom; j++)
+                Arrays.fill(rgb, j*width + x, j*width + x + w, color[i]);
+        }
+    }
+
+    private static List<Rectangle> wholeMatrix(ValueBuffer values) {
+        return Collections.singletonList(new Rectangle(0, 0, values.getWidth(), values.getHeight()));
+    }
+
+    /**
+     * Render the tiles of a job in the order of its queue. One task per pool thread takes the
+     * next tile from the queue until it is empty or the job is cancelled, so the tiles are
+     * finished roughly in the order of the queue.
+     */
+    private void run(Job job) {
+        if (job.tileCount == 0) return;
+        List<ForkJoinTask<?>> tasks = new ArrayList<>(pool.getParallelism());
+        for (int i = 0; i < pool.getParallelism(); i++)
+            tasks.add(pool.submit(job::drain));
+        for (ForkJoinTask<?> task : tasks)
+            task.join();
+    }
+
+    /**
+     * Shut down the pool threads.
+     */
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    /**
+     * State shared by all tiles of one render. Every region is split into tiles of its own and
+     * the tiles of all regions are numbered consecutively. A job with a step larger than one, or
+     * a refining job, renders one pass of a progressive render. The tiles are taken from a queue
+     * ordered by the distance from the focus of the monitor. If the expression is null the values
+     * are read from the buffer instead of being computed.
+     */
+    private class Job {
+        final Coloring coloring;
+        final PlotCoordinates coordinates;
+        final ValueBuffer values;
+        final int [] rgb;
+        final List<ProgressChangedCallback> progressCallbacks;
+        final int width;
+        final Rectangle [] regions;
+        final int [] firstTile;
+        final int tileCount;
+        final int pixelCount;
+        final int step;
+        final boolean refine;
+        final Monitor monitor;
+        final int [] order;
+        final AtomicInteger next = new AtomicInteger();
+        final Expression expression;
+        final ThreadLocal<Expression.Context> contexts;
+        final ThreadLocal<ColoringInput> inputs = ThreadLocal.withInitial(ColoringInput::new);
+        final AtomicInteger progressed = new AtomicInteger();
+        final AtomicInteger lastProgress = new AtomicInteger();
+
+        Job(Expression expression, Coloring coloring, PlotCoordinates coordinates, ValueBuffer values,
+            int [] rgb, List<Rectangle> regions, int step, boolean refine, Monitor monitor,
+            List<ProgressChangedCallback> progressCallbacks) {
+            this.coloring = coloring;
+            this.coordinates = coordinates;
+            this.values = values;
+            this.rgb = rgb;
+            this.progressCallbacks = progressCallbacks;
+            this.width = values.getWidth();
+            this.regions = regions.toArray(new Rectangle[0]);
+            this.firstTile = new int[this.regions.length + 1];
+            int pixels = 0;
+            for (int r = 0; r < this.regions.length; r++) {
+                Rectangle region = this.regions[r];
+                assert region.x >= 0 && region.y >= 0 && region.x + region.width <= width
+                        && region.y + region.height <= values.getHeight() : "region outside the matrix in TileRenderer.Job";
+                firstTile[r + 1] = firstTile[r] + tilesX(region) * tilesY(region);
+                pixels += sampleCount(region, step, refine);
+            }
+            this.tileCount = firstTile[this.regions.length];
+            this.pixelCount = pixels;
+            this.step = step;
+            this.refine = refine;
+            this.monitor = monitor;
+            this.order = order(monitor.getFocus());
+            this.expression = expression;
+            this.contexts = (expression != null) ? ThreadLocal.withInitial(expression::newContext) : null;
+        }
+
+        int tilesX(Rectangle region) {
+            return (region.width + tileSize - 1) / tileSize;
+        }
+
+        int tilesY(Rectangle region) {
+            return (region.height + tileSize - 1) / tileSize;
+        }
+
+        /**
+         * Return the tile indices in the order they are rendered: by the ring of tiles around
+         * the focus they lie on and then by their angle around it.
+         */
+        int [] order(Point focus) {
+            int [] order = new int[tileCount];
+            if (focus == null) {
+                for (int i = 0; i < tileCount; i++)
+                    order[i] = i;
+                return order;
+            }
+            List<Integer> tiles = new ArrayList<>(tileCount);
+            double [] ring = new double[tileCount];
+            double [] angle = new double[tileCount];
+            for (int i = 0; i < tileCount; i++) {
+                Rectangle t = tile(i);
+                double dx = t.getCenterX() - focus.x;
+                double dy = t.getCenterY() - focus.y;
+                ring[i] = Math.floor(Math.max(Math.abs(dx), Math.abs(dy)) / tileSize + 0.5);
+                angle[i] = Math.atan2(dy, dx);
+                tiles.add(i);
+            }
+            tiles.sort(Comparator.<Integer>comparingDouble(i -> ring[i]).thenComparingDouble(i -> angle[i]));
+            for (int i = 0; i < tileCount; i++)
+                order[i] = tiles.get(i);
+            return order;
+        }
+
+        /**
+         * Return the rectangle of a tile.
+         */
+        Rectangle tile(int tile) {
+            int r = 0;
+            while (tile >= firstTile[r + 1]) r++;
+            Rectangle region = regions[r];
+            int index = tile - firstTile[r];
+            int x0 = region.x + (index % tilesX(region)) * tileSize;
+            int y0 = region.y + (index / tilesX(region)) * tileSize;
+            return new Rectangle(x0, y0, Math.min(x0 + tileSize, region.x + region.width) - x0,
+                    Math.min(y0 + tileSize, region.y + region.height) - y0);
+        }
+
+        void drain() {
+            int i;
+            while (!monitor.isCancelled() && (i = next.getAndIncrement()) < tileCount)
+                renderTile(order[i]);
+        }
+
+        void renderTile(int tile) {
+            int r = 0;
+            while (tile >= firstTile[r + 1]) r++;
+            Rectangle region = regions[r];
+            Rectangle bounds = tile(tile);
+            int x0 = bounds.x;
+            int y0 = bounds.y;
+            int w = bounds.width;
+            int h = bounds.height;
+
+            if (step > 1 || refine) {
+                reportProgress(renderSamples(region, x0, y0, w, h));
+                return;
+            }
+
+            if (expression != null) {
+                double [] re = new double[w * h];
+                double [] im = new double[w * h];
+                expression.evalGrid(coordinates, x0, y0, w, h, re, im, contexts.get());
+                for (int j = 0; j < h; j++) {
+                    System.arraycopy(re, j*w, values.re, (y0 + j)*width + x0, w);
+                    System.arraycopy(im, j*w, values.im, (y0 + j)*width + x0, w);
+                }
+            }
+            for (int j = 0; j < h; j++)
+                coloring.colorize(values.re, values.im, rgb, (y0 + j)*width + x0, w, inputs.get());
+
+            monitor.tileDone(bounds);
+            reportProgress(w * h);
+        }
+
+        /**
+         * Render the samples of a progressive pass which lie in a tile and return the number of
+         * samples evaluated, or colored if the expression is null. The blocks of the samples may
+         * extend into the next tiles.
+         */
+        int renderSamples(Rectangle region, int x0, int y0, int w, int h) {
+            // The first column and row of the tile which lie on the sampling grid of the region.
+            int sx = x0 + Math.floorMod(region.x - x0, step);
+            int sy = y0 + Math.floorMod(region.y - y0, step);
+            if (sx >= x0 + w || sy >= y0 + h) return 0;
+
+            int n = 0;
+            if (expression != null) {
+                int capacity = samples(x0 + w - sx, step) * samples(y0 + h - sy, step);
+                double [] re = new double[capacity];
+                double [] im = new double[capacity];
+                int [] index = new int[capacity];
+                for (int y = sy; y < y0 + h; y += step) {
+                    for (int x = sx; x < x0 + w; x += step) {
+                        if (refine && (x - region.x) % (2*step) == 0 && (y - region.y) % (2*step) == 0)
+                            continue;
+                        re[n] = coordinates.matToRe(x);
+                        im[n] = coordinates.matToIm(y);
+                        index[n++] = y*width + x;
+                    }
+                }
+                expression.evalBatch(re, im, re, im, 0, n, contexts.get());
+                for (int i = 0; i < n; i++) {
+                    values.re[index[i]] = re[i];
+                    values.im[index[i]] = im[i];
+                }
+            }
+            else {
+                n = samples(x0 + w - sx, step) * samples(y0 + h - sy, step);
+            }
+
+            if (step == 1) {
+                for (int j = 0; j < h; j++)
+                    coloring.colorize(values.re, values.im, rgb, (y0 + j)*width + x0, w, inputs.get());
+                monitor.tileDone(new Rectangle(x0, y0, w, h));
+            }
+            else {
+                for (int y = sy; y < y0 + h; y += step)
+                    colorBlocks(values, coloring, rgb, region, y, sx, x0 + w, step, inputs.get());
+                // The blocks of the last samples may extend to the edge of the region.
+                int right = Math.min(sx + samples(x0 + w - sx, step)*step, region.x + region.width);
+                int bottom = Math.min(sy + samples(y0 + h - sy, step)*step, region.y + region.height);
+                monitor.tileDone(new Rectangle(sx, sy, right - sx, bottom - sy));
+            }
+            return n;
+        }
+
+        void reportProgress(int pixels) {
+            int progress = (int)Math.ceil((double)progressed.addAndGet(pixels) / pixelCount * 100.0);
+            int last = lastProgress.get();
+            if (progress > last && lastProgress.compareAndSet(last, progress))
+                for (ProgressChangedCallback callback : progressCallbacks)
+                    callback.callback(progress);
+        }
+    }
+
+}
@@ -0,0 +1,194 @@
+/*
+    Copyright (C) 2016  Petri Aaltonen
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+
+package cplot;
+
+/**
+ * The raw values of an expression at every point of the plot matrix, stored row by row as
+ * separate arrays of real and imaginary parts. The value of matrix point (x, y) is at index
+ * y*width + x. Rendering first fills a value buffer and then colors the pixels from it, so
+ * changing the coloring only needs to repeat the second step.
+ *
+ * A buffer remembers the expression and the lattice of the matrix it was computed for. After the
+ * matrix has been moved by whole lattice steps, the values of the overlapping points are still
+ * exact and may be copied into the buffer of the new matrix. The arrays are filled by the render
+ * threads and must not be modified after the render has finished.
+ * @author Petri Aaltonen
+ */
+public final class ValueBuffer {
+
+    private final Expression expression;
+    private final int width;
+    private final int height;
+    private final double deltaX;
+    private final double deltaY;
+    private final double anchorRe;
+    private final double anchorIm;
+    private final int latticeX;
+    private final int latticeY;
+    final double [] re;
+    final double [] im;
+
+    /**
+     * Initialize an empty buffer of the size of the matrix.
+     * @param expression the expression whose values are stored
+     * @param coordinates the plot coordinates
+     */
+    public ValueBuffer(Expression expression, PlotCoordinates coordinates) {
+        this.expression = expression;
+        this.width = coordinates.getMatrixWidth();
+        this.height = coordinates.getMatrixHeight();
+        this.deltaX = coordinates.getDeltaX();
+        this.deltaY = coordinates.getDeltaY();
+        this.anchorRe = coordinates.getAnchorRe();
+        this.anchorIm = coordinates.getAnchorIm();
+        this.latticeX = coordinates.getLatticeX();
+        this.latticeY = coordinates.getLatticeY();
+        this.re = new double[width * height];
+        this.im = new double[width * height];
+    }
+
+    /**
+     * Return the width of the buffer.
+     * @return
+     */
+    public int getWidth() { return width; }
+
+    /**
+     * Return the height of the buffer.
+     * @return
+     */
+    public int getHeight() { return height; }
+
+    /**
+     * Return the expression whose values are stored.
+     * @return
+     */
+    public Expression getExpression() { return expression; }
+
+    /**
+     * Return the value at a matrix point.
+     * @param x matrix x coordinate
+     * @param y matrix y coordinate
+     * @return
+     */
+    public Complex getValue(int x, int y) {
+        return new Complex(re[y*width + x], im[y*width + x]);
+    }
+
+    /**
+     * Return true if the buffer holds the values of the expression on the current matrix.
+     * @param expression an expression
+     * @param coordinates the plot coordinates
+     * @return
+     */
+    public boolean matches(Expression expression, PlotCoordinates coordinates) {
+        return isOnLattice(expression, coordinates)
+                && getOffsetX(coordinates) == 0
+                && getOffsetY(coordinates) == 0;
+    }
+
+    /**
+     * Return true if the buffer holds the values of the expression on a matrix of the current
+     * size and lattice, possibly moved by whole lattice steps from the current matrix.
+     * @param expression an expression
+     * @param coordinates the plot coordinates
+     * @return
+     */
+    public boolean isOnLattice(Expression expression, PlotCoordinates coordinates) {
+        return this.expression == expression
+                && width == coordinates.getMatrixWidth()
+                && height == coordinates.getMatrixHeight()
+                && deltaX == coordinates.getDeltaX()
+                && deltaY == coordinates.getDeltaY()
+                && anchorRe == coordinates.getAnchorRe()
+                && anchorIm == coordinates.getAnchorIm();
+    }
+
+    /**
+     * Return true if the buffer holds the values of the expression on a lattice with the same
+     * anchor as the current matrix, whose spacing differs from the spacing of the matrix by a
+     * power of two of at most 2^maxScale in both directions. The buffer may then share
+     * points with the matrix even though the plot has been zoomed, see getScale.
+     * @param expression an expression
+     * @param coordinates the plot coordinates
+     * @param maxScale the largest absolute value of the scale
+     * @return
+     */
+    public boolean isOnDyadicLattice(Expression expression, PlotCoordinates coordinates, int maxScale) {
+        if (this.expression != expression
+                || anchorRe != coordinates.getAnchorRe()
+                || anchorIm != coordinates.getAnchorIm())
+            return false;
+        int scale = getScale(coordinates);
+        return Math.abs(scale) <= maxScale
+                && deltaX == Math.scalb(coordinates.getDeltaX(), scale)
+                && deltaY == Math.scalb(coordinates.getDeltaY(), scale);
+    }
+
+    /**
+     * Return the base two logarithm of the spacing of the buffer relative to the spacing of the
+     * current matrix, eg. 1 after the plot has been zoomed in by two and -1 after it has been
+     * zoomed out by two. Only meaningful if isOnDyadicLattice is true.
+     * @param coordinates the plot coordinates
+     * @return
+     */
+    public int getScale(PlotCoordinates coordinates) {
+        return Math.getExponent(deltaX / coordinates.getDeltaX());
+    }
+
+    /**
+     * Return the lattice index of the leftmost column of the buffer.
+     * @return
+     */
+    public int getLatticeX() { return latticeX; }
+
+    /**
+     * Return the lattice index of the bottom row of the buffer.
+     * @return
+     */
+    public int getLatticeY() { return latticeY; }
+
+    /**
+     * Return the approximate number of bytes the buffer takes.
+     * @return
+     */
+    public long getByteCount() {
+        return 16L * re.length;
+    }
+
+    /**
+     * Return the column offset of the buffer from the current matrix: the current matrix column
+     * x is column x + offset of the buffer. Only meaningful if isOnLattice is true.
+     * @param coordinates the plot coordinates
+     * @return
+     */
+    public int getOffsetX(PlotCoordinates coordinates) {
+        return coordinates.getLatticeX() - latticeX;
+    }
+
+    /**
+     * Return the row offset of the buffer from the current matrix: the current matrix row y is
+     * row y + offset of the buffer. Only meaningful if isOnLattice is true.
+     * @param coordinates the plot coordinates
+     * @return
+     */
+    public int getOffsetY(PlotCoordinates coordinates) {
+        return latticeY - coordinates.getLatticeY();
+    }
+
+}
@@ -17,36 +17,67 @@
 
 package cplot;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 
 /**
- * A table of variables
+ * A table of variables. Every variable has a slot which stays the same when the value of the
+ * variable is changed, so an eval-tree can resolve its variables to slots once when it is bound.
  * @author Petri Aaltonen
  */
 public class VarTable {
 
-	HashMap<String, Complex> map = null;
+	HashMap<String, Integer> map = null;
+	ArrayList<Complex> values = null;
 
 	public VarTable() {
-		map = new HashMap<String, Complex>(16);
-		map.put("i", new Complex(0.0, 1.0));
+		map = new HashMap<String, Integer>(16);
+		values = new ArrayList<Complex>(16);
+		map.put("i", 0);
+		values.add(new Complex(0.0, 1.0));
 	}
 
 	public void set(String var, Complex val) throws EvaluateException {
 		if (var.equals("i"))
 			throw new EvaluateException("variable name i is reserved");
-		map.put(var, val);
+		Integer slot = map.get(var);
+		if (slot == null) {
+			map.put(var, values.size());
+			values.add(val);
+		}
+		else {
+			values.set(slot, val);
+		}
 	}
 
 	public Complex get(String var) throws EvaluateException {
-		Complex val = map.get(var);
-		if (val == null) {
+		return get(indexOf(var));
+	}
+
+	/**
+	 * Return the slot of a variable.
+	 * @param var name of the variable
+	 * @return the slot
+	 * @throws EvaluateException if the table contains no such variable
+	 */
+	public int indexOf(String var) throws EvaluateException {
+		Integer slot = map.get(var);
+		if (slot == null) {
 			StringBuilder s = new StringBuilder();
 			s.append("VarTable contains no variable ");
 			s.append(var);
 			throw new EvaluateException(s.toString());
 		}
-		return val;
+		return slot;
+	}
+
+	/**
+	 * Return the value of the variable in a slot returned by indexOf.
+	 * @param slot the slot
+	 * @return the value
+	 */
+	public Complex get(int slot) {
+		return values.get(slot);
 	}
 
 }
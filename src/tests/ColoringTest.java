@@ -0,0 +1,133 @@
+/*
+    Copyright (C) 2016  Petri Aaltonen
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+
+package tests;
+
+import cplot.*;
+import org.junit.Test;
+import java.awt.Color;
+import java.util.Random;
+import static org.junit.Assert.*;
+
+/**
+ * Test the colorings against the formulas they had when they returned java.awt.Color objects.
+ * @author Petri Aaltonen
+ */
+public class ColoringTest {
+
+    private static Color hsvToRgb(double h, double s, double v) {
+        return Color.getHSBColor((float) (h / (2.0 * Math.PI)), (float) s, (float) v);
+    }
+
+    private static Color bry(Complex z, boolean steps) {
+        double h = Complex.arg2(z) / 6.0;
+        double b = 1.0;
+        if (h < Math.PI / 8.0)
+            b = h / (Math.PI / 8.0);
+        h /= (Math.PI / 3.0);
+        h *= h;
+        h *= (Math.PI / 3.0);
+        double s = steps ? Math.log(Complex.abs(z)) - Math.floor(Math.log(Complex.abs(z))) : 1.0;
+        return hsvToRgb(h, s, b);
+    }
+
+    // The colors computed the way the colorings did before they were ported to packed values.
+    private static int expected(Coloring coloring, Complex z) {
+        if (Double.isNaN(z.x) || Double.isNaN(z.y))
+            return 0xffffff;
+        double h = Complex.arg2(z);
+        Color c;
+        if (coloring instanceof CWColoring)
+            c = hsvToRgb(h, 1.0, 1.0);
+        else if (coloring instanceof CWSColoring)
+            c = hsvToRgb(h, 1.0, Math.log(Complex.abs(z)) - Math.floor(Math.log(Complex.abs(z))));
+        else if (coloring instanceof CWAColoring)
+            c = hsvToRgb(h, 1.0, Math.pow(Math.abs(Math.cos(h) * Math.sin(h)), 0.25));
+        else if (coloring instanceof BRYColoring)
+            c = bry(z, false);
+        else
+            c = bry(z, true);
+        return c.getRed() << 16 | c.getGreen() << 8 | c.getBlue();
+    }
+
+    @Test
+    public void testPackedEqualsColor() {
+        Coloring [] colorings = {new CWColoring(), new CWSColoring(), new CWAColoring(),
+                new BRYColoring(), new BRYSColoring()};
+        int n = 5000;
+        double [] re = new double[n + 1];
+        double [] im = new double[n + 1];
+        Random random = new Random(5);
+        for (int k = 0; k < n; k++) {
+            double r = Math.exp(8.0 * random.nextGaussian());
+            double t = 2.0 * Math.PI * random.nextDouble();
+            re[k + 1] = r * Math.cos(t);
+            im[k + 1] = r * Math.sin(t);
+        }
+        double [] special = {0.0, -0.0, 1.0, -1.0, Double.NaN, Double.POSITIVE_INFINITY};
+        for (int k = 0; k < special.length * special.length; k++) {
+            re[k + 1] = special[k % special.length];
+            im[k + 1] = special[k / special.length];
+        }
+
+        for (Coloring coloring : colorings) {
+            int [] rgb = new int[n + 1];
+            coloring.colorize(re, im, rgb, 1, n);
+            assertEquals(0, rgb[0]);
+            for (int k = 1; k <= n; k++)
+                assertEquals(expected(coloring, new Complex(re[k], im[k])), rgb[k]);
+        }
+    }
+
+    @Test
+    public void testLookupTableError() {
+        Coloring [] colorings = {new CWColoring(), new CWSColoring(), new CWAColoring(),
+                new BRYColoring(), new BRYSColoring()};
+        int n = 20000;
+        double [] re = new double[n];
+        double [] im = new double[n];
+        Random random = new Random(13);
+        for (int k = 0; k < n; k++) {
+            re[k] = Math.exp(4.0 * random.nextGaussian()) * random.nextGaussian();
+            im[k] = Math.exp(4.0 * random.nextGaussian()) * random.nextGaussian();
+        }
+        int [] exact = new int[n];
+        int [] looked = new int[n];
+        HsvLookupTable table = new HsvLookupTable();
+
+        for (Coloring coloring : colorings) {
+            coloring.colorize(re, im, exact, 0, n);
+            coloring.setLookupTable(table);
+            coloring.colorize(re, im, looked, 0, n);
+            coloring.setLookupTable(null);
+            int worst = 0;
+            for (int k = 0; k < n; k++)
+                for (int shift = 0; shift <= 16; shift += 8)
+                    worst = Math.max(worst, Math.abs((exact[k] >> shift & 0xff) - (looked[k] >> shift & 0xff)));
+            System.out.println("Worst per-channel error of " + coloring.getName() + " with a "
+                    + table.getHueSteps() + "x" + table.getSaturationSteps() + "x"
+                    + table.getValueSteps() + " table: " + worst);
+            assertTrue(worst <= 8);
+        }
+    }
+
+    @Test (expected = IllegalArgumentException.class)
+    public void testInvalidTableResolution() {
+        HsvLookupTable.parse("256x32");
+    }
+
+}
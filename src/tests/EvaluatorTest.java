@@ -0,0 +1,278 @@
+/*
+    Copyright (C) 2016  Petri Aaltonen
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+
+package tests;
+
+import cplot.Complex;
+import cplot.EvaluateException;
+import cplot.Evaluator;
+import cplot.Expression;
+import cplot.Parser;
+import cplot.PlotCoordinates;
+import cplot.Program;
+import org.junit.Test;
+import java.util.Random;
+import static org.junit.Assert.*;
+
+/**
+ * Test the compiled evaluation against the tree interpreter.
+ * @author Petri Aaltonen
+ */
+public class EvaluatorTest {
+
+    private static final String [] EXPRESSIONS = {
+            "z",
+            "i",
+            "z*z / (z - 0.25)",
+            "sin(z)^2 / (1 + z)",
+            "log(z) * exp(i*z)",
+            "sqrt(z) - tan(z)",
+            "abs(z) + arg(z)*re(z) - im(z) + conj(z)",
+            "-z^(1 + i)",
+            "cos(z / (z - 1))",
+            "log(z - z)",
+            "sin(z^2)/(1 + sin(z^2)) + cos(z^2)*z^2 - z*sin(z) + sin(z)*z"
+    };
+
+    private static Evaluator evaluator(String expression) throws Exception {
+        Evaluator evaluator = new Evaluator();
+        evaluator.setRoot(new Parser().parseStatement(expression));
+        return evaluator;
+    }
+
+    private static boolean sameBits(double expected, double actual) {
+        return Double.doubleToLongBits(expected) == Double.doubleToLongBits(actual);
+    }
+
+    private static void assertSameBits(double expected, double actual) {
+        assertEquals(Double.doubleToLongBits(expected), Double.doubleToLongBits(actual));
+    }
+
+    @Test
+    public void testProgramEqualsTree() throws Exception {
+        Random random = new Random(42);
+        double [] out = new double[2];
+        for (String expression : EXPRESSIONS) {
+            Evaluator evaluator = evaluator(expression);
+            assertNotNull(evaluator.getProgram());
+            for (int k = 0; k < 1000; k++) {
+                double x = (k % 100 == 0) ? 0.0 : 3.0 * random.nextGaussian();
+                double y = (k % 100 == 0) ? 0.0 : 3.0 * random.nextGaussian();
+                Complex expected = evaluator.evalTreeAt(new Complex(x, y));
+                evaluator.evalAt(x, y, out);
+                assertSameBits(expected.x, out[0]);
+                assertSameBits(expected.y, out[1]);
+            }
+        }
+    }
+
+    @Test
+    public void testBytecodeEqualsTree() throws Exception {
+        Random random = new Random(7);
+        double [] out = new double[2];
+        for (String expression : EXPRESSIONS) {
+            Evaluator evaluator = new Evaluator();
+            evaluator.setBackend(Evaluator.Backend.BYTECODE);
+            evaluator.setRoot(new Parser().parseStatement(expression));
+            for (int k = 0; k < 1000; k++) {
+                double x = 3.0 * random.nextGaussian();
+                double y = 3.0 * random.nextGaussian();
+                Complex expected = evaluator.evalTreeAt(new Complex(x, y));
+                evaluator.evalAt(x, y, out);
+                assertSameBits(expected.x, out[0]);
+                assertSameBits(expected.y, out[1]);
+            }
+        }
+    }
+
+    @Test
+    public void testOptimizerSimplifiesTree() throws Exception {
+        assertEquals("((z * z) * 0.25)", evaluator("(z^2)/(2*2) - 0").getExpression().toString());
+        assertEquals("(z * z)", evaluator("1*z^2 - 0").getExpression().toString());
+        assertEquals("((sin(z) * sin(z)) * sin(z))", evaluator("sin(z)^3").getExpression().toString());
+        assertEquals("(1.0 / ((z * z) * (z * z)))", evaluator("z^(-4)").getExpression().toString());
+        assertEquals("(0.0 + 1.0i)", evaluator("exp(0)*i").getExpression().toString());
+        assertEquals("z", evaluator("-(-z)").getExpression().toString());
+        assertEquals("(z ^ 0.5)", evaluator("z^0.5").getExpression().toString());
+    }
+
+    @Test
+    public void testOptimizerKeepsSignedZeros() throws Exception {
+        String [] expressions = {"z + 0", "0 + z", "0 - z", "z - 0", "-z + 0"};
+        for (String expression : expressions) {
+            Evaluator optimized = evaluator(expression);
+            Evaluator plain = new Evaluator();
+            plain.setOptimizing(false);
+            plain.setRoot(new Parser().parseStatement(expression));
+            for (double x : new double[] {0.0, -0.0})
+                for (double y : new double[] {0.0, -0.0}) {
+                    Complex z = new Complex(x, y);
+                    assertSameBits(plain.evalAt(z).x, optimized.evalAt(z).x);
+                    assertSameBits(plain.evalAt(z).y, optimized.evalAt(z).y);
+                }
+        }
+    }
+
+    @Test
+    public void testOptimizedEqualsUnoptimized() throws Exception {
+        String [] expressions = {"z^2 + 3*z^3 - z^(-2)", "(z - 1)/4 + sin(z)/(2*i)", "z^16/(1 + 0)"};
+        Random random = new Random(3);
+        for (String expression : expressions) {
+            Evaluator optimized = evaluator(expression);
+            Evaluator plain = new Evaluator();
+            plain.setOptimizing(false);
+            plain.setRoot(new Parser().parseStatement(expression));
+            for (int k = 0; k < 1000; k++) {
+                Complex z = new Complex(random.nextGaussian(), random.nextGaussian());
+                Complex expected = plain.evalAt(z);
+                Complex actual = optimized.evalAt(z);
+                double tol = 1.0e-12 * Math.max(1.0, Complex.abs(expected));
+                assertEquals(expected.x, actual.x, tol);
+                assertEquals(expected.y, actual.y, tol);
+            }
+        }
+    }
+
+    @Test
+    public void testCommonSubexpressionsAreShared() throws Exception {
+        Program program = evaluator("sin(z^2)/(1 + sin(z^2)) + cos(z^2)").getProgram();
+        // z^2, sin, 1 + sin, division, cos and the sum
+        assertEquals(6, program.getLength());
+        // z, the constant 1 and four scratch registers
+        assertEquals(2 * 6, program.newRegisters().length);
+    }
+
+    @Test
+    public void testBackendSwitch() throws Exception {
+        Evaluator evaluator = new Evaluator();
+        evaluator.setBackend(Evaluator.Backend.BYTECODE);
+        evaluator.setRoot(new Parser().parseStatement("z*z"));
+        assertEquals(Evaluator.Backend.BYTECODE, evaluator.getActiveBackend());
+        evaluator.setBackend(Evaluator.Backend.TREE);
+        assertEquals(Evaluator.Backend.TREE, evaluator.getActiveBackend());
+        evaluator.setBackend(Evaluator.Backend.PROGRAM);
+        assertEquals(Evaluator.Backend.PROGRAM, evaluator.getActiveBackend());
+    }
+
+    @Test
+    public void testUnknownNamesAreReportedAtBind() throws Exception {
+        Evaluator evaluator = evaluator("z + i");
+        try {
+            evaluator.setRoot(new Parser().parseStatement("z*w"));
+            fail();
+        } catch (EvaluateException e) {}
+        try {
+            evaluator.setRoot(new Parser().parseStatement("foo(z)"));
+            fail();
+        } catch (EvaluateException e) {}
+
+        // The previous expression is kept.
+        Complex value = evaluator.evalAt(new Complex(1.0, 0.0));
+        assertTrue(ComplexTest.complexEquals(new Complex(1.0, 1.0), value));
+    }
+
+    @Test
+    public void testBatchEqualsTree() throws Exception {
+        Random random = new Random(11);
+        int n = 3 * Program.BLOCK_SIZE + 17;
+        double [] re = new double[n + 2];
+        double [] im = new double[n + 2];
+        for (int k = 0; k < re.length; k++) {
+            re[k] = 3.0 * random.nextGaussian();
+            im[k] = 3.0 * random.nextGaussian();
+        }
+        for (String expression : EXPRESSIONS) {
+            Evaluator evaluator = evaluator(expression);
+            double [] outRe = new double[n + 2];
+            double [] outIm = new double[n + 2];
+            evaluator.evalBatch(re, im, outRe, outIm, 1, n);
+            assertSameBits(0.0, outRe[0]);
+            assertSameBits(0.0, outIm[n + 1]);
+            for (int k = 1; k <= n; k++) {
+                Complex expected = evaluator.evalTreeAt(new Complex(re[k], im[k]));
+                assertSameBits(expected.x, outRe[k]);
+                assertSameBits(expected.y, outIm[k]);
+            }
+        }
+    }
+
+    @Test
+    public void testGridEqualsEvalAt() throws Exception {
+        Evaluator evaluator = evaluator("sin(z) / (z - 0.25)");
+        PlotCoordinates coord = new PlotCoordinates(20, 10);
+        coord.setLimits(-1.0, 1.0, -0.5, 0.5);
+        double [] re = new double[7 * 5];
+        double [] im = new double[7 * 5];
+        evaluator.evalGrid(coord, 3, 4, 7, 5, re, im);
+        for (int j = 0; j < 5; j++)
+            for (int i = 0; i < 7; i++) {
+                Complex expected = evaluator.evalTreeAt(coord.matToCmplx(3 + i, 4 + j));
+                assertSameBits(expected.x, re[j*7 + i]);
+                assertSameBits(expected.y, im[j*7 + i]);
+            }
+    }
+
+    @Test
+    public void testBoxedEvalAt() throws Exception {
+        Evaluator evaluator = evaluator("z*z / (z - 0.25)");
+        Complex z = new Complex(0.5, -0.75);
+        assertTrue(ComplexTest.complexEquals(evaluator.evalTreeAt(z), evaluator.evalAt(z)));
+    }
+
+    @Test
+    public void testConcurrentEvaluation() throws Exception {
+        Evaluator evaluator = evaluator("sin(z)^2 / (1 + z)");
+        Complex [] expected = new Complex[1000];
+        for (int k = 0; k < expected.length; k++)
+            expected[k] = evaluator.evalTreeAt(new Complex(0.01 * k, -0.02 * k));
+
+        Thread [] threads = new Thread[4];
+        boolean [] failed = new boolean[threads.length];
+        for (int t = 0; t < threads.length; t++) {
+            final int index = t;
+            threads[t] = new Thread(() -> {
+                double [] out = new double[2];
+                for (int round = 0; round < 20; round++)
+                    for (int k = 0; k < expected.length; k++) {
+                        evaluator.evalAt(0.01 * k, -0.02 * k, out);
+                        Complex tree = evaluator.evalTreeAt(new Complex(0.01 * k, -0.02 * k));
+                        if (!sameBits(expected[k].x, out[0]) || !sameBits(expected[k].y, out[1])
+                                || !sameBits(expected[k].x, tree.x) || !sameBits(expected[k].y, tree.y))
+                            failed[index] = true;
+                    }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+        for (boolean f : failed)
+            assertFalse(f);
+    }
+
+    @Test
+    public void testExpressionOutlivesRoot() throws Exception {
+        Evaluator evaluator = evaluator("z + 1");
+        Expression expression = evaluator.getExpression();
+        evaluator.setRoot(new Parser().parseStatement("z - 1"));
+        double [] out = new double[2];
+        expression.eval(2.0, 0.0, out, expression.newContext());
+        assertSameBits(3.0, out[0]);
+        evaluator.evalAt(2.0, 0.0, out);
+        assertSameBits(1.0, out[0]);
+    }
+
+}
@@ -0,0 +1,115 @@
+/*
+    Copyright (C) 2016  Petri Aaltonen
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+
+package tests;
+
+import cplot.*;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Test moving back and forward in the navigation history and the memory budget of its plots.
+ * @author Petri Aaltonen
+ */
+public class NavigationHistoryTest {
+
+    private static NavigationHistory.Entry view(double xmin, boolean withPlot) throws PlotException {
+        PlotCoordinates coord = new PlotCoordinates(10, 10);
+        coord.setLimits(xmin, xmin + 1.0, 0.0, 1.0);
+        if (!withPlot)
+            return new NavigationHistory.Entry(coord, null, null, null, null);
+        return new NavigationHistory.Entry(coord, null, new CWColoring(),
+                new int[coord.getMatrixWidth() * coord.getMatrixHeight()], new ValueBuffer(null, coord));
+    }
+
+    @Test
+    public void testBackAndForward() throws PlotException {
+        NavigationHistory history = new NavigationHistory(10, 0);
+        assertFalse(history.canGoBack());
+        assertNull(history.back(view(9.0, false)));
+
+        history.push(view(0.0, false));
+        history.push(view(1.0, false));
+        NavigationHistory.Entry e = history.back(view(2.0, false));
+        assertEquals(1.0, e.getCoordinates().getXmin(), 0.0);
+        e = history.back(e);
+        assertEquals(0.0, e.getCoordinates().getXmin(), 0.0);
+        assertFalse(history.canGoBack());
+        e = history.forward(e);
+        assertEquals(1.0, e.getCoordinates().getXmin(), 0.0);
+        e = history.forward(e);
+        assertEquals(2.0, e.getCoordinates().getXmin(), 0.0);
+        assertFalse(history.canGoForward());
+
+        // A new view forgets the views ahead.
+        history.back(e);
+        history.push(view(3.0, false));
+        assertFalse(history.canGoForward());
+    }
+
+    @Test
+    public void testCapacity() throws PlotException {
+        NavigationHistory history = new NavigationHistory(2, 0);
+        for (int i = 0; i < 5; i++)
+            history.push(view(i, false));
+        NavigationHistory.Entry e = history.back(view(5.0, false));
+        e = history.back(e);
+        assertEquals(3.0, e.getCoordinates().getXmin(), 0.0);
+        assertFalse(history.canGoBack());
+    }
+
+    @Test
+    public void testBudgetDropsValuesBeforePixels() throws PlotException {
+        // A 10x10 viewport has a 30x30 matrix: 3600 bytes of pixels and 14400 bytes of values.
+        NavigationHistory history = new NavigationHistory(10, 2*3600 + 14400);
+        history.push(view(0.0, true));
+        history.push(view(1.0, true));
+        assertEquals(2*3600 + 14400, history.getByteCount());
+
+        history.push(view(2.0, true));
+        assertEquals(2*3600 + 14400, history.getByteCount());
+        NavigationHistory.Entry e = history.back(view(3.0, false));
+        assertNotNull(e.getValues());
+        e = history.back(e);
+        assertNotNull(e.getPixels());
+        assertNull(e.getValues());
+        e = history.back(e);
+        assertNull(e.getPixels());
+        assertNull(e.getValues());
+    }
+
+    @Test
+    public void testSmallerBudgetDropsPlots() throws PlotException {
+        NavigationHistory history = new NavigationHistory(10, 2*(3600 + 14400));
+        history.push(view(0.0, true));
+        history.push(view(1.0, true));
+        assertEquals(2*(3600 + 14400), history.getByteCount());
+
+        history.setBudget(3600 + 14400);
+        assertEquals(3600 + 14400, history.getByteCount());
+        NavigationHistory.Entry e = history.back(view(2.0, false));
+        assertNotNull(e.getValues());
+        e = history.back(e);
+        assertNull(e.getPixels());
+    }
+
+    @Test (expected = IllegalArgumentException.class)
+    public void testInvalidCapacity() {
+        new NavigationHistory(0, 0);
+    }
+
+}
@@ -81,4 +81,112 @@ public class PlotCoordinatesTest {
         assertNull(coord.getComplexCoordinates(0, 200));
     }
 
-}
\ No newline at end of file
+    @Test
+    public void testScanKeepsLattice() throws PlotException {
+        PlotCoordinates coord = new PlotCoordinates(40, 30);
+        coord.setLimits(-1.3, 0.7, -0.9, 1.1);
+        double re = coord.matToRe(50);
+        double im = coord.matToIm(40);
+
+        coord.scan(7, -5);
+        coord.scan(6, 2);
+        coord.postScanUpdate();
+        assertEquals(40, coord.getLeft());
+        assertEquals(30, coord.getTop());
+        assertEquals(13, coord.getLatticeX());
+        assertEquals(3, coord.getLatticeY());
+        assertEquals(Double.doubleToLongBits(re), Double.doubleToLongBits(coord.matToRe(50 - 13)));
+        assertEquals(Double.doubleToLongBits(im), Double.doubleToLongBits(coord.matToIm(40 + 3)));
+
+        // Many scans do not move the viewport off the lattice.
+        for (int i = 0; i < 1000; i++) {
+            coord.scan(3, -2);
+            coord.postScanUpdate();
+        }
+        assertEquals(Double.doubleToLongBits(coord.matToRe(40)), Double.doubleToLongBits(coord.getXmin()));
+        assertEquals(Double.doubleToLongBits(coord.matToIm(59)), Double.doubleToLongBits(coord.getYmin()));
+    }
+
+    @Test
+    public void testDyadicZoomKeepsLattice() throws PlotException {
+        PlotCoordinates coord = new PlotCoordinates(40, 30);
+        coord.setLimits(-1.3, 0.7, -0.9, 1.1);
+        coord.setDyadic(true);
+        double deltaX = coord.getDeltaX();
+        double deltaY = coord.getDeltaY();
+        double anchorRe = coord.getAnchorRe();
+        double anchorIm = coord.getAnchorIm();
+        double re = coord.matToRe(50);
+        double im = coord.matToIm(40);
+        int column = coord.getLatticeX() + 50;
+        int row = coord.getLatticeY() + coord.getMatrixHeight() - 1 - 40;
+
+        // A zoom box of about a third of the viewport snaps to a zoom by four.
+        coord.zoom(10, 10, 23, 20);
+        assertEquals(Double.doubleToLongBits(deltaX / 4), Double.doubleToLongBits(coord.getDeltaX()));
+        assertEquals(Double.doubleToLongBits(deltaY / 4), Double.doubleToLongBits(coord.getDeltaY()));
+        assertEquals(Double.doubleToLongBits(anchorRe), Double.doubleToLongBits(coord.getAnchorRe()));
+        assertEquals(Double.doubleToLongBits(anchorIm), Double.doubleToLongBits(coord.getAnchorIm()));
+
+        // The lattice index 4*i is exactly the point of the index i before the zoom.
+        int x = 4*column - coord.getLatticeX();
+        int y = coord.getMatrixHeight() - 1 - (4*row - coord.getLatticeY());
+        assertEquals(Double.doubleToLongBits(re), Double.doubleToLongBits(coord.matToRe(x)));
+        assertEquals(Double.doubleToLongBits(im), Double.doubleToLongBits(coord.matToIm(y)));
+
+        coord.zoom(20, 15, 0.25);
+        assertEquals(Double.doubleToLongBits(deltaX), Double.doubleToLongBits(coord.getDeltaX()));
+    }
+
+    @Test
+    public void testResizeToSameSizeKeepsLattice() throws PlotException {
+        PlotCoordinates coord = new PlotCoordinates(40, 30);
+        coord.setLimits(-1.3, 0.7, -0.9, 1.1);
+        coord.scan(5, 4);
+        coord.postScanUpdate();
+        double re = coord.matToRe(17);
+        double im = coord.matToIm(23);
+
+        coord.resize(40, 30);
+        assertEquals(5, coord.getLatticeX());
+        assertEquals(-4, coord.getLatticeY());
+        assertEquals(Double.doubleToLongBits(re), Double.doubleToLongBits(coord.matToRe(17)));
+        assertEquals(Double.doubleToLongBits(im), Double.doubleToLongBits(coord.matToIm(23)));
+
+        coord.resize(41, 30);
+        assertEquals(0, coord.getLatticeX());
+        assertEquals(123, coord.getMatrixWidth());
+    }
+
+    @Test
+    public void testPanBeyondMatrix() throws PlotException {
+        PlotCoordinates coord = new PlotCoordinates(40, 30);
+        coord.setLimits(-1.3, 0.7, -0.9, 1.1);
+        PlotCoordinates start = new PlotCoordinates(coord);
+
+        // Within half of the viewport from the center the matrix stays in place.
+        assertFalse(coord.pan(20, -15));
+        assertTrue(coord.hasSameMatrix(start));
+        assertEquals(60, coord.getLeft());
+
+        // Further on the matrix follows the viewport, which is centered again.
+        double re = coord.matToRe(coord.getLeft() + 25);
+        double im = coord.matToIm(coord.getTop());
+        assertTrue(coord.pan(25, 0));
+        assertFalse(coord.hasSameMatrix(start));
+        assertEquals(40, coord.getLeft());
+        assertEquals(30, coord.getTop());
+        assertEquals(45, coord.getLatticeX());
+        assertEquals(15, coord.getLatticeY());
+        assertEquals(Double.doubleToLongBits(re), Double.doubleToLongBits(coord.matToRe(coord.getLeft())));
+        assertEquals(Double.doubleToLongBits(im), Double.doubleToLongBits(coord.matToIm(coord.getTop())));
+
+        // Long pans never run out of the matrix.
+        for (int i = 0; i < 100; i++)
+            coord.pan(-37, 23);
+        assertTrue(coord.getLeft() >= 0 && coord.getRight() < coord.getMatrixWidth());
+        assertTrue(coord.getTop() >= 0 && coord.getBottom() < coord.getMatrixHeight());
+        assertEquals(Double.doubleToLongBits(start.getDeltaX()), Double.doubleToLongBits(coord.getDeltaX()));
+    }
+
+}
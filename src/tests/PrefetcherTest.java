@@ -0,0 +1,138 @@
+/*
+    Copyright (C) 2016  Petri Aaltonen
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+
+package tests;
+
+import cplot.*;
+import org.junit.Test;
+import javax.swing.SwingUtilities;
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import static org.junit.Assert.*;
+
+/**
+ * Test that prefetched views are computed in the background and reused by the next plot.
+ * @author Petri Aaltonen
+ */
+public class PrefetcherTest {
+
+    private static void onEdt(Runnable r) throws Exception {
+        SwingUtilities.invokeAndWait(r);
+    }
+
+    private static void awaitIdle(RenderScheduler scheduler) throws Exception {
+        boolean [] busy = {true};
+        long deadline = System.currentTimeMillis() + 10000;
+        while (busy[0]) {
+            assertTrue("scheduler did not become idle", System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+            onEdt(() -> busy[0] = scheduler.isBusy());
+        }
+    }
+
+    @Test
+    public void testScanReusesPrefetchedView() throws Exception {
+        Evaluator evaluator = new Evaluator();
+        evaluator.setRoot(new Parser().parseStatement("sin(z)/(1 + exp(z))"));
+        Coloring cw = new CWColoring();
+        PlotCoordinates coord = new PlotCoordinates(37, 29);
+        coord.setLimits(-2.0, 2.0, -1.5, 1.5);
+        PlotWorker current = new PlotWorker(evaluator, cw, coord);
+        current.doInBackground();
+        SampleStore samples = new SampleStore(1L << 24);
+        samples.add(current.getValues());
+
+        RenderScheduler scheduler = new RenderScheduler();
+        Prefetcher prefetcher = new Prefetcher(scheduler, 1L << 24);
+        PlotCoordinates ahead = new PlotCoordinates(coord);
+        ahead.pan(37, 0);
+        PlotCoordinates duplicate = new PlotCoordinates(ahead);
+        onEdt(() -> prefetcher.prefetch(evaluator.getExpression(), Arrays.asList(ahead, duplicate), c -> {
+            PlotWorker worker = new PlotWorker(evaluator, cw, c, null, current);
+            worker.setSampleStore(samples);
+            return worker;
+        }));
+        awaitIdle(scheduler);
+        assertEquals(1, prefetcher.getStarted());
+        assertEquals(1, prefetcher.getCompleted());
+        assertTrue(prefetcher.getByteCount() > 0);
+
+        // Scanning right past the matrix finds the prefetched view, scanning far left does not.
+        PlotCoordinates left = new PlotCoordinates(coord);
+        assertTrue(left.pan(-80, 0));
+        assertFalse(prefetcher.claim(evaluator.getExpression(), left, samples));
+        assertTrue(coord.pan(30, 0));
+        assertTrue(prefetcher.claim(evaluator.getExpression(), coord, samples));
+        assertEquals(0, prefetcher.getByteCount());
+        assertEquals(0.5, prefetcher.getHitRate(), 0.0);
+
+        PlotWorker next = new PlotWorker(evaluator, cw, coord, null, current);
+        next.setSampleStore(samples);
+        BufferedImage expected = new PlotWorker(evaluator, cw, coord).doInBackground();
+        BufferedImage actual = next.doInBackground();
+        for (int y = 0; y < expected.getHeight(); y++)
+            for (int x = 0; x < expected.getWidth(); x++)
+                assertEquals(expected.getRGB(x, y), actual.getRGB(x, y));
+    }
+
+    @Test
+    public void testDropsViewsWhichDoNotFit() throws Exception {
+        Evaluator evaluator = new Evaluator();
+        evaluator.setRoot(new Parser().parseStatement("z*z"));
+        Coloring cw = new CWColoring();
+        PlotCoordinates coord = new PlotCoordinates(37, 29);
+        long matrixBytes = 16L * coord.getMatrixWidth() * coord.getMatrixHeight();
+
+        RenderScheduler scheduler = new RenderScheduler();
+        Prefetcher prefetcher = new Prefetcher(scheduler, matrixBytes);
+        PlotCoordinates right = new PlotCoordinates(coord);
+        right.pan(37, 0);
+        PlotCoordinates left = new PlotCoordinates(coord);
+        left.pan(-37, 0);
+        onEdt(() -> prefetcher.prefetch(evaluator.getExpression(), Arrays.asList(right, left),
+                c -> new PlotWorker(evaluator, cw, c)));
+        awaitIdle(scheduler);
+        assertEquals(1, prefetcher.getStarted());
+        assertEquals(1, prefetcher.getCompleted());
+        assertEquals(1, prefetcher.getDropped());
+        assertEquals(matrixBytes, prefetcher.getByteCount());
+
+        // A budget grown with the matrix makes room for both.
+        prefetcher.setBudget(2 * matrixBytes);
+        onEdt(() -> prefetcher.prefetch(evaluator.getExpression(), Arrays.asList(right, left),
+                c -> new PlotWorker(evaluator, cw, c)));
+        awaitIdle(scheduler);
+        assertEquals(2, prefetcher.getCompleted());
+        assertEquals(2 * matrixBytes, prefetcher.getByteCount());
+    }
+
+    @Test
+    public void testDisabledWithoutBudget() throws Exception {
+        RenderScheduler scheduler = new RenderScheduler();
+        Prefetcher prefetcher = new Prefetcher(scheduler, 0);
+        PlotCoordinates coord = new PlotCoordinates(10, 10);
+        onEdt(() -> prefetcher.prefetch(null, Arrays.asList(coord), c -> {
+            fail("a disabled prefetcher computed a view");
+            return null;
+        }));
+        awaitIdle(scheduler);
+        assertFalse(prefetcher.isEnabled());
+        assertFalse(prefetcher.claim(null, coord, new SampleStore(1L << 20)));
+        assertEquals(0, prefetcher.getMisses());
+    }
+
+}
@@ -0,0 +1,132 @@
+/*
+    Copyright (C) 2016  Petri Aaltonen
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+
+package tests;
+
+import cplot.RenderScheduler;
+import org.junit.Test;
+import javax.swing.SwingUtilities;
+import javax.swing.SwingWorker;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import static org.junit.Assert.*;
+
+/**
+ * Test that the render scheduler coalesces, cancels and orders the requests.
+ * @author Petri Aaltonen
+ */
+public class RenderSchedulerTest {
+
+    /**
+     * A worker which records its name when it starts and runs until it is cancelled or released.
+     */
+    private static class Job extends SwingWorker<Void, Void> {
+        private final String name;
+        private final List<String> log;
+        private volatile boolean released;
+        private volatile boolean running = false;
+
+        Job(String name, List<String> log, boolean released) {
+            this.name = name;
+            this.log = log;
+            this.released = released;
+        }
+
+        @Override
+        protected Void doInBackground() throws Exception {
+            log.add(name);
+            running = true;
+            while (!released && !isCancelled())
+                Thread.sleep(1);
+            return null;
+        }
+    }
+
+    private static void onEdt(Runnable r) throws Exception {
+        SwingUtilities.invokeAndWait(r);
+    }
+
+    private static void awaitIdle(RenderScheduler scheduler) throws Exception {
+        boolean [] busy = {true};
+        long deadline = System.currentTimeMillis() + 10000;
+        while (busy[0]) {
+            assertTrue("scheduler did not become idle", System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+            onEdt(() -> busy[0] = scheduler.isBusy());
+        }
+    }
+
+    @Test
+    public void testBurstIsCoalesced() throws Exception {
+        RenderScheduler scheduler = new RenderScheduler();
+        List<String> log = Collections.synchronizedList(new ArrayList<>());
+        onEdt(() -> {
+            for (int i = 0; i < 5; i++) {
+                String name = "job" + i;
+                scheduler.submit(RenderScheduler.Priority.INTERACTIVE, () -> new Job(name, log, true));
+            }
+        });
+        awaitIdle(scheduler);
+        assertEquals(Collections.singletonList("job4"), log);
+        assertEquals(5, scheduler.getSubmitted());
+        assertEquals(1, scheduler.getStarted());
+        assertEquals(4, scheduler.getCoalesced());
+        assertEquals(0, scheduler.getCancelled());
+    }
+
+    @Test
+    public void testInteractiveCancelsRunning() throws Exception {
+        RenderScheduler scheduler = new RenderScheduler();
+        List<String> log = Collections.synchronizedList(new ArrayList<>());
+        Job first = new Job("first", log, false);
+        onEdt(() -> scheduler.submit(RenderScheduler.Priority.INTERACTIVE, () -> first));
+        while (!first.running)
+            Thread.sleep(1);
+
+        onEdt(() -> scheduler.submit(RenderScheduler.Priority.INTERACTIVE, () -> new Job("second", log, true)));
+        awaitIdle(scheduler);
+        assertTrue(first.isCancelled());
+        assertEquals(1, scheduler.getCancelled());
+        assertEquals(2, scheduler.getStarted());
+        assertEquals("second", log.get(1));
+    }
+
+    @Test
+    public void testInteractiveBeforeBackground() throws Exception {
+        RenderScheduler scheduler = new RenderScheduler();
+        List<String> log = Collections.synchronizedList(new ArrayList<>());
+        onEdt(() -> {
+            scheduler.submit(RenderScheduler.Priority.BACKGROUND, () -> new Job("background", log, true));
+            scheduler.submit(RenderScheduler.Priority.INTERACTIVE, () -> new Job("interactive", log, true));
+        });
+        awaitIdle(scheduler);
+        assertEquals(2, log.size());
+        assertEquals("interactive", log.get(0));
+        assertEquals("background", log.get(1));
+        assertEquals(0, scheduler.getCoalesced());
+    }
+
+    @Test
+    public void testNothingToRender() throws Exception {
+        RenderScheduler scheduler = new RenderScheduler();
+        onEdt(() -> scheduler.submit(RenderScheduler.Priority.INTERACTIVE, () -> null));
+        awaitIdle(scheduler);
+        assertEquals(0, scheduler.getStarted());
+    }
+
+}
@@ -0,0 +1,120 @@
+/*
+    Copyright (C) 2016  Petri Aaltonen
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+
+package tests;
+
+import cplot.*;
+import org.junit.Test;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import static org.junit.Assert.*;
+
+/**
+ * Test the keys, the budget and the counters of the tile cache and that plots copy its tiles.
+ * @author Petri Aaltonen
+ */
+public class TileCacheTest {
+
+    private static Expression parse(String s) throws Exception {
+        Evaluator evaluator = new Evaluator();
+        evaluator.setRoot(new Parser().parseStatement(s));
+        return evaluator.getExpression();
+    }
+
+    private static TileCache.Tile tile(PlotCoordinates coord) {
+        ValueBuffer values = new ValueBuffer(null, coord);
+        int [] rgb = new int[values.getWidth() * values.getHeight()];
+        return TileCache.copyOut(values, rgb, new Rectangle(0, 0, TileCache.TILE_SIZE, TileCache.TILE_SIZE));
+    }
+
+    @Test
+    public void testSameFormulaSharesTiles() throws Exception {
+        PlotCoordinates coord = new PlotCoordinates(40, 30);
+        Coloring cw = new CWColoring();
+        TileCache.Key a = new TileCache.Key(parse("z*z + i"), cw, coord, 1, -2);
+        assertEquals(a, new TileCache.Key(parse("z*z + i"), cw, coord, 1, -2));
+        assertEquals(a.hashCode(), new TileCache.Key(parse("z*z + i"), cw, coord, 1, -2).hashCode());
+        assertNotEquals(a, new TileCache.Key(parse("z*z + 1"), cw, coord, 1, -2));
+        assertNotEquals(a, new TileCache.Key(parse("z*z + i"), new CWSColoring(), coord, 1, -2));
+        assertNotEquals(a, new TileCache.Key(parse("z*z + i"), cw, coord, 2, -2));
+
+        PlotCoordinates zoomed = new PlotCoordinates(coord);
+        zoomed.setDyadic(true);
+        zoomed.zoom(20, 15, 2.0);
+        assertNotEquals(a, new TileCache.Key(parse("z*z + i"), cw, zoomed, 1, -2));
+    }
+
+    @Test
+    public void testBudgetAndCounters() throws Exception {
+        PlotCoordinates coord = new PlotCoordinates(40, 30);
+        Expression e = parse("z");
+        Coloring cw = new CWColoring();
+        long tileBytes = 20L * TileCache.TILE_SIZE * TileCache.TILE_SIZE;
+        TileCache cache = new TileCache(16 * 4 * tileBytes);
+        for (int i = 0; i < 1000; i++)
+            cache.put(new TileCache.Key(e, cw, coord, i, 0), tile(coord));
+        assertTrue(cache.getByteCount() <= 16 * 4 * tileBytes);
+        assertEquals(cache.size() * tileBytes, cache.getByteCount());
+        assertEquals(1000 - cache.size(), cache.getEvictions());
+
+        // The most recent tile is kept and the first one has been evicted.
+        assertNotNull(cache.get(new TileCache.Key(e, cw, coord, 999, 0)));
+        assertNull(cache.get(new TileCache.Key(e, cw, coord, 0, 0)));
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test (expected = IllegalArgumentException.class)
+    public void testInvalidBudget() {
+        new TileCache(-1);
+    }
+
+    @Test
+    public void testPlotCopiesCachedTiles() throws Exception {
+        TileRenderer renderer = new TileRenderer(2, 16);
+        try {
+            for (TileRenderer r : new TileRenderer[] {renderer, null}) {
+                Coloring cw = new CWColoring();
+                TileCache cache = new TileCache(1L << 26);
+                PlotCoordinates coord = new PlotCoordinates(80, 70);
+                coord.setLimits(-2.0, 2.0, -1.5, 1.5);
+                Evaluator evaluator = new Evaluator();
+                evaluator.setRoot(new Parser().parseStatement("sin(z)/(1 + exp(z))"));
+                PlotWorker first = new PlotWorker(evaluator, cw, coord, r);
+                first.setTileCache(cache);
+                BufferedImage expected = first.doInBackground();
+                assertTrue(cache.size() > 0);
+
+                // The same formula entered again copies the tiles which lie inside the matrix.
+                evaluator.setRoot(new Parser().parseStatement("sin(z)/(1 + exp(z))"));
+                long hits = cache.getHits();
+                PlotWorker second = new PlotWorker(evaluator, cw, coord, r);
+                second.setTileCache(cache);
+                BufferedImage actual = second.doInBackground();
+                assertEquals(hits + cache.size(), cache.getHits());
+                for (int y = 0; y < expected.getHeight(); y++)
+                    for (int x = 0; x < expected.getWidth(); x++)
+                        assertEquals(expected.getRGB(x, y), actual.getRGB(x, y));
+                for (int y = 0; y < coord.getMatrixHeight(); y += 7)
+                    for (int x = 0; x < coord.getMatrixWidth(); x += 5)
+                        assertEquals(first.getValues().getValue(x, y).x, second.getValues().getValue(x, y).x, 0.0);
+            }
+        }
+        finally { renderer.shutdown(); }
+    }
+
+}
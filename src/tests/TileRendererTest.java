@@ -0,0 +1,314 @@
+/*
+    Copyright (C) 2016  Petri Aaltonen
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+
+package tests;
+
+import cplot.*;
+import org.junit.Test;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import static org.junit.Assert.*;
+
+/**
+ * Test that the parallel tile renderer produces the same image as the serial engine.
+ * @author Petri Aaltonen
+ */
+public class TileRendererTest {
+
+    private static BufferedImage render(String expression, Coloring coloring, TileRenderer renderer)
+            throws Exception {
+        Evaluator evaluator = new Evaluator();
+        evaluator.setRoot(new Parser().parseStatement(expression));
+        PlotCoordinates coord = new PlotCoordinates(37, 29);
+        coord.setLimits(-2.0, 2.0, -1.5, 1.5);
+        return new PlotWorker(evaluator, coloring, coord, renderer).doInBackground();
+    }
+
+    private static void assertSameImage(BufferedImage expected, BufferedImage actual) {
+        assertEquals(expected.getWidth(), actual.getWidth());
+        assertEquals(expected.getHeight(), actual.getHeight());
+        for (int y = 0; y < expected.getHeight(); y++)
+            for (int x = 0; x < expected.getWidth(); x++)
+                assertEquals(expected.getRGB(x, y), actual.getRGB(x, y));
+    }
+
+    @Test
+    public void testParallelEqualsSerial() throws Exception {
+        TileRenderer renderer = new TileRenderer(3, 16);
+        try {
+            String [] expressions = {"z*z / (z - 0.25)", "sin(z)/(1 + exp(z))", "log(z)^2"};
+            for (String expression : expressions)
+                assertSameImage(render(expression, new CWSColoring(), null),
+                        render(expression, new CWSColoring(), renderer));
+        }
+        finally { renderer.shutdown(); }
+    }
+
+    @Test
+    public void testTileSizeLargerThanMatrix() throws Exception {
+        TileRenderer renderer = new TileRenderer(2, 1000);
+        try {
+            assertSameImage(render("z", new BRYColoring(), null), render("z", new BRYColoring(), renderer));
+        }
+        finally { renderer.shutdown(); }
+    }
+
+    @Test
+    public void testColorizeEqualsRender() throws Exception {
+        TileRenderer renderer = new TileRenderer(2, 16);
+        try {
+            Evaluator evaluator = new Evaluator();
+            evaluator.setRoot(new Parser().parseStatement("sin(z)/(1 + exp(z))"));
+            PlotCoordinates coord = new PlotCoordinates(37, 29);
+            coord.setLimits(-2.0, 2.0, -1.5, 1.5);
+            PlotWorker first = new PlotWorker(evaluator, new CWColoring(), coord, renderer);
+            first.doInBackground();
+            assertTrue(first.getValues().matches(evaluator.getExpression(), coord));
+
+            BufferedImage expected = new PlotWorker(evaluator, new BRYSColoring(), coord, renderer).doInBackground();
+            assertSameImage(expected, new PlotWorker(first.getValues(), new BRYSColoring(), renderer).doInBackground());
+            assertSameImage(expected, new PlotWorker(first.getValues(), new BRYSColoring(), null).doInBackground());
+
+            coord.setLimits(-1.0, 1.0, -1.5, 1.5);
+            assertFalse(first.getValues().matches(evaluator.getExpression(), coord));
+        }
+        finally { renderer.shutdown(); }
+    }
+
+    @Test
+    public void testScanReusesValues() throws Exception {
+        TileRenderer renderer = new TileRenderer(2, 16);
+        try {
+            Coloring cw = new CWColoring();
+            Coloring brys = new BRYSColoring();
+            for (TileRenderer r : new TileRenderer[] {renderer, null}) {
+                Evaluator evaluator = new Evaluator();
+                evaluator.setRoot(new Parser().parseStatement("sin(z)/(1 + exp(z))"));
+                PlotCoordinates coord = new PlotCoordinates(37, 29);
+                coord.setLimits(-2.0, 2.0, -1.5, 1.5);
+                PlotWorker previous = new PlotWorker(evaluator, cw, coord, r);
+                previous.doInBackground();
+
+                int [][] scans = {{5, -3}, {-20, 0}, {0, 11}, {-36, -28}, {200, 0}};
+                for (int [] scan : scans) {
+                    coord.scan(scan[0], scan[1]);
+                    coord.postScanUpdate();
+                    // The pixels of another coloring must be colored again.
+                    Coloring coloring = (scan[1] == 11) ? brys : cw;
+                    PlotWorker next = new PlotWorker(evaluator, coloring, coord, r, previous);
+                    BufferedImage expected = new PlotWorker(evaluator, coloring, coord, r).doInBackground();
+                    assertSameImage(expected, next.doInBackground());
+                    assertTrue(next.getValues().matches(evaluator.getExpression(), coord));
+                    previous = next;
+                }
+            }
+        }
+        finally { renderer.shutdown(); }
+    }
+
+    @Test
+    public void testZoomReusesSamples() throws Exception {
+        TileRenderer renderer = new TileRenderer(2, 16);
+        try {
+            Coloring cw = new CWColoring();
+            for (TileRenderer r : new TileRenderer[] {renderer, null}) {
+                for (boolean progressive : new boolean[] {true, false}) {
+                    Evaluator evaluator = new Evaluator();
+                    evaluator.setRoot(new Parser().parseStatement("sin(z)/(1 + exp(z))"));
+                    PlotCoordinates coord = new PlotCoordinates(37, 29);
+                    coord.setLimits(-2.0, 2.0, -1.5, 1.5);
+                    coord.setDyadic(true);
+                    SampleStore store = new SampleStore(1L << 24);
+                    PlotWorker previous = new PlotWorker(evaluator, cw, coord, r);
+                    previous.doInBackground();
+                    store.add(previous.getValues());
+
+                    double [][] zooms = {{10, 20, 2.0}, {30, 3, 2.0}, {18, 14, 0.5}, {0, 0, 8.0}, {36, 28, 0.125}};
+                    for (double [] zoom : zooms) {
+                        coord.zoom((int)zoom[0], (int)zoom[1], zoom[2]);
+                        assertNotNull(store.find(evaluator.getExpression(), coord));
+                        PlotWorker next = new PlotWorker(evaluator, cw, coord, r, previous);
+                        next.setSampleStore(store);
+                        next.setProgressive(progressive);
+                        BufferedImage expected = new PlotWorker(evaluator, cw, coord, r).doInBackground();
+                        assertSameImage(expected, next.doInBackground());
+                        store.add(next.getValues());
+                        previous = next;
+                    }
+                }
+            }
+        }
+        finally { renderer.shutdown(); }
+    }
+
+    @Test
+    public void testSampleStoreBudget() throws Exception {
+        Evaluator evaluator = new Evaluator();
+        evaluator.setRoot(new Parser().parseStatement("z"));
+        PlotCoordinates coord = new PlotCoordinates(37, 29);
+        ValueBuffer first = new ValueBuffer(evaluator.getExpression(), coord);
+        coord.scan(3, 0);
+        coord.postScanUpdate();
+        ValueBuffer second = new ValueBuffer(evaluator.getExpression(), coord);
+
+        SampleStore store = new SampleStore(first.getByteCount() - 1);
+        assertFalse(store.add(first));
+        assertEquals(0, store.getByteCount());
+        store.setBudget(2 * first.getByteCount());
+        assertTrue(store.add(first));
+        assertTrue(store.add(second));
+        store.setBudget(first.getByteCount());
+        assertEquals(second, store.find(evaluator.getExpression(), coord));
+        assertEquals(first.getByteCount(), store.getByteCount());
+    }
+
+    @Test
+    public void testProgressiveEqualsFull() throws Exception {
+        TileRenderer renderer = new TileRenderer(3, 12);
+        try {
+            for (TileRenderer r : new TileRenderer[] {renderer, null}) {
+                Evaluator evaluator = new Evaluator();
+                evaluator.setRoot(new Parser().parseStatement("z*z / (z - 0.25)"));
+                PlotCoordinates coord = new PlotCoordinates(37, 29);
+                coord.setLimits(-2.0, 2.0, -1.5, 1.5);
+                PlotWorker progressive = new PlotWorker(evaluator, new CWSColoring(), coord, r);
+                progressive.setProgressive(true);
+                assertSameImage(render("z*z / (z - 0.25)", new CWSColoring(), null), progressive.doInBackground());
+            }
+        }
+        finally { renderer.shutdown(); }
+    }
+
+    @Test
+    public void testCancelledRenderSkipsTiles() throws Exception {
+        TileRenderer renderer = new TileRenderer(2, 8);
+        try {
+            Evaluator evaluator = new Evaluator();
+            evaluator.setRoot(new Parser().parseStatement("z + 1"));
+            PlotCoordinates coord = new PlotCoordinates(37, 29);
+            ValueBuffer values = new ValueBuffer(evaluator.getExpression(), coord);
+            int [] rgb = new int[values.getWidth() * values.getHeight()];
+            renderer.render(evaluator.getExpression(), new CWColoring(), coord, values, rgb,
+                    Collections.singletonList(new Rectangle(0, 0, values.getWidth(), values.getHeight())),
+                    1, false, () -> true, Collections.emptyList());
+            for (int c : rgb)
+                assertEquals(0, c);
+        }
+        finally { renderer.shutdown(); }
+    }
+
+    @Test
+    public void testTilesStartFromFocus() throws Exception {
+        TileRenderer renderer = new TileRenderer(1, 8);
+        try {
+            Evaluator evaluator = new Evaluator();
+            evaluator.setRoot(new Parser().parseStatement("z + 1"));
+            PlotCoordinates coord = new PlotCoordinates(37, 29);
+            ValueBuffer values = new ValueBuffer(evaluator.getExpression(), coord);
+            int [] rgb = new int[values.getWidth() * values.getHeight()];
+            Point focus = new Point(30, 5);
+            List<Rectangle> tiles = Collections.synchronizedList(new ArrayList<>());
+            TileRenderer.Monitor monitor = new TileRenderer.Monitor() {
+                @Override
+                public boolean isCancelled() { return false; }
+                @Override
+                public Point getFocus() { return focus; }
+                @Override
+                public void tileDone(Rectangle bounds) { tiles.add(bounds); }
+            };
+            renderer.render(evaluator.getExpression(), new CWColoring(), coord, values, rgb,
+                    Collections.singletonList(new Rectangle(0, 0, values.getWidth(), values.getHeight())),
+                    1, false, monitor, Collections.emptyList());
+            assertTrue(tiles.get(0).contains(focus));
+            int area = 0;
+            for (Rectangle tile : tiles)
+                area += tile.width * tile.height;
+            assertEquals(values.getWidth() * values.getHeight(), area);
+        }
+        finally { renderer.shutdown(); }
+    }
+
+    @Test
+    public void testDeferredMargin() throws Exception {
+        TileRenderer renderer = new TileRenderer(2, 16);
+        try {
+            for (TileRenderer r : new TileRenderer[] {renderer, null}) {
+                Evaluator evaluator = new Evaluator();
+                evaluator.setRoot(new Parser().parseStatement("sin(z)/(1 + exp(z))"));
+                Coloring cw = new CWColoring();
+                PlotCoordinates coord = new PlotCoordinates(37, 29);
+                coord.setLimits(-2.0, 2.0, -1.5, 1.5);
+                BufferedImage expected = new PlotWorker(evaluator, cw, coord, r).doInBackground();
+
+                PlotWorker visible = new PlotWorker(evaluator, cw, coord, r);
+                visible.setMarginDeferred(true);
+                visible.setProgressive(true);
+                visible.doInBackground();
+                assertEquals(coord.getMatrixWidth() * coord.getMatrixHeight()
+                        - coord.getViewportWidth() * coord.getViewportHeight(), area(visible.getMissing()));
+                PlotWorker margin = new PlotWorker(visible);
+                assertSameImage(expected, margin.doInBackground());
+                assertTrue(margin.getMissing().isEmpty());
+
+                // A scan from a worker whose margin was not computed renders the margin again.
+                visible = new PlotWorker(evaluator, cw, coord, r);
+                visible.setMarginDeferred(true);
+                visible.doInBackground();
+                coord.scan(-20, 10);
+                coord.postScanUpdate();
+                PlotWorker next = new PlotWorker(evaluator, cw, coord, r, visible);
+                assertSameImage(new PlotWorker(evaluator, cw, coord, r).doInBackground(), next.doInBackground());
+            }
+        }
+        finally { renderer.shutdown(); }
+    }
+
+    private static int area(List<Rectangle> regions) {
+        int n = 0;
+        for (Rectangle r : regions)
+            n += r.width * r.height;
+        return n;
+    }
+
+    @Test
+    public void testSerialTilesAreBatched() throws Exception {
+        Evaluator evaluator = new Evaluator();
+        evaluator.setRoot(new Parser().parseStatement("z + 1"));
+        PlotCoordinates coord = new PlotCoordinates(37, 50);
+        PlotWorker worker = new PlotWorker(evaluator, new CWColoring(), coord, null);
+        List<Rectangle> tiles = new ArrayList<>();
+        worker.setTileConsumer(tile -> tiles.add(tile.getBounds()));
+        worker.doInBackground();
+        int area = 0;
+        for (Rectangle tile : tiles) {
+            assertTrue(tile.height <= TileCache.TILE_SIZE);
+            area += tile.width * tile.height;
+        }
+        assertEquals(coord.getMatrixWidth() * coord.getMatrixHeight(), area);
+        assertTrue(tiles.size() < coord.getMatrixHeight() / 2);
+    }
+
+    @Test (expected = IllegalArgumentException.class)
+    public void testInvalidTileSize() {
+        new TileRenderer(1, 0);
+    }
+
+}
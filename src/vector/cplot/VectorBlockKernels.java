@@ -0,0 +1,243 @@
+/*
+    Copyright (C) 2016  Petri Aaltonen
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+
+package cplot;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Block kernels written with the incubating Java Vector API. Each loop iteration processes as
+ * many points as fit into the preferred vector shape of the machine. The main loop runs up to
+ * the last whole vector of a block without masks and the few points left are computed by the
+ * scalar loop of the kernel.
+ *
+ * Addition, subtraction, multiplication, division, negation, conjugation and the absolute
+ * value are computed exactly as by the scalar kernels. The lane-wise exponential, logarithm and
+ * trigonometric functions may differ from java.lang.Math in the last bits.
+ *
+ * This class is compiled only by the ant target compile-vector and is loaded reflectively by
+ * BlockKernels.getInstance. The kernels not overridden here fall back to the scalar loops.
+ * @author Petri Aaltonen
+ */
+public class VectorBlockKernels extends BlockKernels {
+
+    private static final VectorSpecies<Double> S = DoubleVector.SPECIES_PREFERRED;
+
+    @Override
+    public void neg(double [] ar, double [] ai, double [] dr, double [] di, int n) {
+        int i = 0;
+        for (int bound = S.loopBound(n); i < bound; i += S.length()) {
+            DoubleVector.fromArray(S, ar, i).neg().intoArray(dr, i);
+            DoubleVector.fromArray(S, ai, i).neg().intoArray(di, i);
+        }
+        for (; i < n; i++) {
+            dr[i] = -ar[i];
+            di[i] = -ai[i];
+        }
+    }
+
+    @Override
+    public void add(double [] ar, double [] ai, double [] br, double [] bi,
+                    double [] dr, double [] di, int n) {
+        int i = 0;
+        for (int bound = S.loopBound(n); i < bound; i += S.length()) {
+            DoubleVector x = DoubleVector.fromArray(S, ar, i).add(DoubleVector.fromArray(S, br, i));
+            DoubleVector y = DoubleVector.fromArray(S, ai, i).add(DoubleVector.fromArray(S, bi, i));
+            x.intoArray(dr, i);
+            y.intoArray(di, i);
+        }
+        for (; i < n; i++) {
+            dr[i] = ar[i] + br[i];
+            di[i] = ai[i] + bi[i];
+        }
+    }
+
+    @Override
+    public void sub(double [] ar, double [] ai, double [] br, double [] bi,
+                    double [] dr, double [] di, int n) {
+        int i = 0;
+        for (int bound = S.loopBound(n); i < bound; i += S.length()) {
+            DoubleVector x = DoubleVector.fromArray(S, ar, i).sub(DoubleVector.fromArray(S, br, i));
+            DoubleVector y = DoubleVector.fromArray(S, ai, i).sub(DoubleVector.fromArray(S, bi, i));
+            x.intoArray(dr, i);
+            y.intoArray(di, i);
+        }
+        for (; i < n; i++) {
+            dr[i] = ar[i] - br[i];
+            di[i] = ai[i] - bi[i];
+        }
+    }
+
+    @Override
+    public void mul(double [] ar, double [] ai, double [] br, double [] bi,
+                    double [] dr, double [] di, int n) {
+        int i = 0;
+        for (int bound = S.loopBound(n); i < bound; i += S.length()) {
+            DoubleVector ax = DoubleVector.fromArray(S, ar, i);
+            DoubleVector ay = DoubleVector.fromArray(S, ai, i);
+            DoubleVector bx = DoubleVector.fromArray(S, br, i);
+            DoubleVector by = DoubleVector.fromArray(S, bi, i);
+            ax.mul(bx).sub(ay.mul(by)).intoArray(dr, i);
+            ax.mul(by).add(ay.mul(bx)).intoArray(di, i);
+        }
+        for (; i < n; i++) {
+            double ax = ar[i], ay = ai[i], bx = br[i], by = bi[i];
+            dr[i] = ax * bx - ay * by;
+            di[i] = ax * by + ay * bx;
+        }
+    }
+
+    @Override
+    public void div(double [] ar, double [] ai, double [] br, double [] bi,
+                    double [] dr, double [] di, int n) {
+        int i = 0;
+        for (int bound = S.loopBound(n); i < bound; i += S.length()) {
+            DoubleVector ax = DoubleVector.fromArray(S, ar, i);
+            DoubleVector ay = DoubleVector.fromArray(S, ai, i);
+            DoubleVector bx = DoubleVector.fromArray(S, br, i);
+            DoubleVector by = DoubleVector.fromArray(S, bi, i);
+            DoubleVector t = bx.mul(bx).add(by.mul(by));
+            ax.mul(bx).add(ay.mul(by)).div(t).intoArray(dr, i);
+            ay.mul(bx).sub(ax.mul(by)).div(t).intoArray(di, i);
+        }
+        for (; i < n; i++) {
+            double ax = ar[i], ay = ai[i], bx = br[i], by = bi[i];
+            double t = bx * bx + by * by;
+            dr[i] = (ax * bx + ay * by) / t;
+            di[i] = (ay * bx - ax * by) / t;
+        }
+    }
+
+    @Override
+    public void abs(double [] ar, double [] ai, double [] dr, double [] di, int n) {
+        DoubleVector zero = DoubleVector.zero(S);
+        int i = 0;
+        for (int bound = S.loopBound(n); i < bound; i += S.length()) {
+            DoubleVector x = DoubleVector.fromArray(S, ar, i);
+            DoubleVector y = DoubleVector.fromArray(S, ai, i);
+            x.mul(x).add(y.mul(y)).lanewise(VectorOperators.SQRT).intoArray(dr, i);
+            zero.intoArray(di, i);
+        }
+        for (; i < n; i++) {
+            double ax = ar[i], ay = ai[i];
+            dr[i] = Math.sqrt(ax * ax + ay * ay);
+            di[i] = 0.0;
+        }
+    }
+
+    @Override
+    public void arg(double [] ar, double [] ai, double [] dr, double [] di, int n) {
+        DoubleVector zero = DoubleVector.zero(S);
+        int i = 0;
+        for (int bound = S.loopBound(n); i < bound; i += S.length()) {
+            DoubleVector x = DoubleVector.fromArray(S, ar, i);
+            DoubleVector y = DoubleVector.fromArray(S, ai, i);
+            y.lanewise(VectorOperators.ATAN2, x).intoArray(dr, i);
+            zero.intoArray(di, i);
+        }
+        for (; i < n; i++) {
+            dr[i] = Math.atan2(ai[i], ar[i]);
+            di[i] = 0.0;
+        }
+    }
+
+    @Override
+    public void conj(double [] ar, double [] ai, double [] dr, double [] di, int n) {
+        int i = 0;
+        for (int bound = S.loopBound(n); i < bound; i += S.length()) {
+            DoubleVector.fromArray(S, ar, i).intoArray(dr, i);
+            DoubleVector.fromArray(S, ai, i).neg().intoArray(di, i);
+        }
+        for (; i < n; i++) {
+            dr[i] = ar[i];
+            di[i] = -ai[i];
+        }
+    }
+
+    @Override
+    public void exp(double [] ar, double [] ai, double [] dr, double [] di, int n) {
+        int i = 0;
+        for (int bound = S.loopBound(n); i < bound; i += S.length()) {
+            DoubleVector r = DoubleVector.fromArray(S, ar, i).lanewise(VectorOperators.EXP);
+            DoubleVector t = DoubleVector.fromArray(S, ai, i);
+            r.mul(t.lanewise(VectorOperators.COS)).intoArray(dr, i);
+            r.mul(t.lanewise(VectorOperators.SIN)).intoArray(di, i);
+        }
+        for (; i < n; i++) {
+            double r = Math.exp(ar[i]);
+            double t = ai[i];
+            dr[i] = r * Math.cos(t);
+            di[i] = r * Math.sin(t);
+        }
+    }
+
+    @Override
+    public void log(double [] ar, double [] ai, double [] dr, double [] di, int n) {
+        DoubleVector nan = DoubleVector.broadcast(S, Double.NaN);
+        int i = 0;
+        for (int bound = S.loopBound(n); i < bound; i += S.length()) {
+            DoubleVector x = DoubleVector.fromArray(S, ar, i);
+            DoubleVector y = DoubleVector.fromArray(S, ai, i);
+            VectorMask<Double> zero = x.eq(0.0).and(y.eq(0.0));
+            x.mul(x).add(y.mul(y)).lanewise(VectorOperators.SQRT).lanewise(VectorOperators.LOG)
+                    .blend(nan, zero).intoArray(dr, i);
+            y.lanewise(VectorOperators.ATAN2, x).blend(nan, zero).intoArray(di, i);
+        }
+        double [] tmp = new double[2];
+        for (; i < n; i++) {
+            ComplexMath.log(ar[i], ai[i], tmp, 0);
+            dr[i] = tmp[0];
+            di[i] = tmp[1];
+        }
+    }
+
+    @Override
+    public void sin(double [] ar, double [] ai, double [] dr, double [] di, int n) {
+        int i = 0;
+        for (int bound = S.loopBound(n); i < bound; i += S.length()) {
+            DoubleVector x = DoubleVector.fromArray(S, ar, i);
+            DoubleVector y = DoubleVector.fromArray(S, ai, i);
+            x.lanewise(VectorOperators.SIN).mul(y.lanewise(VectorOperators.COSH)).intoArray(dr, i);
+            x.lanewise(VectorOperators.COS).mul(y.lanewise(VectorOperators.SINH)).intoArray(di, i);
+        }
+        for (; i < n; i++) {
+            double ax = ar[i], ay = ai[i];
+            dr[i] = Math.sin(ax) * Math.cosh(ay);
+            di[i] = Math.cos(ax) * Math.sinh(ay);
+        }
+    }
+
+    @Override
+    public void cos(double [] ar, double [] ai, double [] dr, double [] di, int n) {
+        int i = 0;
+        for (int bound = S.loopBound(n); i < bound; i += S.length()) {
+            DoubleVector x = DoubleVector.fromArray(S, ar, i);
+            DoubleVector y = DoubleVector.fromArray(S, ai, i);
+            x.lanewise(VectorOperators.COS).mul(y.lanewise(VectorOperators.COSH)).intoArray(dr, i);
+            x.lanewise(VectorOperators.SIN).neg().mul(y.lanewise(VectorOperators.SINH)).intoArray(di, i);
+        }
+        for (; i < n; i++) {
+            double ax = ar[i], ay = ai[i];
+            dr[i] = Math.cos(ax) * Math.cosh(ay);
+            di[i] = -Math.sin(ax) * Math.sinh(ay);
+        }
+    }
+
+}